@@ -0,0 +1,247 @@
+package com.miracle.apps.git.core.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.DiffAlgorithm.SupportedAlgorithm;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.errors.LargeObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import com.miracle.apps.git.core.op.DiffOperation;
+import com.miracle.apps.git.core.op.DiffOperation.Whitespace;
+
+/**
+ * Compares the diff algorithms and whitespace modes offered by
+ * {@link DiffOperation} on groups of blob pairs.
+ * <p>
+ * Usage: <code>DiffBenchmark [gitDir oldRev newRev]</code>. The synthetic
+ * groups are always measured: small edits, large rewrites, pathological
+ * repeats and reindented files. With a repository, the text files modified
+ * between the two revisions are added as one group per file extension. For
+ * every group, algorithm and whitespace mode the median time of diffing the
+ * whole group is printed, measured after a warm-up.
+ */
+public class DiffBenchmark {
+
+	private static final long WARMUP_NANOS = 500 * 1000 * 1000L;
+
+	private static final int ROUNDS = 21;
+
+	/** Files above this size are left out of the real groups */
+	private static final int MAX_FILE_SIZE = 1024 * 1024;
+
+	/**
+	 * @param args
+	 *            optionally the git directory and two revisions
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		Map<String, List<RawText[]>> groups = new TreeMap<String, List<RawText[]>>();
+		Random random = new Random(42);
+		groups.put("synthetic: small edits", smallEdits(random)); //$NON-NLS-1$
+		groups.put("synthetic: large rewrite", largeRewrite(random)); //$NON-NLS-1$
+		groups.put("synthetic: repeats", repeats(random)); //$NON-NLS-1$
+		groups.put("synthetic: reindent", reindent(random)); //$NON-NLS-1$
+		if (args.length == 3)
+			groups.putAll(real(new File(args[0]), args[1], args[2]));
+		else if (args.length != 0) {
+			System.err.println("usage: DiffBenchmark [gitDir oldRev newRev]"); //$NON-NLS-1$
+			System.exit(2);
+		}
+
+		System.out.printf("%-32s %6s  %-10s %-16s %12s %8s%n", "group", //$NON-NLS-1$ //$NON-NLS-2$
+				"pairs", "algorithm", "whitespace", "median us", "edits"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+		for (Map.Entry<String, List<RawText[]>> group : groups.entrySet())
+			for (SupportedAlgorithm algorithm : SupportedAlgorithm.values())
+				for (Whitespace whitespace : Whitespace.values()) {
+					DiffAlgorithm alg = DiffAlgorithm.getAlgorithm(algorithm);
+					RawTextComparator cmp = whitespace.getComparator();
+					long[] edits = new long[1];
+					long median = measure(alg, cmp, group.getValue(), edits);
+					System.out.printf("%-32s %6d  %-10s %-16s %12.1f %8d%n", //$NON-NLS-1$
+							group.getKey(), Integer.valueOf(group.getValue()
+									.size()), algorithm, whitespace, Double
+									.valueOf(median / 1000.0), Long
+									.valueOf(edits[0]));
+				}
+	}
+
+	private static long measure(DiffAlgorithm alg, RawTextComparator cmp,
+			List<RawText[]> pairs, long[] edits) {
+		long end = System.nanoTime() + WARMUP_NANOS;
+		while (System.nanoTime() < end)
+			edits[0] = diff(alg, cmp, pairs);
+		long[] times = new long[ROUNDS];
+		for (int i = 0; i < ROUNDS; i++) {
+			long start = System.nanoTime();
+			edits[0] = diff(alg, cmp, pairs);
+			times[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(times);
+		return times[ROUNDS / 2];
+	}
+
+	/** @return number of edits, which also keeps the work from being dropped */
+	private static long diff(DiffAlgorithm alg, RawTextComparator cmp,
+			List<RawText[]> pairs) {
+		long edits = 0;
+		for (RawText[] pair : pairs)
+			edits += alg.diff(cmp, pair[0], pair[1]).size();
+		return edits;
+	}
+
+	/** Source-like files of 2000 lines with ten changed lines each */
+	private static List<RawText[]> smallEdits(Random random) {
+		List<RawText[]> pairs = new ArrayList<RawText[]>();
+		for (int f = 0; f < 20; f++) {
+			String[] lines = sourceLines(random, 2000);
+			String[] changed = lines.clone();
+			for (int i = 0; i < 10; i++)
+				changed[random.nextInt(changed.length)] = "\tchanged(" //$NON-NLS-1$
+						+ random.nextInt() + ");"; //$NON-NLS-1$
+			pairs.add(pair(lines, changed));
+		}
+		return pairs;
+	}
+
+	/** Files of 2000 lines of which 60% are replaced */
+	private static List<RawText[]> largeRewrite(Random random) {
+		List<RawText[]> pairs = new ArrayList<RawText[]>();
+		for (int f = 0; f < 5; f++) {
+			String[] lines = sourceLines(random, 2000);
+			String[] changed = lines.clone();
+			for (int i = 0; i < changed.length; i++)
+				if (random.nextInt(10) < 6)
+					changed[i] = "\trewritten(" + random.nextInt() + ");"; //$NON-NLS-1$ //$NON-NLS-2$
+			pairs.add(pair(lines, changed));
+		}
+		return pairs;
+	}
+
+	/**
+	 * Files made of few distinct lines, where every line has many equal
+	 * candidates on the other side
+	 */
+	private static List<RawText[]> repeats(Random random) {
+		List<RawText[]> pairs = new ArrayList<RawText[]>();
+		String[] common = { "}", "", "\t}", "\treturn;", "{" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+		for (int f = 0; f < 5; f++) {
+			String[] lines = new String[5000];
+			for (int i = 0; i < lines.length; i++)
+				lines[i] = common[random.nextInt(common.length)];
+			List<String> changed = new ArrayList<String>(Arrays.asList(lines));
+			for (int i = 0; i < 50; i++)
+				changed.add(random.nextInt(changed.size()),
+						common[random.nextInt(common.length)]);
+			for (int i = 0; i < 50; i++)
+				changed.remove(random.nextInt(changed.size()));
+			pairs.add(pair(lines, changed.toArray(new String[changed.size()])));
+		}
+		return pairs;
+	}
+
+	/** Files whose indentation changed from tabs to spaces */
+	private static List<RawText[]> reindent(Random random) {
+		List<RawText[]> pairs = new ArrayList<RawText[]>();
+		for (int f = 0; f < 10; f++) {
+			String[] lines = sourceLines(random, 2000);
+			String[] changed = new String[lines.length];
+			for (int i = 0; i < lines.length; i++)
+				changed[i] = lines[i].replace("\t", "    "); //$NON-NLS-1$ //$NON-NLS-2$
+			pairs.add(pair(lines, changed));
+		}
+		return pairs;
+	}
+
+	private static String[] sourceLines(Random random, int count) {
+		String[] lines = new String[count];
+		for (int i = 0; i < count; i++)
+			switch (random.nextInt(4)) {
+			case 0:
+				lines[i] = "}"; //$NON-NLS-1$
+				break;
+			case 1:
+				lines[i] = ""; //$NON-NLS-1$
+				break;
+			default:
+				lines[i] = "\tint v" + i + " = compute(" + random.nextInt(1000) //$NON-NLS-1$ //$NON-NLS-2$
+						+ ");"; //$NON-NLS-1$
+			}
+		return lines;
+	}
+
+	private static RawText[] pair(String[] a, String[] b) {
+		return new RawText[] { text(a), text(b) };
+	}
+
+	private static RawText text(String[] lines) {
+		StringBuilder text = new StringBuilder();
+		for (String line : lines)
+			text.append(line).append('\n');
+		return new RawText(Constants.encode(text.toString()));
+	}
+
+	/** The modified text files between two revisions, by extension */
+	private static Map<String, List<RawText[]>> real(File gitDir,
+			String oldRev, String newRev) throws IOException {
+		Map<String, List<RawText[]>> groups = new TreeMap<String, List<RawText[]>>();
+		Repository repository = new FileRepositoryBuilder().setGitDir(gitDir)
+				.build();
+		try (RevWalk rw = new RevWalk(repository);
+				TreeWalk tw = new TreeWalk(repository)) {
+			ObjectReader reader = tw.getObjectReader();
+			tw.addTree(rw.parseTree(repository.resolve(oldRev)));
+			tw.addTree(rw.parseTree(repository.resolve(newRev)));
+			tw.setRecursive(true);
+			tw.setFilter(TreeFilter.ANY_DIFF);
+			while (tw.next()) {
+				if (!isFile(tw.getFileMode(0)) || !isFile(tw.getFileMode(1)))
+					continue;
+				byte[] a, b;
+				try {
+					a = reader.open(tw.getObjectId(0), Constants.OBJ_BLOB)
+							.getCachedBytes(MAX_FILE_SIZE);
+					b = reader.open(tw.getObjectId(1), Constants.OBJ_BLOB)
+							.getCachedBytes(MAX_FILE_SIZE);
+				} catch (LargeObjectException e) {
+					continue;
+				}
+				if (RawText.isBinary(a) || RawText.isBinary(b))
+					continue;
+				String name = tw.getNameString();
+				int dot = name.lastIndexOf('.');
+				String group = "real: " //$NON-NLS-1$
+						+ (dot > 0 ? name.substring(dot) : "(none)"); //$NON-NLS-1$
+				List<RawText[]> pairs = groups.get(group);
+				if (pairs == null) {
+					pairs = new ArrayList<RawText[]>();
+					groups.put(group, pairs);
+				}
+				pairs.add(new RawText[] { new RawText(a), new RawText(b) });
+			}
+		} finally {
+			repository.close();
+		}
+		return groups;
+	}
+
+	private static boolean isFile(FileMode mode) {
+		return FileMode.REGULAR_FILE == mode || FileMode.EXECUTABLE_FILE == mode;
+	}
+}
@@ -0,0 +1,648 @@
+package com.miracle.apps.git.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.storage.file.FileSnapshot;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdSubclassMap;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Persistent index of the paths changed by each commit.
+ * <p>
+ * For every commit reachable from the refs at the time it was written, the
+ * file stores a Bloom filter of the paths, including all leading
+ * directories, which differ between the commit and its first parent (or the
+ * empty tree for root commits). A filter answers "definitely not changed" or
+ * "maybe changed", which lets path-limited history walks skip the tree diff
+ * of most commits. Commits changing more than {@link #MAX_PATHS} paths get
+ * no filter and always answer "maybe".
+ * <p>
+ * The index is stored in <code>objects/info/miracle-changed-paths</code>.
+ * Like the {@link CommitGraph} it is not created automatically; once
+ * {@link #write(Repository)} has been called it is kept up to date in the
+ * background by {@link #updateIfPresent(Repository, Collection)}, computing
+ * filters for the new history of the updated refs only and appending them as
+ * a layer file (see {@link IndexLayers}).
+ */
+public class ChangedPathIndex {
+
+	/** Name of the index file in the <code>objects/info</code> directory */
+	public static final String FILE_NAME = "miracle-changed-paths"; //$NON-NLS-1$
+
+	/** Commits changing more paths than this get no filter */
+	public static final int MAX_PATHS = 512;
+
+	private static final int SIGNATURE = 0x4d435054; // "MCPT"
+
+	private static final int VERSION = 1;
+
+	private static final int BITS_PER_PATH = 10;
+
+	private static final int HASH_COUNT = 7;
+
+	private static final int SEED1 = 0x293ae76f;
+
+	private static final int SEED2 = 0x7e646e2c;
+
+	/** Length of the filter of a commit which changes too many paths */
+	private static final int NO_FILTER = -1;
+
+	private static final ConcurrentMap<File, ChangedPathIndex> indexes = new ConcurrentHashMap<File, ChangedPathIndex>();
+
+	/** Serializes writers of all indexes in this process */
+	private static final Object writeLock = new Object();
+
+	/**
+	 * Get the changed path index of a repository, reading the index files
+	 * again if they changed.
+	 *
+	 * @param repository
+	 * @return the index, or <code>null</code> if the repository has no
+	 *         (readable) index file
+	 */
+	public static ChangedPathIndex get(Repository repository) {
+		File file = getFile(repository);
+		ChangedPathIndex index = indexes.get(file);
+		if (index != null && !index.isModified())
+			return index;
+		index = read(new IndexLayers(file, repository.getFS()), index);
+		if (index == null)
+			indexes.remove(file);
+		else
+			indexes.put(file, index);
+		return index;
+	}
+
+	/**
+	 * Drop the loaded index of the given repository; the file is kept.
+	 *
+	 * @param repository
+	 */
+	public static void remove(Repository repository) {
+		indexes.remove(getFile(repository));
+	}
+
+	/**
+	 * Drop the loaded indexes of all repositories.
+	 */
+	public static void removeAll() {
+		indexes.clear();
+	}
+
+	/**
+	 * Write or update the changed path index of a repository so that it
+	 * contains all commits reachable from any ref. Only commits missing in an
+	 * existing index are diffed.
+	 *
+	 * @param repository
+	 * @return the updated index
+	 * @throws IOException
+	 */
+	public static ChangedPathIndex write(Repository repository)
+			throws IOException {
+		List<ObjectId> tips = new ArrayList<ObjectId>();
+		for (Ref ref : repository.getRefDatabase().getRefs(RefDatabase.ALL)
+				.values())
+			if (ref.getObjectId() != null)
+				tips.add(ref.getObjectId());
+		synchronized (writeLock) {
+			ChangedPathIndex old = get(repository);
+			return append(repository, old, computeNewFilters(repository, old,
+					tips));
+		}
+	}
+
+	/**
+	 * Add the history of updated refs to the changed path index, if the
+	 * repository already has one. The update runs in the background; failures
+	 * are ignored, readers fall back to diffing trees.
+	 *
+	 * @param repository
+	 * @param tips
+	 *            the new values of the updated refs
+	 * @return the scheduled update, or <code>null</code> if the repository has
+	 *         no index
+	 */
+	public static Future<?> updateIfPresent(Repository repository,
+			Collection<? extends AnyObjectId> tips) {
+		File file = getFile(repository);
+		if (!file.exists() || tips.isEmpty())
+			return null;
+		return IndexUpdateQueue.submit(file, repository, tips,
+				new IndexUpdateQueue.Update() {
+					@Override
+					public void run(Repository repo, List<ObjectId> newTips)
+							throws IOException {
+						synchronized (writeLock) {
+							ChangedPathIndex old = get(repo);
+							if (old != null)
+								append(repo, old, computeNewFilters(repo, old,
+										newTips));
+						}
+					}
+				});
+	}
+
+	/**
+	 * @param repository
+	 * @return the location of the index file
+	 */
+	public static File getFile(Repository repository) {
+		File objects = new File(repository.getDirectory(), "objects"); //$NON-NLS-1$
+		return new File(new File(objects, "info"), FILE_NAME) //$NON-NLS-1$
+				.getAbsoluteFile();
+	}
+
+	private final IndexLayers files;
+
+	/** the base first, then the appended layers from oldest to newest */
+	private final Layer[] layers;
+
+	private final FileSnapshot baseSnapshot;
+
+	private final FileSnapshot chainSnapshot;
+
+	private ChangedPathIndex(IndexLayers files, Layer[] layers,
+			FileSnapshot baseSnapshot, FileSnapshot chainSnapshot) {
+		this.files = files;
+		this.layers = layers;
+		this.baseSnapshot = baseSnapshot;
+		this.chainSnapshot = chainSnapshot;
+	}
+
+	private boolean isModified() {
+		return baseSnapshot.isModified(files.getBase())
+				|| chainSnapshot.isModified(files.getChain());
+	}
+
+	/**
+	 * @return number of commits in the index
+	 */
+	public int getCommitCount() {
+		int count = 0;
+		for (Layer layer : layers)
+			count += layer.count();
+		return count;
+	}
+
+	/**
+	 * Check whether a commit may have changed a path with respect to its
+	 * first parent.
+	 *
+	 * @param commit
+	 * @param path
+	 *            repository-relative path of a file or directory
+	 * @return <code>false</code> if the commit does definitely not change the
+	 *         path; <code>true</code> if it may, or if the commit is not in
+	 *         the index
+	 */
+	public boolean mightHaveChanged(AnyObjectId commit, String path) {
+		for (int i = layers.length - 1; i >= 0; i--) {
+			int position = layers[i].find(commit);
+			if (position >= 0)
+				return layers[i].mightHaveChanged(position, path);
+		}
+		return true;
+	}
+
+	private boolean contains(AnyObjectId commit) {
+		for (Layer layer : layers)
+			if (layer.find(commit) >= 0)
+				return true;
+		return false;
+	}
+
+	private Layer findLayer(String name) {
+		for (int i = 1; i < layers.length; i++)
+			if (layers[i].name.equals(name))
+				return layers[i];
+		return null;
+	}
+
+	/**
+	 * Read the base file and the chain of layers, keeping the layers of
+	 * <code>previous</code> which did not change.
+	 *
+	 * @return the index, or <code>null</code> if the base file is missing or
+	 *         corrupt
+	 */
+	private static ChangedPathIndex read(IndexLayers files,
+			ChangedPathIndex previous) {
+		File file = files.getBase();
+		if (!file.exists())
+			return null;
+		FileSnapshot chainSnapshot = files.snapshotChain();
+		List<Layer> layers = new ArrayList<Layer>();
+		FileSnapshot baseSnapshot;
+		if (previous != null && !previous.baseSnapshot.isModified(file)) {
+			baseSnapshot = previous.baseSnapshot;
+			layers.add(previous.layers[0]);
+		} else {
+			baseSnapshot = FileSnapshot.save(file);
+			try {
+				layers.add(Layer.read(file, null));
+			} catch (IOException e) {
+				// a corrupt index is treated like a missing one
+				return null;
+			}
+		}
+		try {
+			for (String name : files.readChain()) {
+				Layer layer = previous != null ? previous.findLayer(name)
+						: null;
+				if (layer == null)
+					layer = Layer.read(files.getLayer(name), name);
+				layers.add(layer);
+			}
+		} catch (IOException e) {
+			// a missing layer ends the chain; its commits are treated as not
+			// in the index
+		}
+		return new ChangedPathIndex(files, layers.toArray(new Layer[layers
+				.size()]), baseSnapshot, chainSnapshot);
+	}
+
+	/**
+	 * Add filters to the index. They are written as a new layer, which is
+	 * merged with the layers below it while it is not much smaller than them;
+	 * only if it grows to the size of the base, the base is rewritten.
+	 *
+	 * @return the updated index
+	 */
+	private static ChangedPathIndex append(Repository repository,
+			ChangedPathIndex old, List<Entry> added) throws IOException {
+		if (old != null && added.isEmpty())
+			return old;
+		IndexLayers files = new IndexLayers(getFile(repository),
+				repository.getFS());
+		List<Entry> entries = new ArrayList<Entry>(added);
+		int kept = old != null ? old.layers.length : 0;
+		while (kept > 0
+				&& entries.size() * IndexLayers.MERGE_FACTOR > old.layers[kept - 1]
+						.count()) {
+			kept--;
+			old.layers[kept].addEntriesTo(entries);
+		}
+
+		ChangedPathIndex index;
+		Layer layer = Layer.build(entries);
+		if (kept == 0) {
+			FileSnapshot baseSnapshot = files.writeBase(layer.toBytes());
+			FileSnapshot chainSnapshot = files
+					.writeChain(new ArrayList<String>());
+			index = new ChangedPathIndex(files, new Layer[] { layer },
+					baseSnapshot, chainSnapshot);
+		} else {
+			layer.name = files.writeLayer(layer.toBytes());
+			Layer[] layers = Arrays.copyOf(old.layers, kept + 1);
+			layers[kept] = layer;
+			List<String> names = new ArrayList<String>();
+			for (int i = 1; i < layers.length; i++)
+				names.add(layers[i].name);
+			FileSnapshot chainSnapshot = files.writeChain(names);
+			index = new ChangedPathIndex(files, layers, old.baseSnapshot,
+					chainSnapshot);
+		}
+
+		if (old != null) {
+			List<String> obsolete = new ArrayList<String>();
+			for (int i = Math.max(kept, 1); i < old.layers.length; i++)
+				obsolete.add(old.layers[i].name);
+			files.deleteLayers(obsolete);
+		}
+		indexes.put(files.getBase(), index);
+		return index;
+	}
+
+	/**
+	 * Compute the filters of the commits reachable from the tips which are
+	 * not in the old index, without descending into commits the old index
+	 * already has.
+	 */
+	private static List<Entry> computeNewFilters(Repository repository,
+			ChangedPathIndex old, Collection<? extends AnyObjectId> tips)
+			throws IOException {
+		List<Entry> added = new ArrayList<Entry>();
+		ObjectIdSubclassMap<Entry> seen = new ObjectIdSubclassMap<Entry>();
+		try (RevWalk walk = new RevWalk(repository)) {
+			walk.setRetainBody(false);
+			ObjectReader reader = walk.getObjectReader();
+			Deque<RevCommit> pending = new ArrayDeque<RevCommit>();
+			for (AnyObjectId id : tips) {
+				RevObject tip;
+				try {
+					tip = walk.peel(walk.parseAny(id));
+				} catch (MissingObjectException e) {
+					continue;
+				}
+				if (tip instanceof RevCommit)
+					pending.push((RevCommit) tip);
+			}
+
+			while (!pending.isEmpty()) {
+				RevCommit c = pending.pop();
+				if (seen.contains(c) || old != null && old.contains(c))
+					continue;
+				walk.parseHeaders(c);
+				Entry entry = new Entry(c);
+				RevCommit parent = c.getParentCount() > 0 ? c.getParent(0)
+						: null;
+				if (parent != null)
+					walk.parseHeaders(parent);
+				entry.filter = createFilter(changedPaths(reader, parent, c));
+				seen.add(entry);
+				added.add(entry);
+				for (RevCommit p : c.getParents())
+					pending.push(p);
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * @return the paths and leading directories which differ, or
+	 *         <code>null</code> if there are more than {@link #MAX_PATHS}
+	 */
+	private static Set<String> changedPaths(ObjectReader reader,
+			RevCommit parent, RevCommit commit) throws IOException {
+		Set<String> paths = new HashSet<String>();
+		try (TreeWalk tw = new TreeWalk(reader)) {
+			if (parent != null)
+				tw.addTree(parent.getTree());
+			else
+				tw.addTree(new EmptyTreeIterator());
+			tw.addTree(commit.getTree());
+			// differing subtrees are reported, then entered
+			tw.setFilter(TreeFilter.ANY_DIFF);
+			while (tw.next()) {
+				paths.add(tw.getPathString());
+				if (paths.size() > MAX_PATHS)
+					return null;
+				if (tw.isSubtree())
+					tw.enterSubtree();
+			}
+		}
+		return paths;
+	}
+
+	private static byte[] createFilter(Set<String> paths) {
+		if (paths == null)
+			return null;
+		int bits = paths.size() * BITS_PER_PATH;
+		byte[] filter = new byte[(bits + 7) / 8];
+		bits = filter.length * 8;
+		for (String path : paths) {
+			byte[] raw = Constants.encode(path);
+			int h1 = murmur3(raw, SEED1);
+			int h2 = murmur3(raw, SEED2);
+			for (int i = 0; i < HASH_COUNT; i++) {
+				int bit = (int) (((h1 + i * h2) & 0xffffffffL) % bits);
+				filter[bit >>> 3] |= 1 << (bit & 7);
+			}
+		}
+		return filter;
+	}
+
+	/** 32 bit MurmurHash3 */
+	@SuppressWarnings("fallthrough")
+	private static int murmur3(byte[] data, int seed) {
+		final int c1 = 0xcc9e2d51, c2 = 0x1b873593;
+		int h = seed;
+		int blocks = data.length / 4;
+		for (int i = 0; i < blocks; i++) {
+			int k = (data[4 * i] & 0xff) | (data[4 * i + 1] & 0xff) << 8
+					| (data[4 * i + 2] & 0xff) << 16
+					| (data[4 * i + 3] & 0xff) << 24;
+			k *= c1;
+			k = Integer.rotateLeft(k, 15);
+			k *= c2;
+			h ^= k;
+			h = Integer.rotateLeft(h, 13);
+			h = h * 5 + 0xe6546b64;
+		}
+		int k = 0;
+		int tail = blocks * 4;
+		switch (data.length & 3) {
+		case 3:
+			k ^= (data[tail + 2] & 0xff) << 16;
+			//$FALL-THROUGH$
+		case 2:
+			k ^= (data[tail + 1] & 0xff) << 8;
+			//$FALL-THROUGH$
+		case 1:
+			k ^= data[tail] & 0xff;
+			k *= c1;
+			k = Integer.rotateLeft(k, 15);
+			k *= c2;
+			h ^= k;
+		}
+		h ^= data.length;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/** The base file or one appended layer file */
+	private static class Layer {
+		/** file name of an appended layer, <code>null</code> for the base */
+		String name;
+
+		final int[] fanout;
+
+		final byte[] ids;
+
+		/** filter lengths in bytes, or {@link #NO_FILTER} */
+		final int[] lengths;
+
+		final int[] offsets;
+
+		final byte[] filters;
+
+		Layer(String name, int count, int filterBytes) {
+			this.name = name;
+			fanout = new int[256];
+			ids = new byte[count * Constants.OBJECT_ID_LENGTH];
+			lengths = new int[count];
+			offsets = new int[count];
+			filters = new byte[filterBytes];
+		}
+
+		int count() {
+			return lengths.length;
+		}
+
+		/** @return the position within this layer, or -1 */
+		int find(AnyObjectId id) {
+			int first = id.getFirstByte();
+			int low = first == 0 ? 0 : fanout[first - 1];
+			int high = fanout[first];
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				int cmp = id.compareTo(ids, mid * Constants.OBJECT_ID_LENGTH);
+				if (cmp < 0)
+					high = mid;
+				else if (cmp > 0)
+					low = mid + 1;
+				else
+					return mid;
+			}
+			return -1;
+		}
+
+		boolean mightHaveChanged(int position, String path) {
+			if (lengths[position] == NO_FILTER)
+				return true;
+			int bits = lengths[position] * 8;
+			if (bits == 0)
+				return false;
+			byte[] raw = Constants.encode(path);
+			int h1 = murmur3(raw, SEED1);
+			int h2 = murmur3(raw, SEED2);
+			int offset = offsets[position];
+			for (int i = 0; i < HASH_COUNT; i++) {
+				int bit = (int) (((h1 + i * h2) & 0xffffffffL) % bits);
+				if ((filters[offset + (bit >>> 3)] & (1 << (bit & 7))) == 0)
+					return false;
+			}
+			return true;
+		}
+
+		void addEntriesTo(List<Entry> entries) {
+			for (int i = 0; i < count(); i++) {
+				Entry entry = new Entry(ObjectId.fromRaw(ids, i
+						* Constants.OBJECT_ID_LENGTH));
+				if (lengths[i] != NO_FILTER)
+					entry.filter = Arrays.copyOfRange(filters, offsets[i],
+							offsets[i] + lengths[i]);
+				entries.add(entry);
+			}
+		}
+
+		static Layer build(List<Entry> entries) {
+			Entry[] sorted = entries.toArray(new Entry[entries.size()]);
+			Arrays.sort(sorted);
+			int filterBytes = 0;
+			for (Entry entry : sorted)
+				if (entry.filter != null)
+					filterBytes += entry.filter.length;
+
+			Layer layer = new Layer(null, sorted.length, filterBytes);
+			int offset = 0;
+			for (int i = 0; i < sorted.length; i++) {
+				Entry entry = sorted[i];
+				layer.fanout[entry.getFirstByte()]++;
+				entry.copyRawTo(layer.ids, i * Constants.OBJECT_ID_LENGTH);
+				layer.offsets[i] = offset;
+				if (entry.filter == null)
+					layer.lengths[i] = NO_FILTER;
+				else {
+					layer.lengths[i] = entry.filter.length;
+					System.arraycopy(entry.filter, 0, layer.filters, offset,
+							entry.filter.length);
+					offset += entry.filter.length;
+				}
+			}
+			for (int i = 1; i < 256; i++)
+				layer.fanout[i] += layer.fanout[i - 1];
+			return layer;
+		}
+
+		/** Layers use the same format as the base file */
+		byte[] toBytes() throws IOException {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			CRC32 crc = new CRC32();
+			DataOutputStream body = new DataOutputStream(
+					new CheckedOutputStream(buffer, crc));
+			body.writeInt(SIGNATURE);
+			body.writeInt(VERSION);
+			body.writeInt(count());
+			body.writeInt(filters.length);
+			for (int f : fanout)
+				body.writeInt(f);
+			body.write(ids);
+			for (int length : lengths)
+				body.writeInt(length);
+			body.write(filters);
+			body.flush();
+			new DataOutputStream(buffer).writeLong(crc.getValue());
+			return buffer.toByteArray();
+		}
+
+		static Layer read(File file, String name) throws IOException {
+			CRC32 crc = new CRC32();
+			try (InputStream in = new BufferedInputStream(new FileInputStream(
+					file))) {
+				DataInputStream body = new DataInputStream(
+						new CheckedInputStream(in, crc));
+				if (body.readInt() != SIGNATURE || body.readInt() != VERSION)
+					throw new IOException("Unsupported changed path index " + file); //$NON-NLS-1$
+				int count = body.readInt();
+				int filterBytes = body.readInt();
+				Layer layer = new Layer(name, count, filterBytes);
+				for (int i = 0; i < 256; i++)
+					layer.fanout[i] = body.readInt();
+				body.readFully(layer.ids);
+				int offset = 0;
+				for (int i = 0; i < count; i++) {
+					layer.lengths[i] = body.readInt();
+					layer.offsets[i] = offset;
+					if (layer.lengths[i] != NO_FILTER)
+						offset += layer.lengths[i];
+				}
+				body.readFully(layer.filters);
+				long expected = crc.getValue();
+				if (new DataInputStream(in).readLong() != expected)
+					throw new IOException("Corrupt changed path index " + file); //$NON-NLS-1$
+				return layer;
+			}
+		}
+	}
+
+	private static class Entry extends ObjectId {
+		private static final long serialVersionUID = 1L;
+
+		/** <code>null</code> if the commit changes too many paths */
+		byte[] filter;
+
+		Entry(AnyObjectId id) {
+			super(id);
+		}
+	}
+}
@@ -0,0 +1,875 @@
+package com.miracle.apps.git.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.storage.file.FileSnapshot;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdSubclassMap;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+/**
+ * Persistent index of the commit graph of a repository.
+ * <p>
+ * For every commit reachable from the refs at the time it was written, the
+ * file stores the parents, the root tree, the commit time and the generation
+ * number (1 for root commits, otherwise one more than the highest generation
+ * of the parents). A commit can only reach commits with a lower generation,
+ * which lets reachability walks stop early without relying on commit times,
+ * and walks over the graph do not need to inflate any commit objects.
+ * <p>
+ * The graph is stored in <code>objects/info/miracle-commit-graph</code>. It
+ * is not created automatically; once {@link #write(Repository)} has been
+ * called, the fetch and commit operations keep it up to date through
+ * {@link #updateIfPresent(Repository, Collection)}, which adds the history of
+ * the updated refs in the background. New commits are appended as small
+ * layer files (see {@link IndexLayers}) instead of rewriting the whole graph.
+ * Commits created by other tools are not in the graph until the next update,
+ * callers must fall back to a {@link RevWalk} when
+ * {@link #findPosition(AnyObjectId)} returns -1.
+ */
+public class CommitGraph {
+
+	/** Name of the graph file in the <code>objects/info</code> directory */
+	public static final String FILE_NAME = "miracle-commit-graph"; //$NON-NLS-1$
+
+	private static final int SIGNATURE = 0x4d434752; // "MCGR"
+
+	private static final int LAYER_SIGNATURE = 0x4d43474c; // "MCGL"
+
+	private static final int VERSION = 1;
+
+	private static final int NO_PARENT = -1;
+
+	/** Marks a second parent field pointing into the extra edge list */
+	private static final int EXTRA_EDGES = 0x80000000;
+
+	/** Marks the last parent in the extra edge list */
+	private static final int LAST_EDGE = 0x80000000;
+
+	private static final ConcurrentMap<File, CommitGraph> graphs = new ConcurrentHashMap<File, CommitGraph>();
+
+	/** Serializes writers of all graphs in this process */
+	private static final Object writeLock = new Object();
+
+	/**
+	 * Get the commit graph of a repository, reading the graph files again if
+	 * they changed.
+	 *
+	 * @param repository
+	 * @return the graph, or <code>null</code> if the repository has no
+	 *         (readable) graph file
+	 */
+	public static CommitGraph get(Repository repository) {
+		File file = getFile(repository);
+		CommitGraph graph = graphs.get(file);
+		if (graph != null && !graph.isModified())
+			return graph;
+		graph = read(new IndexLayers(file, repository.getFS()), graph);
+		if (graph == null)
+			graphs.remove(file);
+		else
+			graphs.put(file, graph);
+		return graph;
+	}
+
+	/**
+	 * Drop the loaded graph of the given repository; the file is kept.
+	 *
+	 * @param repository
+	 */
+	public static void remove(Repository repository) {
+		graphs.remove(getFile(repository));
+	}
+
+	/**
+	 * Drop the loaded graphs of all repositories.
+	 */
+	public static void removeAll() {
+		graphs.clear();
+	}
+
+	/**
+	 * Write or update the commit graph of a repository so that it contains
+	 * all commits reachable from any ref. Only commits missing in an existing
+	 * graph are parsed.
+	 *
+	 * @param repository
+	 * @return the updated graph
+	 * @throws IOException
+	 */
+	public static CommitGraph write(Repository repository) throws IOException {
+		List<ObjectId> tips = new ArrayList<ObjectId>();
+		for (Ref ref : repository.getRefDatabase().getRefs(RefDatabase.ALL)
+				.values())
+			if (ref.getObjectId() != null)
+				tips.add(ref.getObjectId());
+		synchronized (writeLock) {
+			CommitGraph old = get(repository);
+			return append(repository, old, findNewCommits(repository, old,
+					tips));
+		}
+	}
+
+	/**
+	 * Add the history of updated refs to the commit graph, if the repository
+	 * already has one. The update runs in the background; failures are
+	 * ignored, readers fall back to walking commits.
+	 *
+	 * @param repository
+	 * @param tips
+	 *            the new values of the updated refs
+	 * @return the scheduled update, or <code>null</code> if the repository has
+	 *         no graph
+	 */
+	public static Future<?> updateIfPresent(Repository repository,
+			Collection<? extends AnyObjectId> tips) {
+		File file = getFile(repository);
+		if (!file.exists() || tips.isEmpty())
+			return null;
+		return IndexUpdateQueue.submit(file, repository, tips,
+				new IndexUpdateQueue.Update() {
+					@Override
+					public void run(Repository repo, List<ObjectId> newTips)
+							throws IOException {
+						synchronized (writeLock) {
+							CommitGraph old = get(repo);
+							if (old != null)
+								append(repo, old, findNewCommits(repo, old,
+										newTips));
+						}
+					}
+				});
+	}
+
+	/**
+	 * @param repository
+	 * @return the location of the graph file
+	 */
+	public static File getFile(Repository repository) {
+		File objects = new File(repository.getDirectory(), "objects"); //$NON-NLS-1$
+		return new File(new File(objects, "info"), FILE_NAME) //$NON-NLS-1$
+				.getAbsoluteFile();
+	}
+
+	private final IndexLayers files;
+
+	/** the base first, then the appended layers from oldest to newest */
+	private final Layer[] layers;
+
+	private final FileSnapshot baseSnapshot;
+
+	private final FileSnapshot chainSnapshot;
+
+	private CommitGraph(IndexLayers files, Layer[] layers,
+			FileSnapshot baseSnapshot, FileSnapshot chainSnapshot) {
+		this.files = files;
+		this.layers = layers;
+		this.baseSnapshot = baseSnapshot;
+		this.chainSnapshot = chainSnapshot;
+	}
+
+	private boolean isModified() {
+		return baseSnapshot.isModified(files.getBase())
+				|| chainSnapshot.isModified(files.getChain());
+	}
+
+	/**
+	 * @return number of commits in the graph
+	 */
+	public int getCommitCount() {
+		Layer top = layers[layers.length - 1];
+		return top.start + top.count();
+	}
+
+	/**
+	 * @param id
+	 * @return the position of the commit in the graph, or -1 if it is not in
+	 *         the graph
+	 */
+	public int findPosition(AnyObjectId id) {
+		return findPosition(id, layers.length);
+	}
+
+	/** Looks up a commit in the lowest <code>layerCount</code> layers */
+	private int findPosition(AnyObjectId id, int layerCount) {
+		for (int i = layerCount - 1; i >= 0; i--) {
+			int local = layers[i].find(id);
+			if (local >= 0)
+				return layers[i].start + local;
+		}
+		return -1;
+	}
+
+	private Layer layerOf(int position) {
+		for (int i = layers.length - 1; i > 0; i--)
+			if (position >= layers[i].start)
+				return layers[i];
+		return layers[0];
+	}
+
+	/**
+	 * @param position
+	 * @return the id of the commit at the given position
+	 */
+	public ObjectId getObjectId(int position) {
+		Layer layer = layerOf(position);
+		return ObjectId.fromRaw(layer.ids, (position - layer.start)
+				* Constants.OBJECT_ID_LENGTH);
+	}
+
+	/**
+	 * @param position
+	 * @return the root tree of the commit at the given position
+	 */
+	public ObjectId getTree(int position) {
+		Layer layer = layerOf(position);
+		return ObjectId.fromRaw(layer.trees, (position - layer.start)
+				* Constants.OBJECT_ID_LENGTH);
+	}
+
+	/**
+	 * @param position
+	 * @return the commit time of the commit at the given position, in seconds
+	 */
+	public int getCommitTime(int position) {
+		Layer layer = layerOf(position);
+		return layer.commitTimes[position - layer.start];
+	}
+
+	/**
+	 * @param position
+	 * @return the generation number of the commit at the given position
+	 */
+	public int getGeneration(int position) {
+		Layer layer = layerOf(position);
+		return layer.generations[position - layer.start];
+	}
+
+	/**
+	 * @param position
+	 * @return positions of the parents of the commit at the given position
+	 */
+	public int[] getParents(int position) {
+		Layer layer = layerOf(position);
+		int local = position - layer.start;
+		int first = layer.parent1[local];
+		if (first == NO_PARENT)
+			return new int[0];
+		int second = layer.parent2[local];
+		if (second == NO_PARENT)
+			return new int[] { first };
+		if ((second & EXTRA_EDGES) == 0)
+			return new int[] { first, second };
+
+		int[] extraEdges = layer.extraEdges;
+		int start = second & ~EXTRA_EDGES;
+		int end = start;
+		while ((extraEdges[end] & LAST_EDGE) == 0)
+			end++;
+		int[] parents = new int[end - start + 2];
+		parents[0] = first;
+		for (int i = start; i <= end; i++)
+			parents[i - start + 1] = extraEdges[i] & ~LAST_EDGE;
+		return parents;
+	}
+
+	/**
+	 * Find out which of the targets are reachable from any of the tips, in a
+	 * single walk over the graph. Commits with a lower generation than all
+	 * targets not found yet are not visited.
+	 *
+	 * @param tips
+	 *            positions to start from
+	 * @param targets
+	 *            positions to look for
+	 * @return for each target whether it is reachable
+	 */
+	public boolean[] findReachable(int[] tips, int[] targets) {
+		boolean[] found = new boolean[targets.length];
+		BitSet targetSet = new BitSet(getCommitCount());
+		int minGeneration = Integer.MAX_VALUE;
+		for (int target : targets) {
+			targetSet.set(target);
+			minGeneration = Math.min(minGeneration, getGeneration(target));
+		}
+		int remaining = targetSet.cardinality();
+		BitSet reached = new BitSet(getCommitCount());
+		BitSet seen = new BitSet(getCommitCount());
+		Deque<Integer> stack = new ArrayDeque<Integer>();
+		for (int tip : tips)
+			if (!seen.get(tip)) {
+				seen.set(tip);
+				stack.push(Integer.valueOf(tip));
+			}
+
+		while (remaining > 0 && !stack.isEmpty()) {
+			int c = stack.pop().intValue();
+			if (targetSet.get(c) && !reached.get(c)) {
+				reached.set(c);
+				remaining--;
+			}
+			if (getGeneration(c) <= minGeneration)
+				// parents have a lower generation than any target
+				continue;
+			for (int p : getParents(c))
+				if (!seen.get(p)) {
+					seen.set(p);
+					stack.push(Integer.valueOf(p));
+				}
+		}
+		for (int i = 0; i < targets.length; i++)
+			found[i] = reached.get(targets[i]);
+		return found;
+	}
+
+	/**
+	 * Compute the merge bases of two commits.
+	 *
+	 * @param a
+	 *            position of the first commit
+	 * @param b
+	 *            position of the second commit
+	 * @return positions of the merge bases, ordered by decreasing generation
+	 *         and commit time
+	 */
+	public int[] findMergeBases(int a, int b) {
+		final int left = 1, right = 2, stale = 4;
+		int[] flags = new int[getCommitCount()];
+		// highest generation first, then newest commit time
+		PriorityQueue<Integer> queue = new PriorityQueue<Integer>(16,
+				new Comparator<Integer>() {
+					@Override
+					public int compare(Integer p1, Integer p2) {
+						int c = getGeneration(p2.intValue())
+								- getGeneration(p1.intValue());
+						if (c != 0)
+							return c;
+						return getCommitTime(p2.intValue())
+								- getCommitTime(p1.intValue());
+					}
+				});
+		// a commit is queued at most once: all its children have a higher
+		// generation, so its flags are final when it is polled
+		BitSet queued = new BitSet(getCommitCount());
+		flags[a] |= left;
+		flags[b] |= right;
+		queue.add(Integer.valueOf(a));
+		queued.set(a);
+		if (!queued.get(b)) {
+			queue.add(Integer.valueOf(b));
+			queued.set(b);
+		}
+		/* number of queued commits which are not stale */
+		int nonStale = queue.size();
+
+		List<Integer> result = new ArrayList<Integer>();
+		while (nonStale > 0) {
+			int c = queue.poll().intValue();
+			queued.clear(c);
+			int f = flags[c] & (left | right | stale);
+			if ((f & stale) == 0)
+				nonStale--;
+			if (f == (left | right)) {
+				result.add(Integer.valueOf(c));
+				f |= stale;
+				flags[c] |= stale;
+			}
+			for (int p : getParents(c)) {
+				if ((flags[p] & f) == f)
+					continue;
+				boolean wasStale = (flags[p] & stale) != 0;
+				flags[p] |= f;
+				if (!queued.get(p)) {
+					queued.set(p);
+					queue.add(Integer.valueOf(p));
+					if ((flags[p] & stale) == 0)
+						nonStale++;
+				} else if (!wasStale && (flags[p] & stale) != 0)
+					nonStale--;
+			}
+		}
+
+		// drop results which are reachable from other results
+		List<Integer> bases = new ArrayList<Integer>();
+		for (Integer candidate : result)
+			if (!bases.contains(candidate)
+					&& !isReachableFromAny(candidate.intValue(), result))
+				bases.add(candidate);
+		int[] positions = new int[bases.size()];
+		for (int i = 0; i < positions.length; i++)
+			positions[i] = bases.get(i).intValue();
+		return positions;
+	}
+
+	private boolean isReachableFromAny(int position, List<Integer> others) {
+		List<Integer> tips = new ArrayList<Integer>();
+		for (Integer other : others)
+			if (other.intValue() != position
+					&& getGeneration(other.intValue()) > getGeneration(position))
+				tips.add(other);
+		if (tips.isEmpty())
+			return false;
+		int[] tipArray = new int[tips.size()];
+		for (int i = 0; i < tipArray.length; i++)
+			tipArray[i] = tips.get(i).intValue();
+		return findReachable(tipArray, new int[] { position })[0];
+	}
+
+	private Layer findLayer(String name, int start) {
+		for (int i = 1; i < layers.length; i++)
+			if (layers[i].name.equals(name) && layers[i].start == start)
+				return layers[i];
+		return null;
+	}
+
+	/**
+	 * Read the base file and the chain of layers, keeping the layers of
+	 * <code>previous</code> which did not change.
+	 *
+	 * @return the graph, or <code>null</code> if the base file is missing or
+	 *         corrupt
+	 */
+	private static CommitGraph read(IndexLayers files, CommitGraph previous) {
+		File file = files.getBase();
+		if (!file.exists())
+			return null;
+		FileSnapshot chainSnapshot = files.snapshotChain();
+		List<Layer> layers = new ArrayList<Layer>();
+		FileSnapshot baseSnapshot;
+		if (previous != null && !previous.baseSnapshot.isModified(file)) {
+			baseSnapshot = previous.baseSnapshot;
+			layers.add(previous.layers[0]);
+		} else {
+			baseSnapshot = FileSnapshot.save(file);
+			try {
+				layers.add(Layer.read(file, null, 0));
+			} catch (IOException e) {
+				// a corrupt graph is treated like a missing one
+				return null;
+			}
+		}
+		try {
+			for (String name : files.readChain()) {
+				Layer top = layers.get(layers.size() - 1);
+				int start = top.start + top.count();
+				Layer layer = previous != null ? previous.findLayer(name,
+						start) : null;
+				if (layer == null)
+					layer = Layer.read(files.getLayer(name), name, start);
+				layers.add(layer);
+			}
+		} catch (IOException e) {
+			// a missing or inconsistent layer ends the chain; its commits are
+			// treated as not in the graph
+		}
+		return new CommitGraph(files, layers.toArray(new Layer[layers.size()]),
+				baseSnapshot, chainSnapshot);
+	}
+
+	/**
+	 * Add commits to the graph. They are written as a new layer, which is
+	 * merged with the layers below it while it is not much smaller than them;
+	 * only if it grows to the size of the base, the base is rewritten.
+	 *
+	 * @return the updated graph
+	 */
+	private static CommitGraph append(Repository repository, CommitGraph old,
+			List<Node> added) throws IOException {
+		if (old != null && added.isEmpty())
+			return old;
+		IndexLayers files = new IndexLayers(getFile(repository),
+				repository.getFS());
+		List<Node> nodes = new ArrayList<Node>(added);
+		int kept = old != null ? old.layers.length : 0;
+		while (kept > 0
+				&& nodes.size() * IndexLayers.MERGE_FACTOR > old.layers[kept - 1]
+						.count()) {
+			kept--;
+			old.layers[kept].addNodesTo(old, nodes);
+		}
+
+		CommitGraph graph;
+		if (kept == 0) {
+			Layer base = Layer.build(nodes, null, 0);
+			FileSnapshot baseSnapshot = files.writeBase(base.toBytes(true));
+			FileSnapshot chainSnapshot = files
+					.writeChain(new ArrayList<String>());
+			graph = new CommitGraph(files, new Layer[] { base }, baseSnapshot,
+					chainSnapshot);
+		} else {
+			Layer layer = Layer.build(nodes, old, kept);
+			layer.name = files.writeLayer(layer.toBytes(false));
+			Layer[] layers = Arrays.copyOf(old.layers, kept + 1);
+			layers[kept] = layer;
+			List<String> names = new ArrayList<String>();
+			for (int i = 1; i < layers.length; i++)
+				names.add(layers[i].name);
+			FileSnapshot chainSnapshot = files.writeChain(names);
+			graph = new CommitGraph(files, layers, old.baseSnapshot,
+					chainSnapshot);
+		}
+
+		if (old != null) {
+			List<String> obsolete = new ArrayList<String>();
+			for (int i = Math.max(kept, 1); i < old.layers.length; i++)
+				obsolete.add(old.layers[i].name);
+			files.deleteLayers(obsolete);
+		}
+		graphs.put(files.getBase(), graph);
+		return graph;
+	}
+
+	/**
+	 * Collect the commits reachable from the tips which are not in the old
+	 * graph, without descending into commits the old graph already has.
+	 */
+	private static List<Node> findNewCommits(Repository repository,
+			CommitGraph old, Collection<? extends AnyObjectId> tips)
+			throws IOException {
+		List<Node> added = new ArrayList<Node>();
+		ObjectIdSubclassMap<Node> seen = new ObjectIdSubclassMap<Node>();
+		try (RevWalk walk = new RevWalk(repository)) {
+			walk.setRetainBody(false);
+			Deque<RevCommit> pending = new ArrayDeque<RevCommit>();
+			for (AnyObjectId id : tips) {
+				RevObject tip;
+				try {
+					tip = walk.peel(walk.parseAny(id));
+				} catch (MissingObjectException e) {
+					continue;
+				}
+				if (tip instanceof RevCommit)
+					pending.push((RevCommit) tip);
+			}
+
+			while (!pending.isEmpty()) {
+				RevCommit c = pending.pop();
+				if (seen.contains(c) || old != null
+						&& old.findPosition(c) >= 0)
+					continue;
+				try {
+					walk.parseHeaders(c);
+				} catch (MissingObjectException e) {
+					// e.g. the boundary of a shallow clone
+					continue;
+				}
+				Node node = new Node(c);
+				node.tree = c.getTree().copy();
+				node.commitTime = c.getCommitTime();
+				node.parents = new ObjectId[c.getParentCount()];
+				for (int i = 0; i < node.parents.length; i++) {
+					node.parents[i] = c.getParent(i).copy();
+					pending.push(c.getParent(i));
+				}
+				seen.add(node);
+				added.add(node);
+			}
+		}
+		computeGenerations(added, seen, old);
+		return added;
+	}
+
+	private static void computeGenerations(List<Node> added,
+			ObjectIdSubclassMap<Node> nodes, CommitGraph old) {
+		Deque<Node> stack = new ArrayDeque<Node>();
+		for (Node start : added) {
+			if (start.generation != 0)
+				continue;
+			stack.push(start);
+			while (!stack.isEmpty()) {
+				Node node = stack.peek();
+				int generation = 1;
+				boolean ready = true;
+				for (ObjectId parentId : node.parents) {
+					Node parent = nodes.get(parentId);
+					int parentGeneration;
+					if (parent != null) {
+						parentGeneration = parent.generation;
+						if (parentGeneration == 0) {
+							stack.push(parent);
+							ready = false;
+							continue;
+						}
+					} else {
+						int position = old != null ? old
+								.findPosition(parentId) : -1;
+						// parents missing from the repository count as roots
+						parentGeneration = position >= 0 ? old
+								.getGeneration(position) : 0;
+					}
+					generation = Math.max(generation, parentGeneration + 1);
+				}
+				if (ready) {
+					node.generation = generation;
+					stack.pop();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The base file or one appended layer file. Positions of parents are
+	 * positions in the whole graph, so they may point into lower layers.
+	 */
+	private static class Layer {
+		/** file name of an appended layer, <code>null</code> for the base */
+		String name;
+
+		/** number of commits in the layers below */
+		final int start;
+
+		final int[] fanout;
+
+		final byte[] ids;
+
+		final byte[] trees;
+
+		final int[] commitTimes;
+
+		final int[] generations;
+
+		final int[] parent1;
+
+		final int[] parent2;
+
+		final int[] extraEdges;
+
+		Layer(String name, int start, int count, int extraCount) {
+			this.name = name;
+			this.start = start;
+			fanout = new int[256];
+			ids = new byte[count * Constants.OBJECT_ID_LENGTH];
+			trees = new byte[count * Constants.OBJECT_ID_LENGTH];
+			commitTimes = new int[count];
+			generations = new int[count];
+			parent1 = new int[count];
+			parent2 = new int[count];
+			extraEdges = new int[extraCount];
+		}
+
+		int count() {
+			return commitTimes.length;
+		}
+
+		/** @return the position within this layer, or -1 */
+		int find(AnyObjectId id) {
+			int first = id.getFirstByte();
+			int low = first == 0 ? 0 : fanout[first - 1];
+			int high = fanout[first];
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				int cmp = id.compareTo(ids, mid * Constants.OBJECT_ID_LENGTH);
+				if (cmp < 0)
+					high = mid;
+				else if (cmp > 0)
+					low = mid + 1;
+				else
+					return mid;
+			}
+			return -1;
+		}
+
+		/** Turn the commits of this layer of <code>graph</code> into nodes */
+		void addNodesTo(CommitGraph graph, List<Node> nodes) {
+			for (int i = 0; i < count(); i++) {
+				int position = start + i;
+				Node node = new Node(graph.getObjectId(position));
+				node.tree = graph.getTree(position);
+				node.commitTime = commitTimes[i];
+				node.generation = generations[i];
+				int[] parents = graph.getParents(position);
+				node.parents = new ObjectId[parents.length];
+				for (int p = 0; p < parents.length; p++)
+					node.parents[p] = graph.getObjectId(parents[p]);
+				nodes.add(node);
+			}
+		}
+
+		/**
+		 * @param nodes
+		 * @param below
+		 *            the graph the layer is put on, <code>null</code> for a
+		 *            new base
+		 * @param belowCount
+		 *            number of layers of <code>below</code> which are kept
+		 */
+		static Layer build(List<Node> nodes, CommitGraph below, int belowCount) {
+			int start = 0;
+			if (below != null) {
+				Layer top = below.layers[belowCount - 1];
+				start = top.start + top.count();
+			}
+			Node[] sorted = nodes.toArray(new Node[nodes.size()]);
+			Arrays.sort(sorted);
+			ObjectIdSubclassMap<Node> byId = new ObjectIdSubclassMap<Node>();
+			int extraCount = 0;
+			for (int i = 0; i < sorted.length; i++) {
+				sorted[i].position = start + i;
+				byId.add(sorted[i]);
+				if (sorted[i].parents.length > 2)
+					extraCount += sorted[i].parents.length - 1;
+			}
+
+			Layer layer = new Layer(null, start, sorted.length, extraCount);
+			int extra = 0;
+			for (int i = 0; i < sorted.length; i++) {
+				Node node = sorted[i];
+				layer.fanout[node.getFirstByte()]++;
+				node.copyRawTo(layer.ids, i * Constants.OBJECT_ID_LENGTH);
+				node.tree.copyRawTo(layer.trees, i * Constants.OBJECT_ID_LENGTH);
+				layer.commitTimes[i] = node.commitTime;
+				layer.generations[i] = node.generation;
+				List<Integer> parents = new ArrayList<Integer>();
+				for (ObjectId parentId : node.parents) {
+					Node parent = byId.get(parentId);
+					int position = parent != null ? parent.position
+							: below != null ? below.findPosition(parentId,
+									belowCount) : -1;
+					// parents missing from the repository are left out
+					if (position >= 0)
+						parents.add(Integer.valueOf(position));
+				}
+				layer.parent1[i] = parents.isEmpty() ? NO_PARENT : parents
+						.get(0).intValue();
+				if (parents.size() < 2)
+					layer.parent2[i] = NO_PARENT;
+				else if (parents.size() == 2)
+					layer.parent2[i] = parents.get(1).intValue();
+				else {
+					layer.parent2[i] = EXTRA_EDGES | extra;
+					for (int p = 1; p < parents.size(); p++) {
+						int edge = parents.get(p).intValue();
+						if (p == parents.size() - 1)
+							edge |= LAST_EDGE;
+						layer.extraEdges[extra++] = edge;
+					}
+				}
+			}
+			for (int i = 1; i < 256; i++)
+				layer.fanout[i] += layer.fanout[i - 1];
+			return layer;
+		}
+
+		/**
+		 * @param base
+		 *            whether to write the base format, which does not record
+		 *            the start
+		 */
+		byte[] toBytes(boolean base) throws IOException {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			CRC32 crc = new CRC32();
+			DataOutputStream body = new DataOutputStream(
+					new CheckedOutputStream(buffer, crc));
+			body.writeInt(base ? SIGNATURE : LAYER_SIGNATURE);
+			body.writeInt(VERSION);
+			if (!base)
+				body.writeInt(start);
+			body.writeInt(count());
+			body.writeInt(extraEdges.length);
+			for (int f : fanout)
+				body.writeInt(f);
+			body.write(ids);
+			body.write(trees);
+			for (int i = 0; i < count(); i++) {
+				body.writeInt(commitTimes[i]);
+				body.writeInt(generations[i]);
+				body.writeInt(parent1[i]);
+				body.writeInt(parent2[i]);
+			}
+			for (int edge : extraEdges)
+				body.writeInt(edge);
+			body.flush();
+			new DataOutputStream(buffer).writeLong(crc.getValue());
+			return buffer.toByteArray();
+		}
+
+		/**
+		 * @param file
+		 * @param name
+		 *            name of an appended layer, <code>null</code> for the base
+		 * @param start
+		 *            number of commits in the layers below
+		 */
+		static Layer read(File file, String name, int start)
+				throws IOException {
+			CRC32 crc = new CRC32();
+			try (InputStream in = new BufferedInputStream(new FileInputStream(
+					file))) {
+				DataInputStream body = new DataInputStream(
+						new CheckedInputStream(in, crc));
+				int signature = name == null ? SIGNATURE : LAYER_SIGNATURE;
+				if (body.readInt() != signature || body.readInt() != VERSION)
+					throw new IOException("Unsupported commit graph " + file); //$NON-NLS-1$
+				if (name != null && body.readInt() != start)
+					throw new IOException("Inconsistent commit graph " + file); //$NON-NLS-1$
+				int count = body.readInt();
+				int extraCount = body.readInt();
+				Layer layer = new Layer(name, start, count, extraCount);
+				for (int i = 0; i < 256; i++)
+					layer.fanout[i] = body.readInt();
+				body.readFully(layer.ids);
+				body.readFully(layer.trees);
+				for (int i = 0; i < count; i++) {
+					layer.commitTimes[i] = body.readInt();
+					layer.generations[i] = body.readInt();
+					layer.parent1[i] = body.readInt();
+					layer.parent2[i] = body.readInt();
+				}
+				for (int i = 0; i < extraCount; i++)
+					layer.extraEdges[i] = body.readInt();
+				long expected = crc.getValue();
+				if (new DataInputStream(in).readLong() != expected)
+					throw new IOException("Corrupt commit graph " + file); //$NON-NLS-1$
+				return layer;
+			}
+		}
+	}
+
+	private static class Node extends ObjectId {
+		private static final long serialVersionUID = 1L;
+
+		ObjectId tree;
+
+		int commitTime;
+
+		int generation;
+
+		ObjectId[] parents;
+
+		int position;
+
+		Node(AnyObjectId id) {
+			super(id);
+		}
+	}
+}
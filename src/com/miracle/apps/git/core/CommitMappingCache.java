@@ -0,0 +1,341 @@
+package com.miracle.apps.git.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of commit id to ref name mappings, shared by all
+ * {@link RepositoryUtil} instances.
+ * <p>
+ * Entries are grouped per repository. Each repository has its own lock and
+ * its own LRU bound, so lookups in different repositories never contend. When
+ * more repositories than allowed are cached, the least recently used one is
+ * dropped as a whole. Mappings which found no ref ("negative" entries) expire
+ * after a shorter time than positive ones.
+ */
+public class CommitMappingCache {
+
+	/** Default maximum number of cached repositories */
+	public static final int DEFAULT_MAX_REPOSITORIES = 256;
+
+	/** Default maximum number of cached mappings per repository */
+	public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+	/** Default lifetime of a mapping to a ref, in milliseconds */
+	public static final long DEFAULT_MAX_AGE = 60 * 60 * 1000;
+
+	/** Default lifetime of a mapping which found no ref, in milliseconds */
+	public static final long DEFAULT_NEGATIVE_TTL = 60 * 1000;
+
+	private static final CommitMappingCache defaultCache = new CommitMappingCache(
+			DEFAULT_MAX_REPOSITORIES, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE,
+			DEFAULT_NEGATIVE_TTL);
+
+	/**
+	 * @return the cache used by {@link RepositoryUtil}
+	 */
+	public static CommitMappingCache getDefault() {
+		return defaultCache;
+	}
+
+	private final ConcurrentMap<String, RepositoryMappings> repositories = new ConcurrentHashMap<String, RepositoryMappings>();
+
+	private final int maxRepositories;
+
+	private final int maxEntries;
+
+	private final long maxAge;
+
+	private final long negativeTtl;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final AtomicLong expirations = new AtomicLong();
+
+	/**
+	 * @param maxRepositories
+	 *            maximum number of repositories to keep mappings for
+	 * @param maxEntries
+	 *            maximum number of mappings per repository
+	 * @param maxAge
+	 *            lifetime of a mapping to a ref, in milliseconds
+	 * @param negativeTtl
+	 *            lifetime of a mapping which found no ref, in milliseconds
+	 */
+	public CommitMappingCache(int maxRepositories, int maxEntries,
+			long maxAge, long negativeTtl) {
+		this.maxRepositories = maxRepositories;
+		this.maxEntries = maxEntries;
+		this.maxAge = maxAge;
+		this.negativeTtl = negativeTtl;
+	}
+
+	/**
+	 * Look up a cached mapping.
+	 *
+	 * @param repository
+	 *            key of the repository, e.g. its absolute git directory
+	 * @param generation
+	 *            current generation of the repository's refs; mappings cached
+	 *            for another generation are discarded
+	 * @param commitId
+	 * @return the cached mapping, or <code>null</code> if there is none. The
+	 *         ref name of the mapping may be <code>null</code>.
+	 */
+	public Mapping get(String repository, long generation, String commitId) {
+		RepositoryMappings mappings = repositories.get(repository);
+		if (mappings == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		Mapping mapping = mappings.get(generation, commitId);
+		if (mapping == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return mapping;
+	}
+
+	/**
+	 * Cache a mapping.
+	 *
+	 * @param repository
+	 *            key of the repository, e.g. its absolute git directory
+	 * @param generation
+	 *            generation of the repository's refs the mapping was computed
+	 *            for
+	 * @param commitId
+	 * @param refName
+	 *            the ref, or <code>null</code> if no ref points to the commit
+	 */
+	public void put(String repository, long generation, String commitId,
+			String refName) {
+		RepositoryMappings mappings = repositories.get(repository);
+		if (mappings == null) {
+			RepositoryMappings created = new RepositoryMappings();
+			mappings = repositories.putIfAbsent(repository, created);
+			if (mappings == null) {
+				mappings = created;
+				if (repositories.size() > maxRepositories)
+					evictLeastRecentlyUsed(repository);
+			}
+		}
+		mappings.put(generation, commitId, new Mapping(refName));
+	}
+
+	/**
+	 * Drop all mappings of a repository.
+	 *
+	 * @param repository
+	 *            key of the repository
+	 */
+	public void evict(String repository) {
+		RepositoryMappings removed = repositories.remove(repository);
+		if (removed != null)
+			evictions.addAndGet(removed.size());
+	}
+
+	/**
+	 * Drop all mappings.
+	 */
+	public void clear() {
+		for (String repository : repositories.keySet())
+			evict(repository);
+	}
+
+	/**
+	 * @return a snapshot of the cache statistics
+	 */
+	public Stats getStats() {
+		int size = 0;
+		for (RepositoryMappings mappings : repositories.values())
+			size += mappings.size();
+		return new Stats(hits.get(), misses.get(), evictions.get(),
+				expirations.get(), repositories.size(), size);
+	}
+
+	private void evictLeastRecentlyUsed(String keep) {
+		String oldest = null;
+		long oldestAccess = Long.MAX_VALUE;
+		for (Map.Entry<String, RepositoryMappings> entry : repositories
+				.entrySet()) {
+			if (entry.getKey().equals(keep))
+				continue;
+			long access = entry.getValue().lastAccess;
+			if (access < oldestAccess) {
+				oldestAccess = access;
+				oldest = entry.getKey();
+			}
+		}
+		if (oldest != null)
+			evict(oldest);
+	}
+
+	private class RepositoryMappings {
+		private final LinkedHashMap<String, Mapping> entries = new LinkedHashMap<String, Mapping>(
+				16, 0.75f, true);
+
+		private long generation = -1;
+
+		private volatile long lastAccess = System.nanoTime();
+
+		synchronized Mapping get(long currentGeneration, String commitId) {
+			lastAccess = System.nanoTime();
+			if (generation != currentGeneration) {
+				invalidate(currentGeneration);
+				return null;
+			}
+			Mapping mapping = entries.get(commitId);
+			if (mapping != null && mapping.isExpired()) {
+				entries.remove(commitId);
+				expirations.incrementAndGet();
+				return null;
+			}
+			return mapping;
+		}
+
+		synchronized void put(long currentGeneration, String commitId,
+				Mapping mapping) {
+			lastAccess = System.nanoTime();
+			if (generation != currentGeneration)
+				invalidate(currentGeneration);
+			entries.put(commitId, mapping);
+			if (entries.size() > maxEntries) {
+				Iterator<Mapping> eldest = entries.values().iterator();
+				eldest.next();
+				eldest.remove();
+				evictions.incrementAndGet();
+			}
+		}
+
+		synchronized int size() {
+			return entries.size();
+		}
+
+		private void invalidate(long currentGeneration) {
+			evictions.addAndGet(entries.size());
+			entries.clear();
+			generation = currentGeneration;
+		}
+	}
+
+	/**
+	 * A cached mapping of a commit to a ref.
+	 */
+	public class Mapping {
+		private final String refName;
+
+		private final long created = System.currentTimeMillis();
+
+		Mapping(String refName) {
+			this.refName = refName;
+		}
+
+		/**
+		 * @return the full ref name, or <code>null</code> if no ref was found
+		 *         for the commit
+		 */
+		public String getRefName() {
+			return refName;
+		}
+
+		boolean isExpired() {
+			long ttl = refName != null ? maxAge : negativeTtl;
+			return System.currentTimeMillis() - created > ttl;
+		}
+	}
+
+	/**
+	 * Statistics of a {@link CommitMappingCache}.
+	 */
+	public static class Stats {
+		private final long hitCount;
+
+		private final long missCount;
+
+		private final long evictionCount;
+
+		private final long expirationCount;
+
+		private final int repositoryCount;
+
+		private final int size;
+
+		Stats(long hitCount, long missCount, long evictionCount,
+				long expirationCount, int repositoryCount, int size) {
+			this.hitCount = hitCount;
+			this.missCount = missCount;
+			this.evictionCount = evictionCount;
+			this.expirationCount = expirationCount;
+			this.repositoryCount = repositoryCount;
+			this.size = size;
+		}
+
+		/**
+		 * @return number of lookups which found a mapping
+		 */
+		public long getHitCount() {
+			return hitCount;
+		}
+
+		/**
+		 * @return number of lookups which found no mapping
+		 */
+		public long getMissCount() {
+			return missCount;
+		}
+
+		/**
+		 * @return fraction of lookups which found a mapping
+		 */
+		public double getHitRate() {
+			long total = hitCount + missCount;
+			return total == 0 ? 1.0 : (double) hitCount / total;
+		}
+
+		/**
+		 * @return number of mappings dropped because of size limits, ref
+		 *         changes or explicit eviction
+		 */
+		public long getEvictionCount() {
+			return evictionCount;
+		}
+
+		/**
+		 * @return number of mappings dropped because they were too old
+		 */
+		public long getExpirationCount() {
+			return expirationCount;
+		}
+
+		/**
+		 * @return number of repositories with cached mappings
+		 */
+		public int getRepositoryCount() {
+			return repositoryCount;
+		}
+
+		/**
+		 * @return total number of cached mappings
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		@Override
+		public String toString() {
+			return "hits=" + hitCount + ", misses=" + missCount //$NON-NLS-1$ //$NON-NLS-2$
+					+ ", evictions=" + evictionCount + ", expirations=" //$NON-NLS-1$ //$NON-NLS-2$
+					+ expirationCount + ", repositories=" + repositoryCount //$NON-NLS-1$
+					+ ", size=" + size; //$NON-NLS-1$
+		}
+	}
+}
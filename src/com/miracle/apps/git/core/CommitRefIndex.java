@@ -0,0 +1,368 @@
+package com.miracle.apps.git.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.events.RefsChangedEvent;
+import org.eclipse.jgit.events.RefsChangedListener;
+import org.eclipse.jgit.internal.storage.file.FileSnapshot;
+import org.eclipse.jgit.lib.CheckoutEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.ReflogEntry;
+import org.eclipse.jgit.lib.ReflogReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevTag;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+/**
+ * Reverse index from commit ids to the references pointing at them.
+ * <p>
+ * There is one index per repository. It is built on first use and afterwards
+ * only the references which changed are re-read (tags are peeled once per
+ * change). The index is marked dirty whenever JGit reports a change of the
+ * ref database, and is re-synchronized on the next lookup.
+ *
+ * @see RepositoryUtil#mapCommitToRef(String, boolean)
+ */
+public class CommitRefIndex {
+
+	private static final ConcurrentMap<File, CommitRefIndex> indexes = new ConcurrentHashMap<File, CommitRefIndex>();
+
+	static {
+		Repository.getGlobalListenerList().addRefsChangedListener(
+				new RefsChangedListener() {
+					@Override
+					public void onRefsChanged(RefsChangedEvent event) {
+						CommitRefIndex index = indexes.get(event
+								.getRepository().getDirectory()
+								.getAbsoluteFile());
+						if (index != null)
+							index.dirty = true;
+					}
+				});
+	}
+
+	/**
+	 * @param repository
+	 * @return the shared index of the given repository
+	 */
+	public static CommitRefIndex get(Repository repository) {
+		File key = repository.getDirectory().getAbsoluteFile();
+		CommitRefIndex index = indexes.get(key);
+		if (index == null) {
+			CommitRefIndex created = new CommitRefIndex(repository);
+			index = indexes.putIfAbsent(key, created);
+			if (index == null)
+				index = created;
+		}
+		return index;
+	}
+
+	/**
+	 * Drop the index of the given repository.
+	 *
+	 * @param repository
+	 */
+	public static void remove(Repository repository) {
+		indexes.remove(repository.getDirectory().getAbsoluteFile());
+	}
+
+	/**
+	 * Drop the indexes of all repositories.
+	 */
+	public static void removeAll() {
+		indexes.clear();
+	}
+
+	private final Repository repository;
+
+	private final File headLog;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** ref name to the object id the ref pointed at when last read */
+	private final Map<String, ObjectId> refIds = new HashMap<String, ObjectId>();
+
+	/** ref name to the commit it (possibly after peeling) points at */
+	private final Map<String, ObjectId> refCommits = new HashMap<String, ObjectId>();
+
+	private final Map<ObjectId, CommitRefs> commitRefs = new HashMap<ObjectId, CommitRefs>();
+
+	/** commit id to branches checked out at that commit, newest first */
+	private Map<ObjectId, List<String>> checkouts = new HashMap<ObjectId, List<String>>();
+
+	private volatile FileSnapshot headLogSnapshot = FileSnapshot.DIRTY;
+
+	private volatile boolean dirty = true;
+
+	private volatile long generation;
+
+	private CommitRefIndex(Repository repository) {
+		this.repository = repository;
+		this.headLog = new File(repository.getDirectory(), Constants.LOGS
+				+ '/' + Constants.HEAD);
+	}
+
+	/**
+	 * @return a number which changes whenever the content of this index
+	 *         changes
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Forces the next lookup to re-read the ref database.
+	 */
+	public void refresh() {
+		dirty = true;
+	}
+
+	/**
+	 * Maps a commit to a reference, using the precedence rules documented on
+	 * {@link RepositoryUtil#mapCommitToRef(String, boolean)}.
+	 *
+	 * @param commitId
+	 * @return the full reference name, the branch name of the most recent
+	 *         checkout of this commit, or <code>null</code>
+	 * @throws IOException
+	 */
+	public String mapCommitToRef(ObjectId commitId) throws IOException {
+		update();
+		lock.readLock().lock();
+		try {
+			List<String> branches = checkouts.get(commitId);
+			if (branches != null)
+				for (String branch : branches)
+					if (commitId.equals(resolveShortName(branch)))
+						return branch;
+
+			CommitRefs refs = commitRefs.get(commitId);
+			return refs != null ? refs.best : null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private ObjectId resolveShortName(String name) {
+		for (String prefix : new String[] { "", Constants.R_REFS, //$NON-NLS-1$
+				Constants.R_TAGS, Constants.R_HEADS, Constants.R_REMOTES }) {
+			ObjectId id = refIds.get(prefix + name);
+			if (id != null)
+				return refCommits.containsKey(prefix + name) ? refCommits
+						.get(prefix + name) : id;
+		}
+		return null;
+	}
+
+	/**
+	 * Brings the index up to date if the ref database or the HEAD reflog
+	 * changed.
+	 *
+	 * @throws IOException
+	 */
+	public void update() throws IOException {
+		boolean logModified = headLogSnapshot.isModified(headLog);
+		if (!dirty && !logModified)
+			return;
+
+		lock.writeLock().lock();
+		try {
+			if (logModified)
+				readCheckouts();
+			if (dirty) {
+				dirty = false;
+				try {
+					readRefs();
+				} catch (IOException e) {
+					// read the refs again on the next update
+					dirty = true;
+					throw e;
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void readCheckouts() throws IOException {
+		FileSnapshot snapshot = FileSnapshot.save(headLog);
+		Map<ObjectId, List<String>> result = new HashMap<ObjectId, List<String>>();
+		ReflogReader reflogReader = repository
+				.getReflogReader(Constants.HEAD);
+		if (reflogReader != null) {
+			for (ReflogEntry entry : reflogReader.getReverseEntries()) {
+				CheckoutEntry checkoutEntry = entry.parseCheckout();
+				if (checkoutEntry == null)
+					continue;
+				List<String> branches = result.get(entry.getNewId());
+				if (branches == null) {
+					branches = new ArrayList<String>(1);
+					result.put(entry.getNewId(), branches);
+				}
+				if (!branches.contains(checkoutEntry.getToBranch()))
+					branches.add(checkoutEntry.getToBranch());
+			}
+		}
+		checkouts = result;
+		headLogSnapshot = snapshot;
+		generation++;
+	}
+
+	private void readRefs() throws IOException {
+		Map<String, Ref> refs = repository.getRefDatabase().getRefs(
+				RefDatabase.ALL);
+		boolean changed = false;
+		try (RevWalk rw = new RevWalk(repository)) {
+			for (Iterator<Map.Entry<String, ObjectId>> it = refIds.entrySet()
+					.iterator(); it.hasNext();) {
+				Map.Entry<String, ObjectId> known = it.next();
+				if (!refs.containsKey(known.getKey())) {
+					it.remove();
+					removeRef(known.getKey());
+					changed = true;
+				}
+			}
+			for (Ref ref : refs.values()) {
+				ObjectId id = ref.getObjectId();
+				if (id == null || id.equals(refIds.get(ref.getName())))
+					continue;
+				removeRef(ref.getName());
+				changed = true;
+				// only known once added, a failed ref is retried
+				addRef(rw, ref.getName(), id);
+				refIds.put(ref.getName(), id.copy());
+			}
+		} finally {
+			if (changed)
+				generation++;
+		}
+	}
+
+	private void removeRef(String name) {
+		ObjectId commitId = refCommits.remove(name);
+		if (commitId == null)
+			return;
+		CommitRefs refs = commitRefs.get(commitId);
+		if (refs != null && refs.remove(name))
+			commitRefs.remove(commitId);
+	}
+
+	private void addRef(RevWalk rw, String name, ObjectId id)
+			throws IOException {
+		boolean tag = name.startsWith(Constants.R_TAGS);
+		if (!tag && !name.startsWith(Constants.R_HEADS)
+				&& !name.startsWith(Constants.R_REMOTES))
+			return;
+
+		long timestamp = -1;
+		ObjectId commitId = id;
+		if (tag) {
+			RevObject any;
+			try {
+				any = rw.parseAny(id);
+				if (any instanceof RevTag) {
+					PersonIdent tagger = ((RevTag) any).getTaggerIdent();
+					if (tagger != null)
+						timestamp = tagger.getWhen().getTime();
+					any = rw.peel(any);
+				}
+			} catch (MissingObjectException e) {
+				return;
+			}
+			if (!(any instanceof RevCommit))
+				return;
+			if (timestamp < 0) {
+				RevCommit commit = (RevCommit) any;
+				rw.parseBody(commit);
+				timestamp = commit.getCommitterIdent().getWhen().getTime();
+			}
+			commitId = any.copy();
+		} else
+			commitId = id.copy();
+
+		refCommits.put(name, commitId);
+		CommitRefs refs = commitRefs.get(commitId);
+		if (refs == null) {
+			refs = new CommitRefs();
+			commitRefs.put(commitId, refs);
+		}
+		refs.add(name, timestamp);
+	}
+
+	/**
+	 * The references of one commit with the preferred one precomputed.
+	 */
+	private static class CommitRefs {
+		private final Map<String, Long> tags = new HashMap<String, Long>(1);
+
+		private final TreeSet<String> heads = new TreeSet<String>();
+
+		private final TreeSet<String> remotes = new TreeSet<String>();
+
+		String best;
+
+		void add(String name, long timestamp) {
+			if (name.startsWith(Constants.R_TAGS))
+				tags.put(name, Long.valueOf(timestamp));
+			else if (name.startsWith(Constants.R_HEADS))
+				heads.add(name);
+			else
+				remotes.add(name);
+			best = computeBest();
+		}
+
+		/**
+		 * @param name
+		 * @return true if no references are left
+		 */
+		boolean remove(String name) {
+			tags.remove(name);
+			heads.remove(name);
+			remotes.remove(name);
+			best = computeBest();
+			return best == null;
+		}
+
+		private String computeBest() {
+			if (!tags.isEmpty()) {
+				// the newest tag wins, ties and missing time stamps are
+				// resolved by the highest name
+				String result = null;
+				long resultTime = 0;
+				for (Map.Entry<String, Long> tag : tags.entrySet()) {
+					long time = tag.getValue().longValue();
+					if (result == null || time > resultTime
+							|| time == resultTime
+							&& tag.getKey().compareTo(result) > 0) {
+						result = tag.getKey();
+						resultTime = time;
+					}
+				}
+				return result;
+			}
+			if (!heads.isEmpty())
+				return heads.last();
+			if (!remotes.isEmpty())
+				return remotes.last();
+			return null;
+		}
+	}
+}
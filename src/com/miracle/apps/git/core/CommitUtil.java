@@ -2,27 +2,33 @@ package com.miracle.apps.git.core;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
-import org.eclipse.jgit.errors.IncorrectObjectTypeException;
-import org.eclipse.jgit.errors.MissingObjectException;
-import org.eclipse.jgit.errors.StopWalkException;
+import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdOwnerMap;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.revwalk.filter.RevFilter;
 
 /**
  * Utility class for working with commits.
  */
 public class CommitUtil {
 
+	/** Allowed clock skew between committers, in seconds */
+	private static final int CLOCK_SKEW = 24 * 60 * 60;
+
 	private CommitUtil() {
 		// non instanciable utility class
 	}
@@ -33,29 +39,133 @@ public class CommitUtil {
 	 * @param commits
 	 *            the commits to sort
 	 * @return a new list containing the sorted commits
+	 * @see #topoSort(Collection)
 	 */
 	public static List<RevCommit> sortCommits(Collection<RevCommit> commits) {
-		Map<RevCommit, RevCommit> parentToChild = new HashMap<RevCommit, RevCommit>();
-		RevCommit firstCommit = null;
-		for (RevCommit commit : commits) {
-			RevCommit parentCommit = commit.getParent(0);
-			parentToChild.put(parentCommit, commit);
-			if (!commits.contains(parentCommit))
-				firstCommit = commit;
+		List<RevCommit> sortedCommits = new ArrayList<RevCommit>(
+				commits.size());
+		for (RevCommit commit : topoSort(commits))
+			sortedCommits.add(commit);
+		return sortedCommits;
+	}
+
+	/**
+	 * Orders commits so that every commit comes after those of its parents
+	 * which are part of the collection. Merges and multiple roots are
+	 * supported; a commit's descendants follow it directly where possible, so
+	 * linear series stay together. Duplicates are returned once.
+	 * <p>
+	 * The commits must have been parsed. Sorting takes time linear in the
+	 * number of commits and parent edges; the order is computed as the
+	 * returned iterable is consumed.
+	 *
+	 * @param commits
+	 *            the commits to sort
+	 * @return the commits in parent-first order
+	 */
+	public static Iterable<RevCommit> topoSort(
+			final Collection<RevCommit> commits) {
+		return new Iterable<RevCommit>() {
+			@Override
+			public Iterator<RevCommit> iterator() {
+				return new TopoSortIterator(commits);
+			}
+		};
+	}
+
+	private static class TopoSortIterator implements Iterator<RevCommit> {
+		private final TopoNode[] nodes;
+
+		/** children of node i are childList[childStart[i]..childStart[i+1]) */
+		private final int[] childStart;
+
+		private final int[] childList;
+
+		/** stack of nodes whose parents have all been returned */
+		private final int[] ready;
+
+		private int readyCount;
+
+		TopoSortIterator(Collection<RevCommit> commits) {
+			ObjectIdOwnerMap<TopoNode> index = new ObjectIdOwnerMap<TopoNode>();
+			TopoNode[] all = new TopoNode[commits.size()];
+			int count = 0;
+			for (RevCommit commit : commits)
+				if (!index.contains(commit)) {
+					TopoNode node = new TopoNode(commit, count);
+					index.add(node);
+					all[count++] = node;
+				}
+			nodes = count == all.length ? all : Arrays.copyOf(all, count);
+
+			// count the children per node, then fill them in
+			int edges = 0;
+			childStart = new int[count + 1];
+			for (TopoNode node : nodes)
+				for (RevCommit parent : node.commit.getParents()) {
+					TopoNode parentNode = index.get(parent);
+					if (parentNode != null && parentNode != node) {
+						childStart[parentNode.position + 1]++;
+						node.pendingParents++;
+						edges++;
+					}
+				}
+			for (int i = 0; i < count; i++)
+				childStart[i + 1] += childStart[i];
+			childList = new int[edges];
+			int[] next = Arrays.copyOf(childStart, count);
+			for (TopoNode node : nodes)
+				for (RevCommit parent : node.commit.getParents()) {
+					TopoNode parentNode = index.get(parent);
+					if (parentNode != null && parentNode != node)
+						childList[next[parentNode.position]++] = node.position;
+				}
+
+			// roots are pushed in reverse so the first one is returned first
+			ready = new int[count];
+			for (int i = count - 1; i >= 0; i--)
+				if (nodes[i].pendingParents == 0)
+					ready[readyCount++] = i;
 		}
 
-		List<RevCommit> sortedCommits = new ArrayList<RevCommit>();
-		sortedCommits.add(firstCommit);
-		RevCommit parentCommit = firstCommit;
-		for (;;) {
-			RevCommit childCommit = parentToChild.get(parentCommit);
-			if (childCommit == null)
-				break;
-			sortedCommits.add(childCommit);
-			parentCommit = childCommit;
+		@Override
+		public boolean hasNext() {
+			return readyCount > 0;
 		}
 
-		return sortedCommits;
+		@Override
+		public RevCommit next() {
+			if (readyCount == 0)
+				throw new NoSuchElementException();
+			int position = ready[--readyCount];
+			for (int i = childStart[position + 1] - 1; i >= childStart[position]; i--) {
+				TopoNode child = nodes[childList[i]];
+				if (--child.pendingParents == 0)
+					ready[readyCount++] = child.position;
+			}
+			return nodes[position].commit;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static class TopoNode extends ObjectIdOwnerMap.Entry {
+		private static final long serialVersionUID = 1L;
+
+		final RevCommit commit;
+
+		final int position;
+
+		int pendingParents;
+
+		TopoNode(RevCommit commit, int position) {
+			super(commit);
+			this.commit = commit;
+			this.position = position;
+		}
 	}
 
 	/**
@@ -91,34 +201,126 @@ public class CommitUtil {
 	public static boolean areCommitsInCurrentBranch(
 			Collection<RevCommit> commits, Repository repository)
 			throws IOException {
-		try (RevWalk walk = new RevWalk(repository)) {
-			ObjectId headCommitId = repository.resolve(Constants.HEAD);
-			RevCommit headCommit = walk.parseCommit(headCommitId);
+		return !getCommitsInCurrentBranch(commits, repository).containsValue(
+				Boolean.FALSE);
+	}
+
+	/**
+	 * Checks for each of the commits whether it is reachable from the current
+	 * HEAD.
+	 *
+	 * @param commits
+	 *            the commits to check
+	 * @param repository
+	 *            the repository
+	 * @return map from each of the given commits to whether it is reachable
+	 *         from HEAD, in iteration order of the given commits
+	 * @throws IOException
+	 *             if there is an I/O error
+	 */
+	public static Map<RevCommit, Boolean> getCommitsInCurrentBranch(
+			Collection<RevCommit> commits, Repository repository)
+			throws IOException {
+		ObjectId headCommitId = repository.resolve(Constants.HEAD);
+		return getReachableCommits(commits, headCommitId, repository);
+	}
 
-			for (final RevCommit commit : commits) {
-				walk.reset();
-				walk.markStart(headCommit);
+	/**
+	 * Checks for each of the commits whether it is reachable from the given
+	 * tip, using a single walk.
+	 * <p>
+	 * If the repository has a {@link CommitGraph} containing the tip, the
+	 * graph is walked, pruned by generation numbers. Otherwise the walk starts
+	 * at the tip and ends as soon as all commits have been found, or when it
+	 * reached commits which are more than one day older than the oldest
+	 * commit not found yet (allowing for clock skew between committers).
+	 *
+	 * @param commits
+	 *            the commits to check
+	 * @param tip
+	 *            the commit to start the walk at, may be <code>null</code>
+	 *            for an unborn branch
+	 * @param repository
+	 *            the repository
+	 * @return map from each of the given commits to whether it is reachable
+	 *         from the tip, in iteration order of the given commits
+	 * @throws IOException
+	 *             if there is an I/O error
+	 */
+	public static Map<RevCommit, Boolean> getReachableCommits(
+			Collection<RevCommit> commits, AnyObjectId tip,
+			Repository repository) throws IOException {
+		Map<RevCommit, Boolean> result = new LinkedHashMap<RevCommit, Boolean>();
+		for (RevCommit commit : commits)
+			result.put(commit, Boolean.FALSE);
+		if (tip == null || commits.isEmpty())
+			return result;
 
-				RevFilter revFilter = new RevFilter() {
-					@Override
-					public boolean include(RevWalk walker, RevCommit cmit)
-							throws StopWalkException, MissingObjectException,
-							IncorrectObjectTypeException, IOException {
+		CommitGraph graph = CommitGraph.get(repository);
+		int tipPosition = graph != null ? graph.findPosition(tip) : -1;
+		if (tipPosition >= 0) {
+			// all ancestors of a commit in the graph are in the graph too
+			List<RevCommit> inGraph = new ArrayList<RevCommit>();
+			List<Integer> targets = new ArrayList<Integer>();
+			for (RevCommit commit : commits) {
+				int position = graph.findPosition(commit);
+				if (position >= 0) {
+					inGraph.add(commit);
+					targets.add(Integer.valueOf(position));
+				}
+			}
+			int[] targetArray = new int[targets.size()];
+			for (int i = 0; i < targetArray.length; i++)
+				targetArray[i] = targets.get(i).intValue();
+			boolean[] reachable = graph.findReachable(
+					new int[] { tipPosition }, targetArray);
+			for (int i = 0; i < reachable.length; i++)
+				if (reachable[i])
+					result.put(inGraph.get(i), Boolean.TRUE);
+			return result;
+		}
 
-						return cmit.equals(commit);
-					}
+		try (RevWalk walk = new RevWalk(repository)) {
+			walk.setRetainBody(false);
+			RevFlag candidate = walk.newFlag("CANDIDATE"); //$NON-NLS-1$
+			RevFlag reached = walk.newFlag("REACHED"); //$NON-NLS-1$
 
-					@Override
-					public RevFilter clone() {
-						return null;
-					}
-				};
-				walk.setRevFilter(revFilter);
+			List<RevCommit> pending = new ArrayList<RevCommit>(commits.size());
+			for (RevCommit commit : commits) {
+				RevCommit c = walk.parseCommit(commit);
+				if (!c.has(candidate)) {
+					c.add(candidate);
+					pending.add(c);
+				}
+			}
+			// oldest first, so that the oldest pending commit bounds the walk
+			Collections.sort(pending, new Comparator<RevCommit>() {
+				@Override
+				public int compare(RevCommit c1, RevCommit c2) {
+					return c1.getCommitTime() - c2.getCommitTime();
+				}
+			});
 
-				if (walk.next() == null)
-					return false;
+			walk.markStart(walk.parseCommit(tip));
+			int remaining = pending.size();
+			int oldest = 0;
+			RevCommit c;
+			while (remaining > 0 && (c = walk.next()) != null) {
+				if (c.has(candidate)) {
+					c.add(reached);
+					remaining--;
+					while (oldest < pending.size()
+							&& pending.get(oldest).has(reached))
+						oldest++;
+				} else if ((long) c.getCommitTime() + CLOCK_SKEW < pending
+						.get(oldest).getCommitTime())
+					break;
 			}
-			return true;
+
+			for (Map.Entry<RevCommit, Boolean> entry : result.entrySet())
+				if (walk.lookupCommit(entry.getKey()).has(reached))
+					entry.setValue(Boolean.TRUE);
 		}
+		return result;
 	}
 }
@@ -0,0 +1,251 @@
+package com.miracle.apps.git.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.util.IO;
+import org.eclipse.jgit.util.io.EolCanonicalizingInputStream;
+
+/**
+ * Computes the blob ids of working tree files on all cores.
+ * <p>
+ * The files are split recursively over a shared, bounded
+ * {@link ForkJoinPool}. Small files are read into memory once; files of at
+ * least {@link #MMAP_THRESHOLD} bytes are memory mapped and digested without
+ * copying. If an inserter is given, blobs missing from the repository are
+ * written through it; the inserter is not thread safe and is used under its
+ * lock.
+ */
+public class ContentHasher {
+
+	/** Files of at least this size are memory mapped */
+	public static final int MMAP_THRESHOLD = 1024 * 1024;
+
+	/** Number of files below which a task is not split any further */
+	private static final int MIN_SPLIT = 8;
+
+	private static final ForkJoinPool pool = new ForkJoinPool(Runtime
+			.getRuntime().availableProcessors());
+
+	private final Repository repository;
+
+	private final ObjectInserter inserter;
+
+	private final boolean canonicalize;
+
+	private final AtomicLong hashedBytes = new AtomicLong();
+
+	/**
+	 * @param repository
+	 * @param inserter
+	 *            inserter for the blobs which are not in the repository yet,
+	 *            or <code>null</code> to only compute the ids
+	 * @param canonicalize
+	 *            <code>true</code> to convert CRLF line endings of text files
+	 *            to LF before hashing, as with core.autocrlf
+	 */
+	public ContentHasher(Repository repository, ObjectInserter inserter,
+			boolean canonicalize) {
+		this.repository = repository;
+		this.inserter = inserter;
+		this.canonicalize = canonicalize;
+	}
+
+	/**
+	 * Hash the given files.
+	 *
+	 * @param files
+	 * @return the blob id of each file, in the order of <code>files</code>
+	 * @throws IOException
+	 *             if a file cannot be read or a blob cannot be inserted
+	 */
+	public ObjectId[] hash(List<File> files) throws IOException {
+		ObjectId[] ids = new ObjectId[files.size()];
+		if (files.isEmpty())
+			return ids;
+		AtomicReference<IOException> failure = new AtomicReference<IOException>();
+		HashAction root = new HashAction(files, ids, 0, ids.length, failure);
+		if (files.size() <= MIN_SPLIT)
+			root.compute();
+		else
+			pool.invoke(root);
+		if (failure.get() != null)
+			throw failure.get();
+		return ids;
+	}
+
+	/**
+	 * @return number of bytes hashed so far, after line ending conversion
+	 */
+	public long getHashedBytes() {
+		return hashedBytes.get();
+	}
+
+	private class HashAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<File> files;
+
+		private final ObjectId[] ids;
+
+		private final int from;
+
+		private final int to;
+
+		private final AtomicReference<IOException> failure;
+
+		HashAction(List<File> files, ObjectId[] ids, int from, int to,
+				AtomicReference<IOException> failure) {
+			this.files = files;
+			this.ids = ids;
+			this.from = from;
+			this.to = to;
+			this.failure = failure;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > MIN_SPLIT) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new HashAction(files, ids, from, mid, failure),
+						new HashAction(files, ids, mid, to, failure));
+				return;
+			}
+			ObjectInserter.Formatter formatter = new ObjectInserter.Formatter();
+			try (ObjectReader reader = repository.newObjectReader()) {
+				for (int i = from; i < to && failure.get() == null; i++)
+					ids[i] = hashFile(files.get(i), reader, formatter);
+			} catch (IOException e) {
+				failure.compareAndSet(null, e);
+			}
+		}
+	}
+
+	private ObjectId hashFile(File file, ObjectReader reader,
+			ObjectInserter.Formatter formatter) throws IOException {
+		long length = file.length();
+		if (length < MMAP_THRESHOLD) {
+			ByteBuffer content;
+			try (InputStream in = open(new FileInputStream(file))) {
+				content = IO.readWholeStream(in, (int) length);
+			}
+			byte[] data = content.array();
+			int size = content.limit();
+			ObjectId id = formatter.idFor(Constants.OBJ_BLOB, data, 0, size);
+			if (isMissing(reader, id))
+				synchronized (inserter) {
+					inserter.insert(Constants.OBJ_BLOB, data, 0, size);
+				}
+			hashedBytes.addAndGet(size);
+			return id;
+		}
+
+		try (FileInputStream in = new FileInputStream(file);
+				FileChannel channel = in.getChannel()) {
+			// a mapping is limited to 2 GiB, larger files are read twice
+			MappedByteBuffer map = length <= Integer.MAX_VALUE ? channel.map(
+					MapMode.READ_ONLY, 0, length) : null;
+			ObjectId id;
+			if (map != null && !canonicalize)
+				id = digest(map, length);
+			else {
+				if (canonicalize)
+					try (InputStream content = open(file, map)) {
+						length = skipAll(content);
+					}
+				try (InputStream content = open(file, map)) {
+					id = formatter.idFor(Constants.OBJ_BLOB, length, content);
+				}
+			}
+			if (isMissing(reader, id))
+				synchronized (inserter) {
+					try (InputStream content = open(file, map)) {
+						inserter.insert(Constants.OBJ_BLOB, length, content);
+					}
+				}
+			hashedBytes.addAndGet(length);
+			return id;
+		}
+	}
+
+	private boolean isMissing(ObjectReader reader, ObjectId id)
+			throws IOException {
+		return inserter != null && !reader.has(id);
+	}
+
+	private InputStream open(File file, MappedByteBuffer map)
+			throws IOException {
+		return open(map != null ? new MappedInputStream(map.duplicate())
+				: new FileInputStream(file));
+	}
+
+	private InputStream open(InputStream raw) {
+		return canonicalize ? new EolCanonicalizingInputStream(raw, true) : raw;
+	}
+
+	private static ObjectId digest(ByteBuffer content, long length) {
+		MessageDigest md = Constants.newMessageDigest();
+		md.update(Constants.encodedTypeString(Constants.OBJ_BLOB));
+		md.update((byte) ' ');
+		md.update(Constants.encodeASCII(length));
+		md.update((byte) 0);
+		md.update(content.duplicate());
+		return ObjectId.fromRaw(md.digest());
+	}
+
+	private static long skipAll(InputStream in) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		long length = 0;
+		int n;
+		while ((n = in.read(buffer)) > 0)
+			length += n;
+		return length;
+	}
+
+	/** Reads a memory mapped file */
+	private static class MappedInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		MappedInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package com.miracle.apps.git.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.eclipse.jgit.internal.storage.file.FileSnapshot;
+import org.eclipse.jgit.internal.storage.file.LockFile;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.util.FS;
+import org.eclipse.jgit.util.IO;
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * Files of an on-disk index which grows by appending layers.
+ * <p>
+ * The base file holds most of the index. The layers appended on top of it
+ * are listed, oldest first, in the chain file <code>&lt;base&gt;-chain</code>,
+ * one file name per line. A layer is named after the SHA-1 of its content and
+ * never changes once written, so readers can keep the layers they have
+ * already loaded when the chain changes.
+ */
+class IndexLayers {
+
+	/**
+	 * A new layer is merged with the layer below it while it has more than
+	 * 1/MERGE_FACTOR of that layer's entries, which keeps the number of layers
+	 * logarithmic in the size of the index.
+	 */
+	static final int MERGE_FACTOR = 2;
+
+	private final File base;
+
+	private final File chain;
+
+	private final FS fs;
+
+	/**
+	 * @param base
+	 *            the base file of the index
+	 * @param fs
+	 */
+	IndexLayers(File base, FS fs) {
+		this.base = base;
+		this.chain = new File(base.getParentFile(), base.getName() + "-chain"); //$NON-NLS-1$
+		this.fs = fs;
+	}
+
+	File getBase() {
+		return base;
+	}
+
+	File getChain() {
+		return chain;
+	}
+
+	File getLayer(String name) {
+		return new File(base.getParentFile(), name);
+	}
+
+	/**
+	 * @return a snapshot of the chain file, to be taken before reading it
+	 */
+	FileSnapshot snapshotChain() {
+		return chain.exists() ? FileSnapshot.save(chain)
+				: FileSnapshot.MISSING_FILE;
+	}
+
+	/**
+	 * @return the names of the layer files, oldest first
+	 * @throws IOException
+	 */
+	List<String> readChain() throws IOException {
+		List<String> names = new ArrayList<String>();
+		if (!chain.exists())
+			return names;
+		byte[] content = IO.readFully(chain);
+		int ptr = 0;
+		while (ptr < content.length) {
+			int end = RawParseUtils.nextLF(content, ptr);
+			String name = RawParseUtils.decode(content, ptr, end).trim();
+			if (name.length() > 0)
+				names.add(name);
+			ptr = end;
+		}
+		return names;
+	}
+
+	/**
+	 * Replace the chain file.
+	 *
+	 * @param names
+	 *            the names of the layer files, oldest first
+	 * @return the snapshot of the written chain file
+	 * @throws IOException
+	 */
+	FileSnapshot writeChain(List<String> names) throws IOException {
+		if (names.isEmpty()) {
+			if (chain.exists() && !chain.delete())
+				throw new IOException("Cannot delete " + chain); //$NON-NLS-1$
+			return FileSnapshot.MISSING_FILE;
+		}
+		StringBuilder content = new StringBuilder();
+		for (String name : names)
+			content.append(name).append('\n');
+		return write(chain, Constants.encode(content.toString()));
+	}
+
+	/**
+	 * Replace the base file.
+	 *
+	 * @param content
+	 * @return the snapshot of the written file
+	 * @throws IOException
+	 */
+	FileSnapshot writeBase(byte[] content) throws IOException {
+		return write(base, content);
+	}
+
+	/**
+	 * Write a layer file, unless a layer with the same content exists.
+	 *
+	 * @param content
+	 * @return the name of the layer file
+	 * @throws IOException
+	 */
+	String writeLayer(byte[] content) throws IOException {
+		MessageDigest md = Constants.newMessageDigest();
+		String name = base.getName() + '-'
+				+ ObjectId.fromRaw(md.digest(content)).name();
+		File file = getLayer(name);
+		if (!file.exists())
+			write(file, content);
+		return name;
+	}
+
+	/**
+	 * Delete layer files which are no longer in the chain. Failures are
+	 * ignored, a reader may still have a file open.
+	 *
+	 * @param names
+	 */
+	void deleteLayers(Collection<String> names) {
+		for (String name : names)
+			getLayer(name).delete();
+	}
+
+	private FileSnapshot write(File file, byte[] content) throws IOException {
+		File dir = file.getParentFile();
+		if (!dir.exists() && !dir.mkdirs())
+			throw new IOException("Cannot create directory " + dir); //$NON-NLS-1$
+		LockFile lock = new LockFile(file, fs);
+		if (!lock.lock())
+			throw new IOException("Cannot lock " + file); //$NON-NLS-1$
+		try {
+			lock.setNeedSnapshot(true);
+			lock.write(content);
+			if (!lock.commit())
+				throw new IOException("Cannot commit " + file); //$NON-NLS-1$
+		} finally {
+			lock.unlock();
+		}
+		return lock.getCommitSnapshot();
+	}
+}
@@ -0,0 +1,152 @@
+package com.miracle.apps.git.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.internal.storage.file.FileSnapshot;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Shares one parsed {@link DirCache} per repository index file.
+ * <p>
+ * The index is only parsed again when the file on disk changed since it was
+ * last read, judged by its modification time, size and file key (inode on
+ * most platforms). The returned {@link DirCache} instances are shared between
+ * callers and threads and must be treated as read-only.
+ * <p>
+ * The cache is bounded by the total number of index entries it holds, which
+ * is roughly proportional to its memory use. When the bound is exceeded the
+ * least recently used indexes are dropped; the most recently read index is
+ * always kept.
+ */
+public class IndexSnapshotCache {
+
+	/** Maximum total number of index entries kept, about 130 MB */
+	public static final int MAX_ENTRIES = 1000 * 1000;
+
+	/** access ordered, the least recently used index comes first */
+	private static final LinkedHashMap<File, IndexSnapshot> snapshots = new LinkedHashMap<File, IndexSnapshot>(
+			16, 0.75f, true);
+
+	/** number of index entries of all cached snapshots */
+	private static long entryCount;
+
+	private IndexSnapshotCache() {
+		// non instanciable utility class
+	}
+
+	/**
+	 * Get the current index of the given repository, re-reading the index file
+	 * only if it changed since the last call.
+	 *
+	 * @param repository
+	 *            the repository whose index should be read
+	 * @return a read-only {@link DirCache}, never <code>null</code>
+	 * @throws IOException
+	 *             if the index file could not be read
+	 */
+	public static DirCache get(Repository repository) throws IOException {
+		File indexFile = repository.getIndexFile().getAbsoluteFile();
+		IndexSnapshot current;
+		synchronized (snapshots) {
+			current = snapshots.get(indexFile);
+		}
+		if (current != null && !current.isModified(indexFile))
+			return current.cache;
+
+		// take the snapshot before reading so that a concurrent write is
+		// detected on the next call
+		IndexSnapshot fresh = new IndexSnapshot(indexFile);
+		fresh.cache = DirCache.read(indexFile, repository.getFS());
+		synchronized (snapshots) {
+			removed(snapshots.put(indexFile, fresh));
+			entryCount += fresh.cache.getEntryCount();
+			trim(indexFile);
+		}
+		return fresh.cache;
+	}
+
+	/**
+	 * Drop the cached index of the given repository.
+	 *
+	 * @param repository
+	 */
+	public static void invalidate(Repository repository) {
+		if (repository.isBare())
+			return;
+		File indexFile = repository.getIndexFile().getAbsoluteFile();
+		synchronized (snapshots) {
+			removed(snapshots.remove(indexFile));
+		}
+	}
+
+	/**
+	 * Drop all cached indexes.
+	 */
+	public static void clear() {
+		synchronized (snapshots) {
+			snapshots.clear();
+			entryCount = 0;
+		}
+	}
+
+	/** Must be called while holding the lock of <code>snapshots</code> */
+	private static void removed(IndexSnapshot snapshot) {
+		if (snapshot != null)
+			entryCount -= snapshot.cache.getEntryCount();
+	}
+
+	/** Must be called while holding the lock of <code>snapshots</code> */
+	private static void trim(File keep) {
+		for (Iterator<Map.Entry<File, IndexSnapshot>> it = snapshots
+				.entrySet().iterator(); entryCount > MAX_ENTRIES
+				&& it.hasNext();) {
+			Map.Entry<File, IndexSnapshot> eldest = it.next();
+			if (eldest.getKey().equals(keep))
+				continue;
+			removed(eldest.getValue());
+			it.remove();
+		}
+	}
+
+	private static class IndexSnapshot {
+		private final FileSnapshot snapshot;
+
+		private final long length;
+
+		private final Object fileKey;
+
+		private DirCache cache;
+
+		IndexSnapshot(File indexFile) {
+			this.snapshot = FileSnapshot.save(indexFile);
+			this.length = indexFile.length();
+			this.fileKey = fileKey(indexFile);
+		}
+
+		boolean isModified(File indexFile) {
+			if (snapshot.isModified(indexFile))
+				return true;
+			if (length != indexFile.length())
+				return true;
+			Object key = fileKey(indexFile);
+			return key == null ? fileKey != null : !key.equals(fileKey);
+		}
+
+		private static Object fileKey(File file) {
+			try {
+				return Files.readAttributes(file.toPath(),
+						BasicFileAttributes.class).fileKey();
+			} catch (IOException e) {
+				// missing index file, or no file key support
+				return null;
+			}
+		}
+	}
+}
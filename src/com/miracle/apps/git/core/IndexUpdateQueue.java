@@ -0,0 +1,115 @@
+package com.miracle.apps.git.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Runs incremental updates of the on-disk indexes ({@link CommitGraph},
+ * {@link ChangedPathIndex}) on a background thread, so that the operations
+ * which change refs do not wait for them.
+ * <p>
+ * Updates of the same index file which are queued at the same time are
+ * coalesced into one. The repository is leased from the default
+ * {@link RepositoryPool} while the update runs, so it does not matter whether
+ * the caller has closed its repository in the meantime.
+ */
+class IndexUpdateQueue {
+
+	/** An incremental update of one index */
+	interface Update {
+		/**
+		 * @param repository
+		 * @param tips
+		 *            the new commits (or tags) to add, with their history
+		 * @throws IOException
+		 */
+		void run(Repository repository, List<ObjectId> tips)
+				throws IOException;
+	}
+
+	private static final ExecutorService executor = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "IndexUpdateQueue"); //$NON-NLS-1$
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/** updates which have not started yet, by index file */
+	private static final Map<File, Pending> pending = new HashMap<File, Pending>();
+
+	private IndexUpdateQueue() {
+		// non instanciable utility class
+	}
+
+	/**
+	 * @param index
+	 *            the index file, which identifies the update
+	 * @param repository
+	 * @param tips
+	 * @param update
+	 * @return the scheduled update
+	 */
+	static Future<?> submit(File index, Repository repository,
+			Collection<? extends AnyObjectId> tips, Update update) {
+		synchronized (pending) {
+			Pending p = pending.get(index);
+			if (p == null) {
+				p = new Pending(index, repository.getDirectory(), update);
+				pending.put(index, p);
+				p.future = executor.submit(p);
+			}
+			for (AnyObjectId tip : tips)
+				p.tips.add(tip.copy());
+			return p.future;
+		}
+	}
+
+	private static class Pending implements Runnable {
+		final File index;
+
+		final File gitDir;
+
+		final Update update;
+
+		final List<ObjectId> tips = new ArrayList<ObjectId>();
+
+		Future<?> future;
+
+		Pending(File index, File gitDir, Update update) {
+			this.index = index;
+			this.gitDir = gitDir;
+			this.update = update;
+		}
+
+		@Override
+		public void run() {
+			List<ObjectId> toAdd;
+			synchronized (pending) {
+				pending.remove(index);
+				toAdd = new ArrayList<ObjectId>(tips);
+			}
+			try (RepositoryPool.Lease lease = RepositoryPool.getDefault()
+					.acquire(gitDir)) {
+				update.run(lease.getRepository(), toAdd);
+			} catch (IOException e) {
+				// ignore here, the index is just not updated
+			}
+		}
+	}
+}
@@ -0,0 +1,614 @@
+package com.miracle.apps.git.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+
+/**
+ * Memoizing merge base computation.
+ * <p>
+ * The merge base of two commits never changes, so results are cached per
+ * repository and unordered pair of commit ids, bounded by LRU eviction.
+ * {@link #compare(Repository, AnyObjectId, List)} computes the merge bases of
+ * one commit against many others together with ahead/behind counts in a
+ * single walk, and caches those as well.
+ * <p>
+ * If the repository has a {@link CommitGraph} containing all commits involved,
+ * the walk is ordered by generation numbers and its counts are exact.
+ * Otherwise it is ordered by commit time and, like
+ * <code>git rev-list --count</code>, continues a few commits past the point
+ * where nothing interesting is left, to tolerate clock skew.
+ */
+public class MergeBaseCache {
+
+	/** Default maximum number of cached commit pairs */
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	/** Commits walked after only uninteresting commits are left */
+	private static final int SLOP = 5;
+
+	private static final MergeBaseCache defaultCache = new MergeBaseCache(
+			DEFAULT_MAX_ENTRIES);
+
+	/**
+	 * @return the cache used by {@link RevUtils}
+	 */
+	public static MergeBaseCache getDefault() {
+		return defaultCache;
+	}
+
+	private final int maxEntries;
+
+	/** access ordered, the least recently used pair comes first */
+	private final LinkedHashMap<Key, CachedPair> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxEntries
+	 *            maximum number of cached commit pairs
+	 */
+	public MergeBaseCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<Key, CachedPair>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CachedPair> eldest) {
+				return size() > MergeBaseCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Get the merge base of two commits. If there is more than one, the most
+	 * recent one is returned.
+	 *
+	 * @param repository
+	 * @param commit1
+	 * @param commit2
+	 * @return the merge base, or <code>null</code> if the commits have no
+	 *         common history
+	 * @throws IOException
+	 */
+	public ObjectId getMergeBase(Repository repository, AnyObjectId commit1,
+			AnyObjectId commit2) throws IOException {
+		Key key = new Key(repository, commit1, commit2);
+		CachedPair entry = lookup(key);
+		if (entry != null)
+			return entry.mergeBase;
+
+		ObjectId mergeBase = computeMergeBase(repository, commit1, commit2);
+		synchronized (entries) {
+			// keep an entry with counts computed in the meantime
+			if (!entries.containsKey(key))
+				entries.put(key, new CachedPair(mergeBase, -1, -1));
+		}
+		return mergeBase;
+	}
+
+	/**
+	 * Compare a commit with many others, e.g. a branch with all other
+	 * branches. Pairs which are not cached yet are computed in a single walk.
+	 *
+	 * @param repository
+	 * @param commit
+	 * @param others
+	 * @return one comparison per element of <code>others</code>, in the same
+	 *         order
+	 * @throws IOException
+	 */
+	public List<Comparison> compare(Repository repository, AnyObjectId commit,
+			List<? extends AnyObjectId> others) throws IOException {
+		Comparison[] result = new Comparison[others.size()];
+		List<ObjectId> missing = new ArrayList<ObjectId>();
+		List<Integer> missingIndexes = new ArrayList<Integer>();
+		for (int i = 0; i < result.length; i++) {
+			AnyObjectId other = others.get(i);
+			Key key = new Key(repository, commit, other);
+			CachedPair entry = lookup(key);
+			if (entry != null && entry.ahead >= 0)
+				result[i] = entry.toComparison(key, commit, other);
+			else {
+				missing.add(other.copy());
+				missingIndexes.add(Integer.valueOf(i));
+			}
+		}
+
+		if (!missing.isEmpty()) {
+			CachedPair[] computed = walk(repository, commit, missing);
+			synchronized (entries) {
+				for (int i = 0; i < computed.length; i++) {
+					ObjectId other = missing.get(i);
+					Key key = new Key(repository, commit, other);
+					CachedPair entry = computed[i].orient(key, commit);
+					entries.put(key, entry);
+					result[missingIndexes.get(i).intValue()] = entry
+							.toComparison(key, commit, other);
+				}
+			}
+		}
+
+		List<Comparison> list = new ArrayList<Comparison>(result.length);
+		for (Comparison comparison : result)
+			list.add(comparison);
+		return list;
+	}
+
+	/**
+	 * Drop the cached pairs of a repository.
+	 *
+	 * @param repository
+	 */
+	public void remove(Repository repository) {
+		String key = repository.getDirectory().getAbsolutePath();
+		synchronized (entries) {
+			for (Iterator<Key> it = entries.keySet().iterator(); it.hasNext();)
+				if (it.next().repository.equals(key))
+					it.remove();
+		}
+	}
+
+	/**
+	 * Drop all cached pairs.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return number of cached commit pairs
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return number of lookups answered from the cache
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of lookups which had to walk commits
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	private CachedPair lookup(Key key) {
+		CachedPair entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+		if (entry != null)
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+		return entry;
+	}
+
+	private static ObjectId computeMergeBase(Repository repository,
+			AnyObjectId commit1, AnyObjectId commit2) throws IOException {
+		CommitGraph graph = CommitGraph.get(repository);
+		if (graph != null) {
+			int pos1 = graph.findPosition(commit1);
+			int pos2 = graph.findPosition(commit2);
+			if (pos1 >= 0 && pos2 >= 0) {
+				int[] bases = graph.findMergeBases(pos1, pos2);
+				return bases.length > 0 ? graph.getObjectId(bases[0]) : null;
+			}
+		}
+
+		try (RevWalk rw = new RevWalk(repository)) {
+			rw.setRetainBody(false);
+			rw.setRevFilter(RevFilter.MERGE_BASE);
+			rw.markStart(rw.lookupCommit(commit2));
+			rw.markStart(rw.lookupCommit(commit1));
+			RevCommit result = rw.next();
+			return result != null ? result.copy() : null;
+		}
+	}
+
+	/**
+	 * @return one entry per other commit, with the counts relative to
+	 *         <code>commit</code> (ahead: only reachable from commit)
+	 */
+	private static CachedPair[] walk(Repository repository, AnyObjectId commit,
+			List<ObjectId> others) throws IOException {
+		CommitGraph graph = CommitGraph.get(repository);
+		if (graph != null) {
+			int start = graph.findPosition(commit);
+			int[] tips = new int[others.size()];
+			boolean complete = start >= 0;
+			for (int i = 0; complete && i < tips.length; i++) {
+				tips[i] = graph.findPosition(others.get(i));
+				complete = tips[i] >= 0;
+			}
+			if (complete) {
+				GraphWalk walk = new GraphWalk(graph, tips.length);
+				Node[] tipNodes = new Node[tips.length];
+				for (int i = 0; i < tips.length; i++)
+					tipNodes[i] = walk.node(tips[i]);
+				return walk.run(walk.node(start), tipNodes);
+			}
+		}
+
+		try (RevWalk rw = new RevWalk(repository)) {
+			rw.setRetainBody(false);
+			CommitWalk walk = new CommitWalk(rw, others.size());
+			Node[] tipNodes = new Node[others.size()];
+			for (int i = 0; i < tipNodes.length; i++)
+				tipNodes[i] = walk.node(rw.parseCommit(others.get(i)));
+			return walk.run(walk.node(rw.parseCommit(commit)), tipNodes);
+		}
+	}
+
+	/**
+	 * A commit visited by a {@link Walk}. Bit 0 marks commits reachable from
+	 * the start, bit 1 + i commits reachable from other i, and bit 1 + n + i
+	 * commits reachable from a common ancestor of the start and other i
+	 * (which therefore are no merge base).
+	 */
+	private static abstract class Node {
+		final long priority;
+
+		final BitSet bits = new BitSet();
+
+		boolean queued;
+
+		boolean visited;
+
+		Node(long priority) {
+			this.priority = priority;
+		}
+
+		abstract ObjectId getId();
+	}
+
+	private static abstract class Walk {
+		private final int count;
+
+		private final int fullCount;
+
+		private final boolean exact;
+
+		private final PriorityQueue<Node> queue = new PriorityQueue<Node>(64,
+				new Comparator<Node>() {
+					@Override
+					public int compare(Node n1, Node n2) {
+						return n1.priority < n2.priority ? 1
+								: n1.priority > n2.priority ? -1 : 0;
+					}
+				});
+
+		private final List<Node> visited = new ArrayList<Node>();
+
+		/** number of queued nodes which do not have all bits yet */
+		private int interesting;
+
+		Walk(int count, boolean exact) {
+			this.count = count;
+			this.fullCount = 1 + 2 * count;
+			this.exact = exact;
+		}
+
+		abstract Node[] parents(Node node) throws IOException;
+
+		CachedPair[] run(Node start, Node[] tips) throws IOException {
+			BitSet bits = new BitSet();
+			bits.set(0);
+			add(start, bits);
+			for (int i = 0; i < tips.length; i++) {
+				bits = new BitSet();
+				bits.set(1 + i);
+				add(tips[i], bits);
+			}
+
+			int slop = SLOP;
+			while (!queue.isEmpty()) {
+				if (interesting > 0)
+					slop = SLOP;
+				else if (exact || slop-- == 0)
+					break;
+
+				Node node = queue.poll();
+				node.queued = false;
+				if (!isFull(node))
+					interesting--;
+				if (!node.visited) {
+					node.visited = true;
+					visited.add(node);
+				}
+
+				BitSet carry = (BitSet) node.bits.clone();
+				if (carry.get(0))
+					for (int i = 0; i < count; i++)
+						if (carry.get(1 + i))
+							carry.set(1 + count + i);
+				for (Node parent : parents(node))
+					add(parent, carry);
+			}
+			return result();
+		}
+
+		private void add(Node node, BitSet bits) {
+			BitSet added = (BitSet) bits.clone();
+			added.andNot(node.bits);
+			if (added.isEmpty())
+				return;
+			boolean wasFull = isFull(node);
+			node.bits.or(added);
+			if (node.queued) {
+				if (!wasFull && isFull(node))
+					interesting--;
+			} else {
+				// also re-queues visited nodes, so new bits reach their
+				// ancestors
+				node.queued = true;
+				queue.add(node);
+				if (!isFull(node))
+					interesting++;
+			}
+		}
+
+		private boolean isFull(Node node) {
+			return node.bits.cardinality() == fullCount;
+		}
+
+		private CachedPair[] result() {
+			CachedPair[] result = new CachedPair[count];
+			for (int i = 0; i < count; i++) {
+				int ahead = 0;
+				int behind = 0;
+				Node mergeBase = null;
+				for (Node node : visited) {
+					boolean fromStart = node.bits.get(0);
+					boolean fromOther = node.bits.get(1 + i);
+					if (fromStart && !fromOther)
+						ahead++;
+					else if (fromOther && !fromStart)
+						behind++;
+					else if (fromStart && fromOther
+							&& !node.bits.get(1 + count + i)
+							&& (mergeBase == null || node.priority > mergeBase.priority))
+						mergeBase = node;
+				}
+				result[i] = new CachedPair(mergeBase != null ? mergeBase.getId()
+						: null, ahead, behind);
+			}
+			return result;
+		}
+	}
+
+	private static class GraphWalk extends Walk {
+		private final CommitGraph graph;
+
+		private final Map<Integer, Node> nodes = new HashMap<Integer, Node>();
+
+		GraphWalk(CommitGraph graph, int count) {
+			super(count, true);
+			this.graph = graph;
+		}
+
+		Node node(int position) {
+			Integer key = Integer.valueOf(position);
+			Node node = nodes.get(key);
+			if (node == null) {
+				node = new GraphNode(graph, position);
+				nodes.put(key, node);
+			}
+			return node;
+		}
+
+		@Override
+		Node[] parents(Node node) {
+			int[] parents = graph.getParents(((GraphNode) node).position);
+			Node[] result = new Node[parents.length];
+			for (int i = 0; i < parents.length; i++)
+				result[i] = node(parents[i]);
+			return result;
+		}
+	}
+
+	private static class GraphNode extends Node {
+		final CommitGraph graph;
+
+		final int position;
+
+		GraphNode(CommitGraph graph, int position) {
+			super(((long) graph.getGeneration(position) << 32)
+					| (graph.getCommitTime(position) & 0xffffffffL));
+			this.graph = graph;
+			this.position = position;
+		}
+
+		@Override
+		ObjectId getId() {
+			return graph.getObjectId(position);
+		}
+	}
+
+	private static class CommitWalk extends Walk {
+		private final RevWalk rw;
+
+		private final Map<RevCommit, Node> nodes = new HashMap<RevCommit, Node>();
+
+		CommitWalk(RevWalk rw, int count) {
+			super(count, false);
+			this.rw = rw;
+		}
+
+		Node node(RevCommit commit) {
+			Node node = nodes.get(commit);
+			if (node == null) {
+				node = new CommitNode(commit);
+				nodes.put(commit, node);
+			}
+			return node;
+		}
+
+		@Override
+		Node[] parents(Node node) throws IOException {
+			RevCommit[] parents = ((CommitNode) node).commit.getParents();
+			Node[] result = new Node[parents.length];
+			for (int i = 0; i < parents.length; i++) {
+				rw.parseHeaders(parents[i]);
+				result[i] = node(parents[i]);
+			}
+			return result;
+		}
+	}
+
+	private static class CommitNode extends Node {
+		final RevCommit commit;
+
+		CommitNode(RevCommit commit) {
+			super(commit.getCommitTime());
+			this.commit = commit;
+		}
+
+		@Override
+		ObjectId getId() {
+			return commit.copy();
+		}
+	}
+
+	/** Unordered pair of commits in a repository */
+	private static class Key {
+		private final String repository;
+
+		private final ObjectId low;
+
+		private final ObjectId high;
+
+		Key(Repository repository, AnyObjectId commit1, AnyObjectId commit2) {
+			this.repository = repository.getDirectory().getAbsolutePath();
+			boolean ordered = commit1.compareTo(commit2) <= 0;
+			this.low = (ordered ? commit1 : commit2).copy();
+			this.high = (ordered ? commit2 : commit1).copy();
+		}
+
+		boolean isLow(AnyObjectId commit) {
+			return low.equals(commit);
+		}
+
+		@Override
+		public int hashCode() {
+			return low.hashCode() * 31 + high.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return low.equals(other.low) && high.equals(other.high)
+					&& repository.equals(other.repository);
+		}
+	}
+
+	/**
+	 * Cached result for a {@link Key}. The counts are relative to the lower
+	 * commit id of the key (ahead: only reachable from the lower id), or -1 if
+	 * only the merge base was computed.
+	 */
+	private static class CachedPair {
+		final ObjectId mergeBase;
+
+		final int ahead;
+
+		final int behind;
+
+		CachedPair(ObjectId mergeBase, int ahead, int behind) {
+			this.mergeBase = mergeBase;
+			this.ahead = ahead;
+			this.behind = behind;
+		}
+
+		/** Turn counts relative to <code>commit</code> into key orientation */
+		CachedPair orient(Key key, AnyObjectId commit) {
+			return key.isLow(commit) ? this : new CachedPair(mergeBase, behind,
+					ahead);
+		}
+
+		Comparison toComparison(Key key, AnyObjectId commit, AnyObjectId other) {
+			if (key.isLow(commit))
+				return new Comparison(other.copy(), mergeBase, ahead, behind);
+			return new Comparison(other.copy(), mergeBase, behind, ahead);
+		}
+	}
+
+	/**
+	 * Result of comparing a commit with another one.
+	 */
+	public static class Comparison {
+		private final ObjectId other;
+
+		private final ObjectId mergeBase;
+
+		private final int ahead;
+
+		private final int behind;
+
+		Comparison(ObjectId other, ObjectId mergeBase, int ahead, int behind) {
+			this.other = other;
+			this.mergeBase = mergeBase;
+			this.ahead = ahead;
+			this.behind = behind;
+		}
+
+		/**
+		 * @return the commit compared with
+		 */
+		public ObjectId getOther() {
+			return other;
+		}
+
+		/**
+		 * @return the merge base, or <code>null</code> if the commits have no
+		 *         common history
+		 */
+		public ObjectId getMergeBase() {
+			return mergeBase;
+		}
+
+		/**
+		 * @return number of commits reachable from the compared commit but
+		 *         not from the other one
+		 */
+		public int getAhead() {
+			return ahead;
+		}
+
+		/**
+		 * @return number of commits reachable from the other commit but not
+		 *         from the compared one
+		 */
+		public int getBehind() {
+			return behind;
+		}
+	}
+}
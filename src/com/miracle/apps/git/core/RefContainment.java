@@ -0,0 +1,473 @@
+package com.miracle.apps.git.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.storage.file.FileSnapshot;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.BitmapIndex;
+import org.eclipse.jgit.lib.BitmapIndex.Bitmap;
+import org.eclipse.jgit.lib.BitmapIndex.BitmapBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdOwnerMap;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+/**
+ * Answers which refs contain a commit using per-ref reachability bitmaps.
+ * <p>
+ * The bitmap of a ref tip is built on first use and cached by tip id, so a
+ * ref which did not move is never walked again. If the repository has a pack
+ * with a bitmap index, the pack bitmaps are used and the walk stops at the
+ * first commit which has one. Otherwise commits are numbered in the order
+ * they are first walked (so shared history forms long runs) and the bitmaps
+ * are stored run-length compressed; walks stop at any commit whose bitmap is
+ * already known.
+ */
+public class RefContainment {
+
+	/** Default maximum number of cached ref tip bitmaps */
+	public static final int DEFAULT_MAX_BITMAPS = 4096;
+
+	/**
+	 * Default maximum number of numbered commits; beyond it the numbering and
+	 * the bitmaps built on it are dropped
+	 */
+	public static final int DEFAULT_MAX_COMMITS = 1024 * 1024;
+
+	private static final ConcurrentMap<File, RefContainment> instances = new ConcurrentHashMap<File, RefContainment>();
+
+	/**
+	 * @param repository
+	 * @return the shared instance of the given repository
+	 */
+	public static RefContainment get(Repository repository) {
+		File key = repository.getDirectory().getAbsoluteFile();
+		RefContainment containment = instances.get(key);
+		if (containment == null) {
+			RefContainment created = new RefContainment(repository,
+					DEFAULT_MAX_BITMAPS);
+			containment = instances.putIfAbsent(key, created);
+			if (containment == null)
+				containment = created;
+		}
+		return containment;
+	}
+
+	/**
+	 * Drop the instance of the given repository.
+	 *
+	 * @param repository
+	 */
+	public static void remove(Repository repository) {
+		instances.remove(repository.getDirectory().getAbsoluteFile());
+	}
+
+	/**
+	 * Drop the instances of all repositories.
+	 */
+	public static void removeAll() {
+		instances.clear();
+	}
+
+	private final Repository repository;
+
+	private final File packDirectory;
+
+	private final int maxBitmaps;
+
+	private final int maxCommits;
+
+	/** access ordered, the least recently used tip comes first */
+	private final LinkedHashMap<ObjectId, Reachability> tips;
+
+	/** numbering of walked commits, used when there are no pack bitmaps */
+	private final ObjectIdOwnerMap<NumberedCommit> numbers = new ObjectIdOwnerMap<NumberedCommit>();
+
+	private int nextNumber;
+
+	private FileSnapshot packSnapshot = FileSnapshot.DIRTY;
+
+	private BitmapIndex bitmapIndex;
+
+	/**
+	 * @param repository
+	 * @param maxBitmaps
+	 *            maximum number of cached ref tip bitmaps
+	 */
+	public RefContainment(Repository repository, int maxBitmaps) {
+		this(repository, maxBitmaps, DEFAULT_MAX_COMMITS);
+	}
+
+	/**
+	 * @param repository
+	 * @param maxBitmaps
+	 *            maximum number of cached ref tip bitmaps
+	 * @param maxCommits
+	 *            maximum number of numbered commits kept between calls
+	 */
+	public RefContainment(Repository repository, int maxBitmaps,
+			int maxCommits) {
+		this.repository = repository;
+		this.packDirectory = new File(new File(repository.getDirectory(),
+				"objects"), "pack"); //$NON-NLS-1$ //$NON-NLS-2$
+		this.maxBitmaps = maxBitmaps;
+		this.maxCommits = maxCommits;
+		this.tips = new LinkedHashMap<ObjectId, Reachability>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<ObjectId, Reachability> eldest) {
+				return size() > RefContainment.this.maxBitmaps;
+			}
+		};
+	}
+
+	/**
+	 * @param commitId
+	 * @param refs
+	 * @return the refs from which the commit is reachable
+	 * @throws IOException
+	 */
+	public List<Ref> getContainingRefs(AnyObjectId commitId,
+			Collection<Ref> refs) throws IOException {
+		List<AnyObjectId> commits = new ArrayList<AnyObjectId>(1);
+		commits.add(commitId);
+		return getContainingRefs(commits, refs).get(commitId.copy());
+	}
+
+	/**
+	 * Find the containing refs of many commits at once. Every ref is looked
+	 * at once, its bitmap answers the question for all commits.
+	 *
+	 * @param commitIds
+	 * @param refs
+	 * @return for each commit the refs from which it is reachable
+	 * @throws IOException
+	 */
+	public synchronized Map<ObjectId, List<Ref>> getContainingRefs(
+			Collection<? extends AnyObjectId> commitIds, Collection<Ref> refs)
+			throws IOException {
+		Map<ObjectId, List<Ref>> result = new LinkedHashMap<ObjectId, List<Ref>>();
+		for (AnyObjectId commitId : commitIds)
+			result.put(commitId.copy(), new ArrayList<Ref>());
+		if (result.isEmpty())
+			return result;
+
+		checkPacks();
+		checkNumbers();
+		try (RevWalk rw = new RevWalk(repository)) {
+			rw.setRetainBody(false);
+			for (Ref ref : refs) {
+				RevCommit tip = peel(rw, ref);
+				if (tip == null)
+					continue;
+				Reachability reachability = null;
+				for (Map.Entry<ObjectId, List<Ref>> entry : result.entrySet()) {
+					boolean contained = entry.getKey().equals(tip);
+					if (!contained) {
+						if (reachability == null)
+							reachability = getReachability(rw, tip);
+						contained = reachability.contains(entry.getKey());
+					}
+					if (contained)
+						entry.getValue().add(ref);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Drop all cached bitmaps.
+	 */
+	public synchronized void clear() {
+		tips.clear();
+		numbers.clear();
+		nextNumber = 0;
+		packSnapshot = FileSnapshot.DIRTY;
+		bitmapIndex = null;
+	}
+
+	/**
+	 * Pick up a new pack bitmap index after a repack. Bitmaps built from the
+	 * old index cannot be combined with the new one and are dropped.
+	 */
+	private void checkPacks() throws IOException {
+		if (!packSnapshot.isModified(packDirectory))
+			return;
+		packSnapshot = FileSnapshot.save(packDirectory);
+		try (ObjectReader reader = repository.newObjectReader()) {
+			bitmapIndex = reader.getBitmapIndex();
+		}
+		for (Iterator<Reachability> it = tips.values().iterator(); it
+				.hasNext();)
+			if (it.next() instanceof PackReachability)
+				it.remove();
+	}
+
+	/**
+	 * Renumber from scratch once too many commits are numbered, dropping the
+	 * bitmaps of the old numbering. Numbers are only assigned, never freed,
+	 * so this also releases the commits of tips evicted long ago.
+	 */
+	private void checkNumbers() {
+		if (nextNumber <= maxCommits)
+			return;
+		for (Iterator<Reachability> it = tips.values().iterator(); it
+				.hasNext();)
+			if (it.next() instanceof WalkReachability)
+				it.remove();
+		numbers.clear();
+		nextNumber = 0;
+	}
+
+	private static RevCommit peel(RevWalk rw, Ref ref) throws IOException {
+		ObjectId id = ref.getPeeledObjectId() != null ? ref
+				.getPeeledObjectId() : ref.getObjectId();
+		if (id == null)
+			return null;
+		try {
+			RevObject object = rw.peel(rw.parseAny(id));
+			return object instanceof RevCommit ? (RevCommit) object : null;
+		} catch (MissingObjectException e) {
+			return null;
+		}
+	}
+
+	private Reachability getReachability(RevWalk rw, RevCommit tip)
+			throws IOException {
+		Reachability reachability = tips.get(tip);
+		if (reachability == null) {
+			if (bitmapIndex != null)
+				reachability = buildFromPackBitmaps(rw, tip);
+			else
+				reachability = buildFromWalk(rw, tip);
+			tips.put(tip.copy(), reachability);
+		}
+		return reachability;
+	}
+
+	private Reachability buildFromPackBitmaps(RevWalk rw, RevCommit tip)
+			throws IOException {
+		BitmapBuilder bitmap = bitmapIndex.newBitmapBuilder();
+		Deque<RevCommit> pending = new ArrayDeque<RevCommit>();
+		pending.push(tip);
+		RevCommit commit;
+		while ((commit = pending.poll()) != null) {
+			if (bitmap.contains(commit))
+				continue;
+			Bitmap known = bitmapIndex.getBitmap(commit);
+			if (known == null) {
+				Reachability cached = tips.get(commit);
+				if (cached instanceof PackReachability)
+					known = ((PackReachability) cached).bitmap;
+			}
+			if (known != null) {
+				bitmap.or(known);
+				continue;
+			}
+			bitmap.add(commit, Constants.OBJ_COMMIT);
+			rw.parseHeaders(commit);
+			push(pending, commit);
+		}
+		return new PackReachability(bitmap);
+	}
+
+	private Reachability buildFromWalk(RevWalk rw, RevCommit tip)
+			throws IOException {
+		BitSet bits = new BitSet();
+		Deque<RevCommit> pending = new ArrayDeque<RevCommit>();
+		pending.push(tip);
+		RevCommit commit;
+		while ((commit = pending.poll()) != null) {
+			int number = number(commit);
+			if (bits.get(number))
+				continue;
+			Reachability cached = tips.get(commit);
+			if (cached instanceof WalkReachability) {
+				((WalkReachability) cached).bits.orInto(bits);
+				continue;
+			}
+			bits.set(number);
+			rw.parseHeaders(commit);
+			push(pending, commit);
+		}
+		return new WalkReachability(CompressedBits.of(bits));
+	}
+
+	/** Push the parents so that the first parent is walked next */
+	private static void push(Deque<RevCommit> pending, RevCommit commit) {
+		for (int i = commit.getParentCount() - 1; i >= 0; i--)
+			pending.push(commit.getParent(i));
+	}
+
+	private int number(AnyObjectId commit) {
+		NumberedCommit numbered = numbers.get(commit);
+		if (numbered == null) {
+			numbered = new NumberedCommit(commit, nextNumber++);
+			numbers.add(numbered);
+		}
+		return numbered.number;
+	}
+
+	private static class NumberedCommit extends ObjectIdOwnerMap.Entry {
+		private static final long serialVersionUID = 1L;
+
+		final int number;
+
+		NumberedCommit(AnyObjectId id, int number) {
+			super(id);
+			this.number = number;
+		}
+	}
+
+	/** The commits reachable from one ref tip */
+	private interface Reachability {
+		boolean contains(AnyObjectId commit);
+	}
+
+	private static class PackReachability implements Reachability {
+		final BitmapBuilder bitmap;
+
+		PackReachability(BitmapBuilder bitmap) {
+			this.bitmap = bitmap;
+		}
+
+		@Override
+		public boolean contains(AnyObjectId commit) {
+			return bitmap.contains(commit);
+		}
+	}
+
+	private class WalkReachability implements Reachability {
+		final CompressedBits bits;
+
+		WalkReachability(CompressedBits bits) {
+			this.bits = bits;
+		}
+
+		@Override
+		public boolean contains(AnyObjectId commit) {
+			// commits never walked are not reachable from any known tip
+			NumberedCommit numbered = numbers.get(commit);
+			return numbered != null && bits.get(numbered.number);
+		}
+	}
+
+	/**
+	 * Immutable bitmap stored as runs of 64 bit words, each run either all
+	 * zeros, all ones or literal words.
+	 */
+	static class CompressedBits {
+		private static final int ZEROS = -1;
+
+		private static final int ONES = -2;
+
+		/** first word of each run, followed by the total number of words */
+		private final int[] starts;
+
+		/** ZEROS, ONES or the offset of the run's words in literals */
+		private final int[] kinds;
+
+		private final long[] literals;
+
+		private CompressedBits(int[] starts, int[] kinds, long[] literals) {
+			this.starts = starts;
+			this.kinds = kinds;
+			this.literals = literals;
+		}
+
+		static CompressedBits of(BitSet bits) {
+			long[] words = bits.toLongArray();
+			int[] starts = new int[words.length + 1];
+			int[] kinds = new int[words.length];
+			long[] literals = new long[words.length];
+			int runs = 0;
+			int literalCount = 0;
+			for (int i = 0; i < words.length; i++) {
+				int kind = words[i] == 0 ? ZEROS : words[i] == -1L ? ONES
+						: literalCount;
+				boolean sameRun = runs > 0
+						&& (kind < 0 ? kinds[runs - 1] == kind
+								: kinds[runs - 1] >= 0);
+				if (!sameRun) {
+					starts[runs] = i;
+					kinds[runs] = kind;
+					runs++;
+				}
+				if (kind >= 0)
+					literals[literalCount++] = words[i];
+			}
+			starts[runs] = words.length;
+			int[] trimmedStarts = new int[runs + 1];
+			System.arraycopy(starts, 0, trimmedStarts, 0, runs + 1);
+			int[] trimmedKinds = new int[runs];
+			System.arraycopy(kinds, 0, trimmedKinds, 0, runs);
+			long[] trimmedLiterals = new long[literalCount];
+			System.arraycopy(literals, 0, trimmedLiterals, 0, literalCount);
+			return new CompressedBits(trimmedStarts, trimmedKinds,
+					trimmedLiterals);
+		}
+
+		boolean get(int bit) {
+			int word = bit >>> 6;
+			int runs = kinds.length;
+			if (runs == 0 || word >= starts[runs])
+				return false;
+			int low = 0;
+			int high = runs - 1;
+			while (low < high) {
+				int mid = (low + high + 1) >>> 1;
+				if (starts[mid] <= word)
+					low = mid;
+				else
+					high = mid - 1;
+			}
+			int kind = kinds[low];
+			if (kind == ZEROS)
+				return false;
+			if (kind == ONES)
+				return true;
+			long value = literals[kind + word - starts[low]];
+			return (value & (1L << bit)) != 0;
+		}
+
+		void orInto(BitSet target) {
+			for (int run = 0; run < kinds.length; run++) {
+				int start = starts[run];
+				int end = starts[run + 1];
+				int kind = kinds[run];
+				if (kind == ONES)
+					target.set(start << 6, end << 6);
+				else if (kind != ZEROS)
+					for (int word = start; word < end; word++) {
+						long value = literals[kind + word - start];
+						while (value != 0) {
+							target.set((word << 6)
+									+ Long.numberOfTrailingZeros(value));
+							value &= value - 1;
+						}
+					}
+			}
+		}
+	}
+}
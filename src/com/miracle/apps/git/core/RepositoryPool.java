@@ -0,0 +1,475 @@
+package com.miracle.apps.git.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.PackFile;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache.FileKey;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * Pool of open repositories handed out as reference-counted leases.
+ * <p>
+ * A repository stays open while it is leased. When its last lease is closed
+ * it becomes idle and is closed after the idle timeout, or earlier if more
+ * than the maximum number of repositories are open (least recently used idle
+ * repositories are closed first). Leased repositories are never closed by the
+ * pool, so the maximum may be exceeded temporarily.
+ *
+ * <pre>
+ * try (RepositoryPool.Lease lease = pool.acquire(gitDir)) {
+ * 	Repository repository = lease.getRepository();
+ * 	...
+ * }
+ * </pre>
+ */
+public class RepositoryPool {
+
+	/** Default maximum number of open repositories */
+	public static final int DEFAULT_MAX_OPEN = 64;
+
+	/** Default time an unused repository is kept open, in milliseconds */
+	public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+
+	private static RepositoryPool defaultPool;
+
+	/**
+	 * @return the shared pool with default limits
+	 */
+	public static synchronized RepositoryPool getDefault() {
+		if (defaultPool == null)
+			defaultPool = new RepositoryPool(DEFAULT_MAX_OPEN,
+					DEFAULT_IDLE_TIMEOUT);
+		return defaultPool;
+	}
+
+	/** access ordered, the least recently used repository comes first */
+	private final LinkedHashMap<File, PooledRepository> repositories = new LinkedHashMap<File, PooledRepository>(
+			16, 0.75f, true);
+
+	private final int maxOpen;
+
+	private final long idleTimeout;
+
+	private ScheduledExecutorService sweeper;
+
+	private long openCount;
+
+	private long closeCount;
+
+	/**
+	 * @param maxOpen
+	 *            maximum number of open repositories
+	 * @param idleTimeout
+	 *            time in milliseconds an unused repository is kept open, 0 to
+	 *            keep unused repositories open until the limit is reached
+	 */
+	public RepositoryPool(int maxOpen, long idleTimeout) {
+		this.maxOpen = maxOpen;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Lease an existing repository, opening it if it is not open yet.
+	 *
+	 * @param gitDir
+	 *            the git directory of the repository
+	 * @return a lease, which must be closed when the repository is no longer
+	 *         used
+	 * @throws IOException
+	 *             if the repository does not exist or cannot be opened
+	 */
+	public Lease acquire(File gitDir) throws IOException {
+		File key = key(gitDir);
+
+		synchronized (this) {
+			PooledRepository pooled = repositories.get(key);
+			if (pooled != null) {
+				pooled.leases++;
+				return new Lease(pooled);
+			}
+		}
+
+		// open outside of the lock, reading the configuration may be slow
+		Repository repository = FileKey.exact(key, FS.DETECTED).open(true);
+		List<Repository> toClose;
+		Lease lease;
+		synchronized (this) {
+			PooledRepository pooled = repositories.get(key);
+			if (pooled == null) {
+				pooled = new PooledRepository(key, repository);
+				repositories.put(key, pooled);
+				openCount++;
+				repository = null;
+			}
+			pooled.leases++;
+			lease = new Lease(pooled);
+			toClose = removeExcess();
+		}
+		if (repository != null)
+			// somebody else opened it in the meantime
+			repository.close();
+		close(toClose);
+		startSweeper();
+		return lease;
+	}
+
+	/**
+	 * Close a repository of the pool: immediately if it is idle, otherwise
+	 * when its last lease is closed.
+	 *
+	 * @param gitDir
+	 *            the git directory of the repository
+	 */
+	public void evict(File gitDir) {
+		File key = key(gitDir);
+		Repository toClose = null;
+		synchronized (this) {
+			PooledRepository pooled = repositories.get(key);
+			if (pooled == null)
+				return;
+			if (pooled.leases == 0) {
+				repositories.remove(key);
+				toClose = pooled.repository;
+			} else
+				pooled.closeOnRelease = true;
+		}
+		if (toClose != null)
+			close(Collections.singletonList(toClose));
+	}
+
+	/**
+	 * Close all idle repositories whose idle timeout has expired.
+	 */
+	public void evictIdle() {
+		List<Repository> toClose = new ArrayList<Repository>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			for (Iterator<PooledRepository> it = repositories.values()
+					.iterator(); it.hasNext();) {
+				PooledRepository pooled = it.next();
+				if (pooled.leases == 0 && idleTimeout > 0
+						&& now - pooled.idleSince >= idleTimeout) {
+					it.remove();
+					toClose.add(pooled.repository);
+				}
+			}
+		}
+		close(toClose);
+	}
+
+	/**
+	 * Close all idle repositories and stop the idle sweeper. Leased
+	 * repositories are closed when their last lease is closed.
+	 */
+	public void shutdown() {
+		List<Repository> toClose = new ArrayList<Repository>();
+		synchronized (this) {
+			for (Iterator<PooledRepository> it = repositories.values()
+					.iterator(); it.hasNext();) {
+				PooledRepository pooled = it.next();
+				pooled.closeOnRelease = true;
+				if (pooled.leases == 0) {
+					it.remove();
+					toClose.add(pooled.repository);
+				}
+			}
+			if (sweeper != null) {
+				sweeper.shutdown();
+				sweeper = null;
+			}
+		}
+		close(toClose);
+	}
+
+	/**
+	 * @return a snapshot of the pool's metrics
+	 */
+	public Stats getStats() {
+		List<PooledRepository> pooled;
+		Stats stats = new Stats();
+		synchronized (this) {
+			pooled = new ArrayList<PooledRepository>(repositories.values());
+			stats.openCount = openCount;
+			stats.closeCount = closeCount;
+			for (PooledRepository p : pooled) {
+				stats.repositories.add(new RepositoryStats(p.gitDir, p.leases));
+				if (p.leases > 0)
+					stats.leasedRepositories++;
+				stats.leases += p.leases;
+			}
+		}
+		// pack sizes are read without holding the pool lock
+		for (int i = 0; i < pooled.size(); i++)
+			stats.repositories.get(i).readPackSizes(pooled.get(i).repository);
+		return stats;
+	}
+
+	private void release(PooledRepository pooled) {
+		List<Repository> toClose;
+		synchronized (this) {
+			pooled.leases--;
+			if (pooled.leases > 0)
+				return;
+			pooled.idleSince = System.currentTimeMillis();
+			boolean closeNow = pooled.closeOnRelease
+					&& repositories.get(pooled.gitDir) == pooled;
+			if (closeNow)
+				repositories.remove(pooled.gitDir);
+			toClose = removeExcess();
+			if (closeNow)
+				toClose.add(pooled.repository);
+		}
+		close(toClose);
+	}
+
+	/** Must be called while holding the pool lock */
+	private List<Repository> removeExcess() {
+		List<Repository> toClose = new ArrayList<Repository>();
+		int excess = repositories.size() - maxOpen;
+		for (Iterator<PooledRepository> it = repositories.values().iterator(); excess > 0
+				&& it.hasNext();) {
+			PooledRepository pooled = it.next();
+			if (pooled.leases == 0) {
+				it.remove();
+				toClose.add(pooled.repository);
+				excess--;
+			}
+		}
+		return toClose;
+	}
+
+	private void close(List<Repository> toClose) {
+		for (Repository repository : toClose) {
+			RepositoryUtil.releaseCaches(repository);
+			repository.close();
+		}
+		if (!toClose.isEmpty())
+			synchronized (this) {
+				closeCount += toClose.size();
+			}
+	}
+
+	private static File key(File gitDir) {
+		File key = FileKey.resolve(gitDir.getAbsoluteFile(), FS.DETECTED);
+		return key != null ? key : gitDir.getAbsoluteFile();
+	}
+
+	private synchronized void startSweeper() {
+		if (sweeper != null || idleTimeout <= 0)
+			return;
+		sweeper = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "RepositoryPool-sweeper"); //$NON-NLS-1$
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		long period = Math.max(1000, idleTimeout / 2);
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	private static class PooledRepository {
+		final File gitDir;
+
+		final Repository repository;
+
+		int leases;
+
+		long idleSince;
+
+		boolean closeOnRelease;
+
+		PooledRepository(File gitDir, Repository repository) {
+			this.gitDir = gitDir;
+			this.repository = repository;
+		}
+	}
+
+	/**
+	 * A lease of a pooled repository. Closing the lease more than once has no
+	 * effect.
+	 */
+	public class Lease implements AutoCloseable {
+		private PooledRepository pooled;
+
+		private Lease(PooledRepository pooled) {
+			this.pooled = pooled;
+		}
+
+		/**
+		 * @return the leased repository; it must not be closed by the caller
+		 */
+		public Repository getRepository() {
+			if (pooled == null)
+				throw new IllegalStateException("Lease has already been closed"); //$NON-NLS-1$
+			return pooled.repository;
+		}
+
+		@Override
+		public void close() {
+			PooledRepository released;
+			synchronized (this) {
+				released = pooled;
+				pooled = null;
+			}
+			if (released != null)
+				release(released);
+		}
+	}
+
+	/**
+	 * Metrics of a {@link RepositoryPool}.
+	 */
+	public static class Stats {
+		private final List<RepositoryStats> repositories = new ArrayList<RepositoryStats>();
+
+		private int leasedRepositories;
+
+		private int leases;
+
+		private long openCount;
+
+		private long closeCount;
+
+		/**
+		 * @return number of repositories currently open in the pool
+		 */
+		public int getOpenRepositories() {
+			return repositories.size();
+		}
+
+		/**
+		 * @return number of open repositories with at least one lease
+		 */
+		public int getLeasedRepositories() {
+			return leasedRepositories;
+		}
+
+		/**
+		 * @return number of leases not yet closed
+		 */
+		public int getLeases() {
+			return leases;
+		}
+
+		/**
+		 * @return number of times a repository was opened by the pool
+		 */
+		public long getOpenCount() {
+			return openCount;
+		}
+
+		/**
+		 * @return number of times a repository was closed by the pool
+		 */
+		public long getCloseCount() {
+			return closeCount;
+		}
+
+		/**
+		 * @return per repository metrics
+		 */
+		public List<RepositoryStats> getRepositories() {
+			return repositories;
+		}
+	}
+
+	/**
+	 * Metrics of one pooled repository.
+	 * <p>
+	 * Pack windows are cached by JGit's process wide window cache, so the
+	 * memory attributable to one repository is bounded by the size of its pack
+	 * and pack index files reported here.
+	 */
+	public static class RepositoryStats {
+		private final File gitDir;
+
+		private final int leases;
+
+		private int packCount;
+
+		private long packBytes;
+
+		private long packIndexBytes;
+
+		RepositoryStats(File gitDir, int leases) {
+			this.gitDir = gitDir;
+			this.leases = leases;
+		}
+
+		void readPackSizes(Repository repository) {
+			if (!(repository instanceof FileRepository))
+				return;
+			for (PackFile pack : ((FileRepository) repository)
+					.getObjectDatabase().getPacks()) {
+				File packFile = pack.getPackFile();
+				String name = packFile.getName();
+				packCount++;
+				packBytes += packFile.length();
+				packIndexBytes += new File(packFile.getParentFile(), name
+						.substring(0, name.length() - 4) + "idx").length(); //$NON-NLS-1$
+			}
+		}
+
+		/**
+		 * @return the git directory
+		 */
+		public File getGitDir() {
+			return gitDir;
+		}
+
+		/**
+		 * @return number of leases not yet closed
+		 */
+		public int getLeases() {
+			return leases;
+		}
+
+		/**
+		 * @return number of pack files
+		 */
+		public int getPackCount() {
+			return packCount;
+		}
+
+		/**
+		 * @return total size of the pack files in bytes
+		 */
+		public long getPackBytes() {
+			return packBytes;
+		}
+
+		/**
+		 * @return total size of the pack index files in bytes
+		 */
+		public long getPackIndexBytes() {
+			return packIndexBytes;
+		}
+
+		@Override
+		public String toString() {
+			return gitDir + ": leases=" + leases + ", packs=" + packCount //$NON-NLS-1$ //$NON-NLS-2$
+					+ ", packBytes=" + packBytes + ", packIndexBytes=" //$NON-NLS-1$ //$NON-NLS-2$
+					+ packIndexBytes;
+		}
+	}
+}
@@ -13,12 +13,8 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
 import org.eclipse.jgit.api.CommitCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.ConcurrentRefUpdateException;
@@ -32,38 +28,33 @@ import org.eclipse.jgit.dircache.DirCache;
 import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.MissingObjectException;
-import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.errors.UnmergedPathException;
-import org.eclipse.jgit.lib.CheckoutEntry;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefUpdate;
-import org.eclipse.jgit.lib.ReflogEntry;
-import org.eclipse.jgit.lib.ReflogReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryCache;
-import org.eclipse.jgit.lib.RepositoryCache.FileKey;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevObject;
-import org.eclipse.jgit.revwalk.RevTag;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.eclipse.jgit.treewalk.TreeWalk;
-import org.eclipse.jgit.util.FS;
 import org.eclipse.jgit.util.FileUtils;
 
+import com.miracle.apps.git.core.storage.BlobCache;
+import com.miracle.apps.git.core.storage.DiffResultCache;
+
 /**
  * Utility class for handling Repositories.
  */
 public class RepositoryUtil {
-	private final Map<String, Map<String, String>> commitMappingCache = new HashMap<String, Map<String, String>>();
-	
 	private  Repository repository;
 
 	private  String workdirPrefix;
 	
 	private  File gitDir;
+
+	private  RepositoryPool.Lease lease;
 	
 	public RepositoryUtil(String workDir) {
 		this(new File(workDir,Constants.DOT_GIT));
@@ -71,11 +62,12 @@ public class RepositoryUtil {
 	
 	public RepositoryUtil(File gitDir) {
 		this.gitDir=gitDir;
-		if(gitDir.exists()){
-			this.repository=this.createRepoWithCacheByGitDir(gitDir);
-		}else{
-			this.repository=this.createLocalRepositoryByGitDir(gitDir);
+		if(!gitDir.exists()){
+			Repository created=this.createLocalRepositoryByGitDir(gitDir);
+			if(created!=null)
+				created.close();
 		}
+		this.repository=this.leaseRepoFromPool(gitDir);
 		this.workdirPrefix=getWorkdirPrefix(this.repository);
 	}
 	
@@ -103,21 +95,19 @@ public class RepositoryUtil {
 	}
 	
 	/**
-	 * get the repository, meantime add it the RepositoryCache.
+	 * get the repository, leasing it from the default RepositoryPool.
 	 * @param gitDir
 	 * @return Repository 
-	 * 			a git repository which comes from the RepositoryCache
+	 * 			a git repository which comes from the RepositoryPool
 	 */
-	private Repository createRepoWithCacheByGitDir(File gitDir){
-		Repository tempRepo = null;
+	private Repository leaseRepoFromPool(File gitDir){
 		try {
-			tempRepo=RepositoryCache.open(FileKey.exact(gitDir, FS.DETECTED));
-		} catch (RepositoryNotFoundException e) {
-			e.printStackTrace();
+			lease=RepositoryPool.getDefault().acquire(gitDir);
+			return lease.getRepository();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		return tempRepo;
+		return null;
 	}
 	
 	private String getWorkdirPrefix(Repository repository){
@@ -134,32 +124,70 @@ public class RepositoryUtil {
 	}
 	
 	/**
-	 * close the git repository in the RepositoryCache
+	 * close the git repository in the RepositoryPool and the RepositoryCache
 	 * @param repository
 	 */
 	public void closeRepositoryInCache(Repository repository){
 		if(repository!=null){
+			if(repository==this.repository && lease!=null)
+				lease.close();
+			RepositoryPool.getDefault().evict(repository.getDirectory());
+			releaseCaches(repository);
 			RepositoryCache.close(repository);
 		}
 	}
 	
 	/**
-	 * clear repositories in RepositoryCache
+	 * clear repositories in RepositoryPool and RepositoryCache
 	 */
 	public void clear(){
+		RepositoryPool.getDefault().shutdown();
 		RepositoryCache.clear();
+		IndexSnapshotCache.clear();
+		CommitRefIndex.removeAll();
+		CommitMappingCache.getDefault().clear();
+		MergeBaseCache.getDefault().clear();
+		RefContainment.removeAll();
+		CommitGraph.removeAll();
+		ChangedPathIndex.removeAll();
+		BlobCache.removeAll();
+		DiffResultCache.removeAll();
 	}
 	
 	/**
-	 * close repository
+	 * close repository, or release its lease if it came from the
+	 * RepositoryPool
 	 */
 	public void dispose() {
 		if (repository != null) {
-			repository.close();
+			if (lease != null) {
+				lease.close();
+			} else {
+				releaseCaches(repository);
+				repository.close();
+			}
 			repository = null;
 		}
 	}
 
+	/**
+	 * Drop everything cached for a repository, e.g. because it is closed.
+	 *
+	 * @param repository
+	 */
+	public static void releaseCaches(Repository repository) {
+		IndexSnapshotCache.invalidate(repository);
+		CommitRefIndex.remove(repository);
+		CommitMappingCache.getDefault().evict(
+				repository.getDirectory().getAbsolutePath());
+		MergeBaseCache.getDefault().remove(repository);
+		RefContainment.remove(repository);
+		CommitGraph.remove(repository);
+		ChangedPathIndex.remove(repository);
+		BlobCache.remove(repository);
+		DiffResultCache.remove(repository);
+	}
+
 	
 	/**
 	 * @return the repository
@@ -211,23 +239,43 @@ public class RepositoryUtil {
 	
 	private DirCacheEntry getDirCacheEntry(String path) throws IOException {
 		String repoPath = getRepoRelativePath(path);
-		DirCache dc = DirCache.read(repository.getIndexFile(), repository.getFS());
+		DirCache dc = IndexSnapshotCache.get(repository);
 		return dc.getEntry(repoPath);
 	}
 
+	/**
+	 * Looks up the index entries of many files using a single snapshot of the
+	 * index.
+	 *
+	 * @param paths
+	 *            absolute paths of the files
+	 * @return map from the given path to its index entry; paths which are not
+	 *         in the index are not contained. The entries are shared and must
+	 *         not be modified.
+	 * @throws IOException
+	 */
+	public Map<String, DirCacheEntry> getDirCacheEntries(Collection<String> paths)
+			throws IOException {
+		Map<String, DirCacheEntry> entries = new HashMap<String, DirCacheEntry>();
+		DirCache dc = IndexSnapshotCache.get(repository);
+		for (String path : paths) {
+			String repoPath = getRepoRelativePath(path);
+			if (repoPath == null)
+				continue;
+			DirCacheEntry entry = dc.getEntry(repoPath);
+			if (entry != null)
+				entries.put(path, entry);
+		}
+		return entries;
+	}
 
-	public long lastModifiedInIndex(String path) throws IOException {
-		String repoPath = getRepoRelativePath(path);
-		DirCache dc = DirCache.read(repository.getIndexFile(), repository.getFS());
 
-		return dc.getEntry(repoPath).getLastModified();
+	public long lastModifiedInIndex(String path) throws IOException {
+		return getDirCacheEntry(path).getLastModified();
 	}
 
 	public int getDirCacheEntryLength(String path) throws IOException {
-		String repoPath = getRepoRelativePath(path);
-		DirCache dc = DirCache.read(repository.getIndexFile(), repository.getFS());
-
-		return dc.getEntry(repoPath).getLength();
+		return getDirCacheEntry(path).getLength();
 	}
 	
 	/**
@@ -364,163 +412,43 @@ public class RepositoryUtil {
 	 * @param commitId
 	 *            a commit
 	 * @param refresh
-	 *            if true, the cache will be invalidated
+	 *            if true, the refs are re-read before the lookup
 	 * @return the symbolic reference, or <code>null</code> if no such reference
 	 *         can be found
 	 */
 	public String mapCommitToRef(String commitId,boolean refresh) {
-		synchronized (commitMappingCache) {
-
-			if (!ObjectId.isId(commitId)) {
-				return null;
-			}
-
-			try {
-				ReflogReader reflogReader = repository.getReflogReader(Constants.HEAD);
-				if (reflogReader != null) {
-					List<ReflogEntry> lastEntry = reflogReader.getReverseEntries();
-					for (ReflogEntry entry : lastEntry) {
-						if (entry.getNewId().name().equals(commitId)) {
-							CheckoutEntry checkoutEntry = entry.parseCheckout();
-							if (checkoutEntry != null) {
-								Ref ref = repository.getRef(checkoutEntry.getToBranch());
-								if (ref != null) {
-									if (ref.getObjectId().getName()
-											.equals(commitId))
-										return checkoutEntry.getToBranch();
-									ref = repository.peel(ref);
-								}
-								if (ref != null) {
-									ObjectId id = ref.getPeeledObjectId();
-									if (id != null && id.getName().equals(commitId))
-										return checkoutEntry.getToBranch();
-								}
-							}
-						}
-					}
-				}
-			} catch (IOException e) {
-				// ignore here
-			}
-
-			Map<String, String> cacheEntry = commitMappingCache.get(repository
-					.getDirectory().toString());
-			if (!refresh && cacheEntry != null
-					&& cacheEntry.containsKey(commitId)) {
-				// this may be null in fact
-				return cacheEntry.get(commitId);
-			}
-			if (cacheEntry == null) {
-				cacheEntry = new HashMap<String, String>();
-				commitMappingCache.put(repository.getDirectory().getPath(),
-						cacheEntry);
-			} else {
-				cacheEntry.clear();
-			}
-
-			Map<String, Date> tagMap = new HashMap<String, Date>();
-			try (RevWalk rw = new RevWalk(repository)) {
-				Map<String, Ref> tags = repository.getRefDatabase().getRefs(
-						Constants.R_TAGS);
-				for (Ref tagRef : tags.values()) {
-					RevObject any = rw.parseAny(repository.resolve(tagRef.getName()));
-					if (any instanceof RevTag) {
-						RevTag tag = (RevTag) any;
-						if (tag.getObject().name().equals(commitId)) {
-							Date timestamp;
-							if (tag.getTaggerIdent() != null) {
-								timestamp = tag.getTaggerIdent().getWhen();
-							} else {
-								try {
-									RevCommit commit = rw.parseCommit(tag.getObject());
-									timestamp = commit.getCommitterIdent().getWhen();
-								} catch (IncorrectObjectTypeException e) {
-									// not referencing a comit.
-									timestamp = null;
-								}
-							}
-							tagMap.put(tagRef.getName(), timestamp);
-						}
-					} else if (any instanceof RevCommit) {
-						RevCommit commit = ((RevCommit)any);
-						if (commit.name().equals(commitId))
-							tagMap.put(tagRef.getName(), commit.getCommitterIdent().getWhen());
-					} // else ignore here
-				}
-			} catch (IOException e) {
-				// ignore here
-			}
+		if (!ObjectId.isId(commitId)) {
+			return null;
+		}
 
-			String cacheValue = null;
-
-			if (!tagMap.isEmpty()) {
-				// we try to obtain the "latest" tag
-				Date compareDate = new Date(0);
-				for (Map.Entry<String, Date> tagEntry : tagMap.entrySet()) {
-					if (tagEntry.getValue() != null
-							&& tagEntry.getValue().after(compareDate)) {
-						compareDate = tagEntry.getValue();
-						cacheValue = tagEntry.getKey();
-					}
-				}
-				// if we don't have time stamps, we sort
-				if (cacheValue == null) {
-					String compareString = ""; //$NON-NLS-1$
-					for (String tagName : tagMap.keySet()) {
-						if (tagName.compareTo(compareString) >= 0) {
-							cacheValue = tagName;
-							compareString = tagName;
-						}
-					}
-				}
-			}
+		CommitRefIndex index = CommitRefIndex.get(repository);
+		try {
+			if (refresh)
+				index.refresh();
+			index.update();
+		} catch (IOException e) {
+			// ignore here
+		}
 
-			if (cacheValue == null) {
-				// we didnt't find a tag, so let's look for local branches
-				Set<String> branchNames = new TreeSet<String>();
-				// put this into a sorted set
-				try {
-					Map<String, Ref> remoteBranches = repository
-							.getRefDatabase().getRefs(Constants.R_HEADS);
-					for (Ref branch : remoteBranches.values()) {
-						if (branch.getObjectId().name().equals(commitId)) {
-							branchNames.add(branch.getName());
-						}
-					}
-				} catch (IOException e) {
-					// ignore here
-				}
-				if (!branchNames.isEmpty()) {
-					// get the last (sorted) entry
-					cacheValue = branchNames.toArray(new String[branchNames
-							.size()])[branchNames.size() - 1];
-				}
-			}
+		CommitMappingCache cache = CommitMappingCache.getDefault();
+		String cacheKey = repository.getDirectory().getAbsolutePath();
+		long generation = index.getGeneration();
+		CommitMappingCache.Mapping cached = cache.get(cacheKey, generation,
+				commitId);
+		if (cached != null) {
+			// this may be null in fact
+			return cached.getRefName();
+		}
 
-			if (cacheValue == null) {
-				// last try: remote branches
-				Set<String> branchNames = new TreeSet<String>();
-				// put this into a sorted set
-				try {
-					Map<String, Ref> remoteBranches = repository
-							.getRefDatabase().getRefs(Constants.R_REMOTES);
-					for (Ref branch : remoteBranches.values()) {
-						if (branch.getObjectId().name().equals(commitId)) {
-							branchNames.add(branch.getName());
-						}
-					}
-					if (!branchNames.isEmpty()) {
-						// get the last (sorted) entry
-						cacheValue = branchNames.toArray(new String[branchNames
-								.size()])[branchNames.size() - 1];
-					}
-				} catch (IOException e) {
-					// ignore here
-				}
-			}
-			cacheEntry.put(commitId, cacheValue);
-			return cacheValue;
+		String cacheValue;
+		try {
+			cacheValue = index.mapCommitToRef(ObjectId.fromString(commitId));
+		} catch (IOException e) {
+			// do not cache failed lookups
+			return null;
 		}
+		cache.put(cacheKey, generation, commitId, cacheValue);
+		return cacheValue;
 	}
 	
 	public RevCommit mapCommitIdToRevCommit(String commitId){
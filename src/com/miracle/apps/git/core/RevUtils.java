@@ -1,6 +1,7 @@
 package com.miracle.apps.git.core;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -28,7 +29,7 @@ public class RevUtils {
 
 	/**
 	 * Finds and returns instance of common ancestor commit for given to
-	 * commit's
+	 * commit's. Results are cached by {@link MergeBaseCache}.
 	 *
 	 * @param repo repository in which common ancestor should be searched, cannot be null
 	 * @param commit1 left commit id, cannot be null
@@ -42,23 +43,12 @@ public class RevUtils {
 //		Assert.isNotNull(commit1);
 //		Assert.isNotNull(commit2);
 
+		ObjectId mergeBase = MergeBaseCache.getDefault().getMergeBase(repo,
+				commit1, commit2);
+		if (mergeBase == null)
+			return null;
 		try (RevWalk rw = new RevWalk(repo)) {
-			rw.setRetainBody(false);
-			rw.setRevFilter(RevFilter.MERGE_BASE);
-
-			RevCommit srcRev = rw.lookupCommit(commit1);
-			RevCommit dstRev = rw.lookupCommit(commit2);
-
-			rw.markStart(dstRev);
-			rw.markStart(srcRev);
-
-			RevCommit result = rw.next();
-			if (result != null) {
-				rw.parseBody(result);
-				return result;
-			} else {
-				return null;
-			}
+			return rw.parseCommit(mergeBase);
 		}
 	}
 
@@ -126,6 +116,31 @@ public class RevUtils {
 			if (commitId.equals(ref.getObjectId()))
 				return true;
 
+		CommitGraph graph = CommitGraph.get(repo);
+		if (graph != null) {
+			int target = graph.findPosition(commitId);
+			if (target >= 0) {
+				// answer from the graph for all refs it knows, walk the rest
+				List<Ref> unknownRefs = new ArrayList<Ref>();
+				List<Integer> tips = new ArrayList<Integer>();
+				for (Ref ref : refs) {
+					ObjectId tipId = ref.getPeeledObjectId() != null ? ref
+							.getPeeledObjectId() : ref.getObjectId();
+					int tip = tipId != null ? graph.findPosition(tipId) : -1;
+					if (tip >= 0)
+						tips.add(Integer.valueOf(tip));
+					else
+						unknownRefs.add(ref);
+				}
+				int[] tipArray = new int[tips.size()];
+				for (int i = 0; i < tipArray.length; i++)
+					tipArray[i] = tips.get(i).intValue();
+				if (graph.findReachable(tipArray, new int[] { target })[0])
+					return true;
+				refs = unknownRefs;
+			}
+		}
+
 		final int skew = 24 * 60 * 60; // one day clock skew
 
 		try (RevWalk walk = new RevWalk(repo)) {
@@ -148,6 +163,25 @@ public class RevUtils {
 		return false;
 	}
 
+	/**
+	 * Find all refs containing a commit. The refs' reachability bitmaps are
+	 * cached by {@link RefContainment}, use it directly to query many commits
+	 * at once.
+	 *
+	 * @param repo
+	 *            the repo the commit is in
+	 * @param commitId
+	 *            the commit ID to search for
+	 * @param refs
+	 *            the refs to check
+	 * @return the refs from which the commit is reachable
+	 * @throws IOException
+	 */
+	public static List<Ref> getContainingRefs(Repository repo,
+			ObjectId commitId, Collection<Ref> refs) throws IOException {
+		return RefContainment.get(repo).getContainingRefs(commitId, refs);
+	}
+
 	/**
 	 * The interesting commits from ours/theirs for a file in case of a
 	 * conflict.
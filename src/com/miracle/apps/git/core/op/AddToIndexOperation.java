@@ -1,21 +1,54 @@
 package com.miracle.apps.git.core.op;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+
 import org.eclipse.jgit.api.AddCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuildIterator;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.CoreConfig.AutoCRLF;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.WorkingTreeIterator;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+
+import com.miracle.apps.git.core.ContentHasher;
+import com.miracle.apps.git.core.errors.CoreException;
 
 /**
  * This class implements to add files into the Git index
+ * <p>
+ * In batch mode all paths are added in a single pass over the index and the
+ * working tree, with one lock and one write of the index. Files whose index
+ * entry is up to date are not read; the others are hashed by a
+ * {@link ContentHasher} once the walk is done, and the per-path outcome is
+ * available from {@link #getResult()}.
  */
 public class AddToIndexOperation implements GitControlOperation{
 	private final Collection<?> rsrcList;
-	
+
 	private Repository repo;
 
+	private boolean batch;
+
+	private boolean update;
+
+	private AddToIndexResult result;
+
 	/**
 	 * Create a new operation to add files to the Git index
 	 *
@@ -25,20 +58,51 @@ public class AddToIndexOperation implements GitControlOperation{
 	 * @param repository
 	 * 			  a git repository
 	 */
-	
+
 	public AddToIndexOperation(final Collection<String> rsrcs,Repository repository) {
 		rsrcList = rsrcs;
 		repo=repository;
 	}
 
-	
+
 	public AddToIndexOperation(ArrayList<String> rsrcs,Repository repository) {
 		rsrcList = rsrcs;
 		repo=repository;
 	}
-	
+
+	/**
+	 * @param batch
+	 *            <code>true</code> to add all paths in one pass over the
+	 *            index, hashing files with a {@link ContentHasher}
+	 */
+	public void setBatch(boolean batch) {
+		this.batch = batch;
+	}
+
+	/**
+	 * @param update
+	 *            <code>true</code> to only stage tracked files, including
+	 *            their deletion, in batch mode; as <code>git add -u</code>
+	 */
+	public void setUpdate(boolean update) {
+		this.update = update;
+	}
+
+	/**
+	 * @return the per-path results and throughput of a batch operation, or
+	 *         <code>null</code> if the operation was not executed in batch
+	 *         mode
+	 */
+	public AddToIndexResult getResult() {
+		return result;
+	}
+
 	@Override
 	public void execute() throws GitAPIException {
+			if (batch) {
+				executeBatch();
+				return;
+			}
 			for(Object filepath : rsrcList){
 				String file=(String)filepath;
 				AddCommand command=addToCommand(repo, file);
@@ -54,12 +118,124 @@ public class AddToIndexOperation implements GitControlOperation{
 			FileTreeIterator it = new FileTreeIterator(repo);
 			command = git.add().setWorkingTreeIterator(it);
 		}
+		return command.addFilepattern(normalize(filepattern));
+	}
+
+	private static String normalize(String filepattern) {
 		if ("".equals(filepattern)) //$NON-NLS-1$
 			filepattern = "."; //$NON-NLS-1$
-		
+
 		if(filepattern.contains("\\"))
 			filepattern=filepattern.replace("\\", "/");
-		
-		return command.addFilepattern(filepattern);
+		return filepattern;
+	}
+
+	/**
+	 * Same semantics as {@link AddCommand}, except that unmodified files keep
+	 * their index entry instead of being hashed again.
+	 */
+	private void executeBatch() throws CoreException {
+		long start = System.nanoTime();
+		List<String> patterns = new ArrayList<String>(rsrcList.size());
+		for (Object filepath : rsrcList)
+			patterns.add(normalize((String) filepath));
+		if (patterns.isEmpty())
+			throw new CoreException("At least one path is required"); //$NON-NLS-1$
+
+		AddToIndexResult batchResult = new AddToIndexResult();
+		DirCache dc = null;
+		try (ObjectInserter inserter = repo.newObjectInserter();
+				TreeWalk tw = new TreeWalk(repo)) {
+			dc = repo.lockDirCache();
+			DirCacheBuilder builder = dc.builder();
+			tw.addTree(new DirCacheBuildIterator(builder));
+			FileTreeIterator files = new FileTreeIterator(repo);
+			tw.addTree(files);
+			tw.setRecursive(true);
+			if (!patterns.contains(".")) //$NON-NLS-1$
+				tw.setFilter(PathFilterGroup.createFromStrings(patterns));
+			boolean canonicalize = files.getOptions().getAutoCRLF() != AutoCRLF.FALSE;
+
+			// regular files are hashed after the walk, symbolic links inline
+			List<DirCacheEntry> hashed = new ArrayList<DirCacheEntry>();
+			List<File> hashedFiles = new ArrayList<File>();
+			String lastAddedFile = null;
+			while (tw.next()) {
+				String path = tw.getPathString();
+				DirCacheIterator c = tw.getTree(0, DirCacheIterator.class);
+				WorkingTreeIterator f = tw.getTree(1, WorkingTreeIterator.class);
+				if (update && c == null)
+					continue;
+				if (c == null && f != null && f.isEntryIgnored()) {
+					batchResult.setStatus(path, AddToIndexResult.Status.IGNORED);
+					continue;
+				}
+				// a conflicting path has several stages but gets one new entry
+				if (path.equals(lastAddedFile))
+					continue;
+				DirCacheEntry existing = c != null ? c.getDirCacheEntry() : null;
+				if (f == null) {
+					// the file is gone: staged as deleted when updating,
+					// otherwise the index keeps it
+					if (existing == null)
+						continue;
+					if (update && FileMode.GITLINK != existing.getFileMode())
+						batchResult.setStatus(path,
+								AddToIndexResult.Status.REMOVED);
+					else
+						builder.add(existing);
+					continue;
+				}
+				if (existing != null
+						&& (existing.isAssumeValid() || existing.getStage() == 0
+								&& !f.isModified(existing, false,
+										tw.getObjectReader()))) {
+					builder.add(existing);
+					batchResult.setStatus(path,
+							AddToIndexResult.Status.UNCHANGED);
+					continue;
+				}
+
+				FileMode mode = f.getIndexFileMode(c);
+				DirCacheEntry entry = new DirCacheEntry(path);
+				entry.setFileMode(mode);
+				if (FileMode.GITLINK == mode)
+					entry.setObjectId(f.getEntryObjectId());
+				else {
+					entry.setLength(f.getEntryLength());
+					entry.setLastModified(f.getEntryLastModified());
+					if (FileMode.REGULAR_FILE == mode
+							|| FileMode.EXECUTABLE_FILE == mode) {
+						hashed.add(entry);
+						hashedFiles.add(((FileTreeIterator) f).getEntryFile());
+					} else
+						try (InputStream in = f.openEntryStream()) {
+							entry.setObjectId(inserter.insert(
+									Constants.OBJ_BLOB,
+									f.getEntryContentLength(), in));
+						}
+				}
+				builder.add(entry);
+				lastAddedFile = path;
+				batchResult.setStatus(path, AddToIndexResult.Status.ADDED);
+			}
+
+			// the ids come back in walk order, matching the entries
+			ContentHasher hasher = new ContentHasher(repo, inserter,
+					canonicalize);
+			ObjectId[] ids = hasher.hash(hashedFiles);
+			for (int i = 0; i < ids.length; i++)
+				hashed.get(i).setObjectId(ids[i]);
+			inserter.flush();
+			builder.commit();
+			batchResult.setThroughput(ids.length, hasher.getHashedBytes(),
+					System.nanoTime() - start);
+			result = batchResult;
+		} catch (IOException e) {
+			throw new CoreException(e.getMessage(), e);
+		} finally {
+			if (dc != null)
+				dc.unlock();
+		}
 	}
 }
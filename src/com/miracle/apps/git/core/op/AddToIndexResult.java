@@ -0,0 +1,94 @@
+package com.miracle.apps.git.core.op;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stores the result of a batch {@link AddToIndexOperation}
+ */
+public class AddToIndexResult {
+
+	/**
+	 * What happened to a path
+	 */
+	public enum Status {
+		/** the file was hashed and staged */
+		ADDED,
+
+		/** the index entry was up to date and kept */
+		UNCHANGED,
+
+		/** the file was deleted and its entry removed, in update mode */
+		REMOVED,
+
+		/** the file is ignored and not tracked, it was not added */
+		IGNORED
+	}
+
+	private final Map<String, Status> paths = new TreeMap<String, Status>();
+
+	private int hashedFiles;
+
+	private long hashedBytes;
+
+	private long elapsedNanos;
+
+	void setStatus(String path, Status status) {
+		paths.put(path, status);
+	}
+
+	void setThroughput(int files, long bytes, long nanos) {
+		hashedFiles = files;
+		hashedBytes = bytes;
+		elapsedNanos = nanos;
+	}
+
+	/**
+	 * @return the status of every path matched by the operation's patterns
+	 */
+	public Map<String, Status> getPathResults() {
+		return Collections.unmodifiableMap(paths);
+	}
+
+	/**
+	 * @return number of files whose content was hashed
+	 */
+	public int getHashedFiles() {
+		return hashedFiles;
+	}
+
+	/**
+	 * @return number of bytes hashed
+	 */
+	public long getHashedBytes() {
+		return hashedBytes;
+	}
+
+	/**
+	 * @return duration of the operation in milliseconds
+	 */
+	public long getElapsedMillis() {
+		return elapsedNanos / 1000000;
+	}
+
+	/**
+	 * @return hashed files per second
+	 */
+	public double getFilesPerSecond() {
+		return elapsedNanos == 0 ? 0 : hashedFiles * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * @return hashed bytes per second
+	 */
+	public double getBytesPerSecond() {
+		return elapsedNanos == 0 ? 0 : hashedBytes * 1e9 / elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return paths.size() + " paths, " + hashedFiles + " files hashed (" //$NON-NLS-1$ //$NON-NLS-2$
+				+ hashedBytes + " bytes) in " + getElapsedMillis() + " ms"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
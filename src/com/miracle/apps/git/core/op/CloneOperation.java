@@ -16,6 +16,7 @@ import org.eclipse.jgit.transport.URIish;
 import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
 import org.eclipse.jgit.util.FileUtils;
 
+import com.miracle.apps.git.core.RepositoryPool;
 import com.miracle.apps.git.core.credentials.MiraclesCredentialsProvider;
 import com.miracle.apps.git.core.errors.CoreException;
 
@@ -96,9 +97,14 @@ public class CloneOperation implements GitControlOperation {
 	}
 
 
+	/**
+	 * Clones the repository and leaves it open in the default
+	 * {@link RepositoryPool}, so that following operations on it do not have
+	 * to open it again.
+	 */
 	@Override
 	public void execute() throws GitAPIException {
-		Repository repository = null;
+		RepositoryPool.Lease lease = null;
 		try {
 			CloneCommand cloneRepository = Git.cloneRepository();
 			cloneRepository.setCredentialsProvider(credentialsProvider);
@@ -114,20 +120,24 @@ public class CloneOperation implements GitControlOperation {
 			if (selectedBranches != null) {
 				cloneRepository.setBranchesToClone(selectedBranches);
 			}
-			Git git = cloneRepository.call();
-			repository = git.getRepository();
+			cloneRepository.call().close();
+			lease = RepositoryPool.getDefault().acquire(gitdir);
+			Repository repository = lease.getRepository();
 			status=repository.getRepositoryState().toString();
 			if(!checkIfBranchExists(repository)){
 				flag=5;
+				lease.close();
 				deleteLocalGitDir();
 			}
 			
 		} catch (Exception e) {
+			if (lease != null)
+				lease.close();
 			deleteLocalGitDir();
 			throw new CoreException("Clone operation failed:",e);
 		} finally {
-			if(repository!=null)
-				repository.close();
+			if (lease != null)
+				lease.close();
 		}
 	}
 	
@@ -136,6 +146,7 @@ public class CloneOperation implements GitControlOperation {
 	}
 	
 	private void deleteLocalGitDir(){
+		RepositoryPool.getDefault().evict(gitdir);
 		if (workdir.exists()){
 			try {
 				FileUtils.delete(workdir, FileUtils.RECURSIVE | FileUtils.RETRY);
@@ -29,6 +29,7 @@ import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryState;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.treewalk.CanonicalTreeParser;
@@ -36,6 +37,8 @@ import org.eclipse.jgit.treewalk.FileTreeIterator;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.util.RawParseUtils;
 
+import com.miracle.apps.git.core.ChangedPathIndex;
+import com.miracle.apps.git.core.CommitGraph;
 import com.miracle.apps.git.core.errors.CoreException;
 
 /**
@@ -66,6 +69,8 @@ public class CommitOperation implements GitControlOperation {
 	private RevCommit commit = null;
 	
 	private boolean ifNoChanges=false;
+
+	private boolean partialCommit;
 	
 	/**
 	 * @param filesToCommit
@@ -153,7 +158,11 @@ public class CommitOperation implements GitControlOperation {
 				&& commitFileList.size() > 0 || commitIndex) {
 			addUntracked();
 			commit();
-		} 
+		}
+		if (commit != null) {
+			CommitGraph.updateIfPresent(repo, Collections.singleton(commit));
+			ChangedPathIndex.updateIfPresent(repo, Collections.singleton(commit));
+		}
 	}
 
 
@@ -180,6 +189,11 @@ public class CommitOperation implements GitControlOperation {
 
 
 	private void commit() throws CoreException {
+		if (partialCommit && !commitIndex && !amending
+				&& repo.getRepositoryState() == RepositoryState.SAFE) {
+			commitPartially();
+			return;
+		}
 		Git git = new Git(repo);
 		try {
 			CommitCommand commitCommand = git.commit();
@@ -202,6 +216,29 @@ public class CommitOperation implements GitControlOperation {
 	
 	
 	
+	private void commitPartially() throws CoreException {
+		final Date commitDate = new Date();
+		final TimeZone timeZone = TimeZone.getDefault();
+		PartialCommit partial = new PartialCommit(repo, commitFileList,
+				new PersonIdent(parsePerson(author), commitDate, timeZone),
+				new PersonIdent(parsePerson(committer), commitDate, timeZone),
+				message, createChangeId);
+		try {
+			commit = partial.commit();
+		} catch (IOException e) {
+			throw new CoreException("An internal error occurred", e);
+		}
+		if (commit == null)
+			ifNoChanges = true;
+	}
+
+	private static PersonIdent parsePerson(String person) throws CoreException {
+		PersonIdent ident = RawParseUtils.parsePersonIdent(person);
+		if (ident == null)
+			throw new CoreException("The person " + person + " could not be parsed.");
+		return ident;
+	}
+
 	public boolean isIfNoChanges() {
 		return ifNoChanges;
 	}
@@ -214,6 +251,17 @@ public class CommitOperation implements GitControlOperation {
 		this.amending = amending;
 	}
 
+	/**
+	 * @param partialCommit
+	 *            <code>true</code> to commit the selected files in one walk
+	 *            over the index and HEAD instead of a JGit "only" commit;
+	 *            not used when amending, committing the index or during a
+	 *            merge
+	 */
+	public void setPartialCommit(boolean partialCommit) {
+		this.partialCommit = partialCommit;
+	}
+
 	/**
 	 *
 	 * @param commitAll
@@ -242,9 +290,16 @@ public class CommitOperation implements GitControlOperation {
 
 		Git git = new Git(repo);
 		try {
+			// stage tracked files ourselves: CommitCommand.setAll re-hashes
+			// every tracked file on a single thread
+			AddToIndexOperation addOperation = new AddToIndexOperation(
+					Collections.singleton("."), repo); //$NON-NLS-1$
+			addOperation.setBatch(true);
+			addOperation.setUpdate(true);
+			addOperation.execute();
 			CommitCommand commitCommand = git.commit();
 			setAuthorAndCommitter(commitCommand);
-			commit = commitCommand.setAll(true).setMessage(message)
+			commit = commitCommand.setMessage(message)
 					.setInsertChangeId(createChangeId).call();
 		} catch (JGitInternalException e) {
 			throw new CoreException("An internal error occurred", e);
@@ -1,25 +1,46 @@
 package com.miracle.apps.git.core.op;
 
 import com.miracle.apps.git.core.errors.CoreException;
+import com.miracle.apps.git.core.storage.DiffResultCache;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
-import org.eclipse.jgit.api.DiffCommand;
-import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.DiffAlgorithm.SupportedAlgorithm;
 import org.eclipse.jgit.diff.DiffEntry;
-import org.eclipse.jgit.errors.NoWorkTreeException;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.pack.PackConfig;
 import org.eclipse.jgit.treewalk.AbstractTreeIterator;
 import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.WorkingTreeIterator;
 import org.eclipse.jgit.treewalk.filter.PathFilter;
 
 /**
  * Operation that gets the diff information
+ * <p>
+ * For a path, the trees to compare are chosen by one walk over HEAD, the
+ * index and the working tree, limited to that path: the path's staged
+ * additions are shown first, then its changes in the working tree. A file
+ * whose size and modification time match its index entry is taken as
+ * unchanged without reading it.
+ * <p>
+ * The patch is formatted one file at a time and written to the output
+ * stream, or passed to a {@link FileDiffListener}, as each file is done. By
+ * default it is kept in memory for {@link #toString()}. In parallel mode
+ * the files of a tree comparison are formatted on several threads.
  */
 public class DiffOperation implements GitControlOperation {
 
@@ -33,9 +54,78 @@ public class DiffOperation implements GitControlOperation {
 
 	private List<DiffEntry> diffs;
 
-	private OutputStream out = new ByteArrayOutputStream();
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 
-	private Git git;
+	private OutputStream out = buffer;
+
+	private FileDiffListener listener;
+
+	private int maxFileSize = PackConfig.DEFAULT_BIG_FILE_THRESHOLD;
+
+	private int maxHunks;
+
+	private long maxBytes;
+
+	private boolean truncated;
+
+	private boolean parallel;
+
+	private DiffResultCache resultCache;
+
+	private SupportedAlgorithm algorithm;
+
+	private Whitespace whitespace = Whitespace.NONE;
+
+	private int context = -1;
+
+	/** Whitespace differences ignored when comparing lines */
+	public enum Whitespace {
+		/** lines must be equal */
+		NONE(RawTextComparator.DEFAULT),
+		/** like <code>git diff -w</code> */
+		IGNORE_ALL(RawTextComparator.WS_IGNORE_ALL),
+		/** like <code>git diff -b</code> */
+		IGNORE_CHANGE(RawTextComparator.WS_IGNORE_CHANGE),
+		/** whitespace at the start of lines */
+		IGNORE_LEADING(RawTextComparator.WS_IGNORE_LEADING),
+		/** like <code>git diff --ignore-space-at-eol</code> */
+		IGNORE_TRAILING(RawTextComparator.WS_IGNORE_TRAILING);
+
+		private final RawTextComparator comparator;
+
+		private Whitespace(RawTextComparator comparator) {
+			this.comparator = comparator;
+		}
+
+		/**
+		 * @return the comparator of the mode
+		 */
+		public RawTextComparator getComparator() {
+			return comparator;
+		}
+	}
+
+	/** Receives the patch of each file as soon as it is formatted */
+	public interface FileDiffListener {
+		/**
+		 * @param entry
+		 *            the file
+		 * @param patch
+		 *            the patch of the file, including its header lines
+		 * @throws IOException
+		 *             to abort the diff
+		 */
+		void fileFormatted(DiffEntry entry, byte[] patch) throws IOException;
+	}
+
+	/** The changes of a path which decide the trees to compare */
+	private enum Change {
+		/** a file is in the index but not in HEAD */
+		ADDED,
+		/** a tracked file differs from its index entry */
+		MODIFIED,
+		NONE
+	}
 	
 	@Deprecated
 	public DiffOperation(final Repository repository){
@@ -76,53 +166,224 @@ public class DiffOperation implements GitControlOperation {
 
 	@Override
 	public void execute() throws CoreException {
+		StreamingDiffFormatter formatter = new StreamingDiffFormatter(out,
+				listener);
 		try {
-			git=Git.wrap(repository);
-			DiffCommand dc=git.diff();
+			formatter.setRepository(repository);
+			formatter.setBinaryFileThreshold(maxFileSize);
+			formatter.setMaxHunks(maxHunks);
+			formatter.setMaxBytes(maxBytes);
+			formatter.setResultCache(resultCache);
+			if (algorithm != null)
+				formatter.setDiffAlgorithm(DiffAlgorithm.getAlgorithm(algorithm));
+			if (whitespace != Whitespace.NONE)
+				formatter.setDiffComparator(whitespace.getComparator());
+			if (context >= 0)
+				formatter.setContext(context);
+			AbstractTreeIterator oldIterator;
+			AbstractTreeIterator newIterator;
 			if(path !=null){
-				dc.setPathFilter(PathFilter.create(path));
-				if(isAdded(path))
-					dc.setCached(true);
-				else if(isModified(path)){
-					dc.setOldTree(getTreeIterator("HEAD"));
+				formatter.setPathFilter(PathFilter.create(path));
+				Change change = classify(path);
+				if(change == Change.ADDED){
+					oldIterator = repository.resolve("HEAD") != null ? getTreeIterator("HEAD") //$NON-NLS-1$ //$NON-NLS-2$
+							: new EmptyTreeIterator();
+					newIterator = new DirCacheIterator(repository.readDirCache());
+				}else if(change == Change.MODIFIED){
+					oldIterator = getTreeIterator("HEAD"); //$NON-NLS-1$
+					newIterator = new FileTreeIterator(repository);
 				}else if(oldTree!=null && newTree!=null){
-					dc.setNewTree(getTreeIterator(newTree));
-					dc.setOldTree(getTreeIterator(oldTree));
+					oldIterator = getTreeIterator(oldTree);
+					newIterator = getTreeIterator(newTree);
 				}else{
-					dc.setOldTree(getTreeIterator("HEAD^"));
+					oldIterator = getTreeIterator("HEAD^"); //$NON-NLS-1$
+					newIterator = new FileTreeIterator(repository);
 				}
+			}else if(oldTree!=null && newTree!=null){
+				oldIterator = getTreeIterator(oldTree);
+				newIterator = getTreeIterator(newTree);
+			}else{
+				oldIterator = new DirCacheIterator(repository.readDirCache());
+				newIterator = new FileTreeIterator(repository);
 			}
-			
-			dc.setOutputStream(out);
-			diffs=dc.call();
-		} catch (GitAPIException | IOException e) {
-			throw new CoreException(e.getMessage());
+
+			diffs = formatter.scan(oldIterator, newIterator);
+			// working tree content can only be read by the scanning formatter
+			formatter.setParallel(parallel
+					&& !(oldIterator instanceof WorkingTreeIterator)
+					&& !(newIterator instanceof WorkingTreeIterator));
+			formatter.format(diffs);
+			formatter.flush();
+			truncated = formatter.isTruncated();
+		} catch (IOException e) {
+			throw new CoreException(e.getMessage(), e);
+		} finally {
+			formatter.close();
 		}
 	}
-	
+
+	/**
+	 * @param out
+	 *            stream the patch is written to as it is formatted, instead
+	 *            of keeping it for {@link #toString()}; <code>null</code> to
+	 *            only pass it to the listener
+	 */
+	public void setOutputStream(OutputStream out) {
+		this.out = out;
+		this.buffer = null;
+	}
+
+	/**
+	 * @param channel
+	 *            channel the patch is written to as it is formatted, instead
+	 *            of keeping it for {@link #toString()}
+	 */
+	public void setOutputChannel(WritableByteChannel channel) {
+		setOutputStream(Channels.newOutputStream(channel));
+	}
+
+	/**
+	 * @param listener
+	 *            receiver of the patch of each file, or <code>null</code>
+	 */
+	public void setFileDiffListener(FileDiffListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @param maxFileSize
+	 *            files larger than this are reported as binary without being
+	 *            compared
+	 */
+	public void setMaxFileSize(int maxFileSize) {
+		this.maxFileSize = maxFileSize;
+	}
+
+	/**
+	 * @param maxHunks
+	 *            maximum number of hunks written per file, 0 for no limit
+	 */
+	public void setMaxHunks(int maxHunks) {
+		this.maxHunks = maxHunks;
+	}
+
+	/**
+	 * @param maxBytes
+	 *            maximum size of the patch, 0 for no limit; the patch ends
+	 *            before the first file which does not fit and the remaining
+	 *            files are not formatted
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param parallel
+	 *            <code>true</code> to compute the patches of the files on all
+	 *            cores when comparing two trees, or a tree and the index; the
+	 *            output is the same as without
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	/**
+	 * @param algorithm
+	 *            the diff algorithm, or <code>null</code> for diff.algorithm
+	 *            of the repository configuration (histogram by default)
+	 */
+	public void setDiffAlgorithm(SupportedAlgorithm algorithm) {
+		this.algorithm = algorithm;
+	}
+
+	/**
+	 * @param whitespace
+	 *            the whitespace differences to ignore
+	 */
+	public void setWhitespace(Whitespace whitespace) {
+		this.whitespace = whitespace;
+	}
+
+	/**
+	 * @param context
+	 *            number of unchanged lines around each change, -1 for the
+	 *            default of 3
+	 */
+	public void setContext(int context) {
+		this.context = context;
+	}
+
+	/**
+	 * @param resultCache
+	 *            cache of the patches of files whose both sides are in the
+	 *            repository, e.g. {@link DiffResultCache#get(Repository)}; or
+	 *            <code>null</code>
+	 */
+	public void setResultCache(DiffResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	/**
+	 * @return <code>true</code> if the last execution left hunks or files
+	 *         out of the patch because of the limits
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
 	public List<DiffEntry> getDiffEntrys(){
 		return this.diffs;
 	}
 	
 	@Override
 	public String toString(){
-		return out.toString();
+		return buffer != null ? buffer.toString() : ""; //$NON-NLS-1$
 	}
 	
-	private boolean isAdded(String path) throws NoWorkTreeException, GitAPIException{
-		if(path!=null)
-			if(git.status().addPath(path).call().getAdded().size()!=0){
-				return true;
+	/**
+	 * Classifies the files below <code>path</code> like the added and
+	 * modified sets of <code>git status</code>, stopping at the first added
+	 * file. Contents are only hashed if the index entry is not stat clean.
+	 */
+	private Change classify(String path) throws IOException {
+		Change result = Change.NONE;
+		try (TreeWalk tw = new TreeWalk(repository)) {
+			ObjectId head = repository.resolve(Constants.HEAD + "^{tree}"); //$NON-NLS-1$
+			if (head != null)
+				tw.addTree(head);
+			else
+				tw.addTree(new EmptyTreeIterator());
+			int index = tw.addTree(new DirCacheIterator(repository
+					.readDirCache()));
+			FileTreeIterator workTree = new FileTreeIterator(repository);
+			int work = tw.addTree(workTree);
+			workTree.setDirCacheIterator(tw, index);
+			tw.setFilter(PathFilter.create(path));
+			tw.setRecursive(true);
+			while (tw.next()) {
+				DirCacheIterator c = tw.getTree(index, DirCacheIterator.class);
+				if (c == null || c.getDirCacheEntry().getStage() != 0)
+					continue;
+				if (tw.getRawMode(0) == 0)
+					return Change.ADDED;
+				WorkingTreeIterator f = tw.getTree(work,
+						WorkingTreeIterator.class);
+				if (result == Change.NONE && f != null
+						&& isModified(c.getDirCacheEntry(), f, tw
+								.getObjectReader()))
+					result = Change.MODIFIED;
 			}
-		return false;
+		}
+		return result;
 	}
-	
-	private boolean isModified(String path) throws NoWorkTreeException, GitAPIException{
-		if(path!=null)
-			if(git.status().addPath(path).call().getModified().size()!=0){
-				return true;
-			}
-		return false;
+
+	private static boolean isModified(DirCacheEntry entry,
+			WorkingTreeIterator f, ObjectReader reader) throws IOException {
+		if (!entry.isSmudged() && entry.getFileMode() == f.getEntryFileMode()
+				&& entry.getLength() == f.getEntryLength()
+				&& entry.getLastModified() == f.getEntryLastModified())
+			return false;
+		return f.isModified(entry, true, reader);
 	}
 	
 	private AbstractTreeIterator getTreeIterator(String name)
@@ -1,10 +1,12 @@
 package com.miracle.apps.git.core.op;
 
+import java.util.ArrayList;
 import java.util.List;
 import org.eclipse.jgit.api.FetchCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.JGitInternalException;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.CredentialsProvider;
 import org.eclipse.jgit.transport.FetchResult;
@@ -15,6 +17,8 @@ import org.eclipse.jgit.transport.TrackingRefUpdate;
 import org.eclipse.jgit.transport.URIish;
 import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
 
+import com.miracle.apps.git.core.ChangedPathIndex;
+import com.miracle.apps.git.core.CommitGraph;
 import com.miracle.apps.git.core.errors.CoreException;
 
 /**
@@ -134,6 +138,14 @@ public class FetchOperation implements GitControlOperation {
 		try {
 			result=command.call();
 			operationResult=new FetchOperationResult(result.getURI(), result);
+			if (!dryRun && !result.getTrackingRefUpdates().isEmpty()) {
+				List<ObjectId> tips = new ArrayList<ObjectId>();
+				for (TrackingRefUpdate update : result.getTrackingRefUpdates())
+					if (!ObjectId.zeroId().equals(update.getNewObjectId()))
+						tips.add(update.getNewObjectId());
+				CommitGraph.updateIfPresent(repository, tips);
+				ChangedPathIndex.updateIfPresent(repository, tips);
+			}
 		} catch (JGitInternalException e) {
 			throw new CoreException(e.getMessage());
 		} catch (Exception e) {
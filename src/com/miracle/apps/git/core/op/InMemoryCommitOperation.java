@@ -0,0 +1,370 @@
+package com.miracle.apps.git.core.op;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEditor.DeletePath;
+import org.eclipse.jgit.dircache.DirCacheEditor.DeleteTree;
+import org.eclipse.jgit.dircache.DirCacheEditor.PathEdit;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.RefUpdate.Result;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.util.RawParseUtils;
+
+import com.miracle.apps.git.core.errors.CoreException;
+
+/**
+ * Commits file contents given in memory, without touching the index or the
+ * working tree; this also works on bare repositories.
+ * <p>
+ * The tree of the parent commit is read into an in-core {@link DirCache},
+ * the edits are applied with a {@link DirCacheEditor} and the new trees, blobs
+ * and commit are written with one {@link ObjectInserter}. The ref is then
+ * moved with a compare-and-swap against the parent, so a concurrent update
+ * of the ref makes this operation fail instead of being overwritten.
+ */
+public class InMemoryCommitOperation implements GitControlOperation {
+
+	private final Repository repo;
+
+	private final String refName;
+
+	private final String author;
+
+	private final String committer;
+
+	private final String message;
+
+	private ObjectId parent;
+
+	private boolean parentSet;
+
+	/** pending files by path, the last one given for a path wins */
+	private final Map<String, Edit> additions = new HashMap<String, Edit>();
+
+	/** applied before the additions */
+	private final List<String> deletions = new ArrayList<String>();
+
+	private ObjectId commitId;
+
+	private Result refUpdateResult;
+
+	/**
+	 * @param repository
+	 * @param refName
+	 *            full name of the ref to update, e.g.
+	 *            <code>refs/heads/master</code>
+	 * @param author
+	 *            in the form "name &lt;email&gt;"
+	 * @param committer
+	 *            in the form "name &lt;email&gt;"
+	 * @param message
+	 */
+	public InMemoryCommitOperation(Repository repository, String refName,
+			String author, String committer, String message) {
+		this.repo = repository;
+		this.refName = refName;
+		this.author = author;
+		this.committer = committer;
+		this.message = message;
+	}
+
+	/**
+	 * Set the parent of the new commit, which is also the value the ref must
+	 * still have when it is updated. By default the current value of the ref
+	 * is used.
+	 *
+	 * @param parent
+	 *            the parent commit, or <code>null</code> to create a root
+	 *            commit on a ref which must not exist yet
+	 */
+	public void setParent(ObjectId parent) {
+		this.parent = parent;
+		this.parentSet = true;
+	}
+
+	/**
+	 * Add or replace a regular file.
+	 *
+	 * @param path
+	 *            repository-relative path
+	 * @param content
+	 */
+	public void add(String path, byte[] content) {
+		put(new Edit(path, FileMode.REGULAR_FILE, content, null, -1, null));
+	}
+
+	/**
+	 * Add or replace a regular file. The stream is read and closed when the
+	 * operation is executed, or closed as soon as a later call replaces or
+	 * deletes the file.
+	 *
+	 * @param path
+	 *            repository-relative path
+	 * @param content
+	 * @param length
+	 *            number of bytes in <code>content</code>
+	 */
+	public void add(String path, InputStream content, long length) {
+		put(new Edit(path, FileMode.REGULAR_FILE, null, content, length, null));
+	}
+
+	/**
+	 * Add or replace a file with an object which is already in the
+	 * repository.
+	 *
+	 * @param path
+	 *            repository-relative path
+	 * @param objectId
+	 * @param mode
+	 *            e.g. {@link FileMode#REGULAR_FILE} or
+	 *            {@link FileMode#EXECUTABLE_FILE}
+	 */
+	public void add(String path, ObjectId objectId, FileMode mode) {
+		put(new Edit(path, mode, null, null, -1, objectId));
+	}
+
+	private void put(Edit edit) {
+		Edit replaced = additions.put(edit.path, edit);
+		if (replaced != null)
+			replaced.close();
+	}
+
+	/**
+	 * Remove a file, or a directory with all its content. Files added before
+	 * at this path or below it are dropped; files added afterwards are kept.
+	 *
+	 * @param path
+	 *            repository-relative path
+	 */
+	public void delete(String path) {
+		String prefix = path + "/"; //$NON-NLS-1$
+		for (Iterator<Edit> it = additions.values().iterator(); it.hasNext();) {
+			Edit added = it.next();
+			if (added.path.equals(path) || added.path.startsWith(prefix)) {
+				added.close();
+				it.remove();
+			}
+		}
+		deletions.add(path);
+	}
+
+	@Override
+	public void execute() throws GitAPIException {
+		try {
+			commit();
+		} finally {
+			// streams not read because of a failure
+			for (Edit edit : additions.values())
+				edit.close();
+			additions.clear();
+			deletions.clear();
+		}
+	}
+
+	private void commit() throws CoreException {
+		PersonIdent authorIdent = parsePerson(author);
+		PersonIdent committerIdent = parsePerson(committer);
+		try (ObjectInserter inserter = repo.newObjectInserter();
+				ObjectReader reader = repo.newObjectReader()) {
+			ObjectId expected = parentSet ? parent : currentValue();
+
+			DirCache index = DirCache.newInCore();
+			if (expected != null) {
+				RevCommit parentCommit;
+				try (RevWalk walk = new RevWalk(reader)) {
+					parentCommit = walk.parseCommit(expected);
+				}
+				DirCacheBuilder builder = index.builder();
+				builder.addTree(new byte[0], DirCacheEntry.STAGE_0, reader,
+						parentCommit.getTree());
+				builder.finish();
+			}
+			// deletions and additions in separate passes, the editor cannot
+			// delete a directory and add a file below it at once
+			removeConflicts(index);
+			DirCacheEditor editor = index.editor();
+			for (Edit edit : additions.values())
+				editor.add(edit.toPathEdit(inserter));
+			editor.finish();
+
+			CommitBuilder commit = new CommitBuilder();
+			commit.setTreeId(index.writeTree(inserter));
+			if (expected != null)
+				commit.setParentId(expected);
+			commit.setAuthor(authorIdent);
+			commit.setCommitter(committerIdent);
+			commit.setMessage(message);
+			commitId = inserter.insert(commit);
+			inserter.flush();
+
+			RefUpdate update = repo.updateRef(refName);
+			update.setExpectedOldObjectId(expected != null ? expected
+					: ObjectId.zeroId());
+			update.setNewObjectId(commitId);
+			update.setRefLogMessage("commit: " //$NON-NLS-1$
+					+ firstLine(message), false);
+			refUpdateResult = update.update();
+		} catch (IllegalArgumentException e) {
+			// invalid path of an edit
+			throw new CoreException(e.getMessage(), e);
+		} catch (IOException e) {
+			throw new CoreException("Could not commit to " + refName, e); //$NON-NLS-1$
+		}
+		if (refUpdateResult != Result.NEW
+				&& refUpdateResult != Result.FAST_FORWARD)
+			throw new CoreException("Could not update " + refName //$NON-NLS-1$
+					+ " (cause: " + refUpdateResult + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * Remove the deleted paths, the directories replaced by added files and
+	 * the files replaced by the directories of added files; the editor does
+	 * not handle these directory/file conflicts itself.
+	 */
+	private void removeConflicts(DirCache index) throws CoreException {
+		Set<String> trees = new HashSet<String>(deletions);
+		trees.addAll(additions.keySet());
+		Set<String> files = new HashSet<String>();
+		for (String path : additions.keySet())
+			for (int i = path.indexOf('/'); i > 0; i = path.indexOf('/', i + 1)) {
+				String dir = path.substring(0, i);
+				if (additions.containsKey(dir))
+					throw new CoreException("Cannot add " + path //$NON-NLS-1$
+							+ ", " + dir + " is added as a file"); //$NON-NLS-1$ //$NON-NLS-2$
+				files.add(dir);
+			}
+		// an edit inside a deleted tree would make the editor keep the rest
+		// of that tree, so paths below another one are left out
+		DirCacheEditor editor = index.editor();
+		for (String path : trees)
+			if (!isBelow(path, trees)) {
+				editor.add(new DeletePath(path));
+				editor.add(new DeleteTree(path));
+			}
+		for (String path : files)
+			if (!trees.contains(path) && !isBelow(path, trees))
+				editor.add(new DeletePath(path));
+		editor.finish();
+	}
+
+	private static boolean isBelow(String path, Set<String> dirs) {
+		for (int i = path.indexOf('/'); i > 0; i = path.indexOf('/', i + 1))
+			if (dirs.contains(path.substring(0, i)))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return the id of the new commit, or <code>null</code> if the operation
+	 *         has not been executed
+	 */
+	public ObjectId getCommitId() {
+		return commitId;
+	}
+
+	/**
+	 * @return the result of the ref update; {@link Result#LOCK_FAILURE} if the
+	 *         ref was concurrently modified
+	 */
+	public Result getRefUpdateResult() {
+		return refUpdateResult;
+	}
+
+	private ObjectId currentValue() throws IOException {
+		Ref ref = repo.getRefDatabase().getRef(refName);
+		return ref != null ? ref.getObjectId() : null;
+	}
+
+	private static PersonIdent parsePerson(String person)
+			throws CoreException {
+		PersonIdent ident = RawParseUtils.parsePersonIdent(person);
+		if (ident == null)
+			throw new CoreException("The person " + person //$NON-NLS-1$
+					+ " could not be parsed."); //$NON-NLS-1$
+		return new PersonIdent(ident, new Date(), TimeZone.getDefault());
+	}
+
+	private static String firstLine(String text) {
+		int end = text.indexOf('\n');
+		return end < 0 ? text : text.substring(0, end);
+	}
+
+	/** A pending file */
+	private static class Edit {
+		private final String path;
+
+		private final FileMode mode;
+
+		private final byte[] bytes;
+
+		private final InputStream stream;
+
+		private final long length;
+
+		private final ObjectId objectId;
+
+		Edit(String path, FileMode mode, byte[] bytes, InputStream stream,
+				long length, ObjectId objectId) {
+			this.path = path;
+			this.mode = mode;
+			this.bytes = bytes;
+			this.stream = stream;
+			this.length = length;
+			this.objectId = objectId;
+		}
+
+		PathEdit toPathEdit(ObjectInserter inserter) throws IOException {
+			final ObjectId id;
+			if (objectId != null)
+				id = objectId;
+			else if (bytes != null)
+				id = inserter.insert(Constants.OBJ_BLOB, bytes);
+			else
+				try (InputStream in = stream) {
+					id = inserter.insert(Constants.OBJ_BLOB, length, in);
+				}
+			return new PathEdit(path) {
+				@Override
+				public void apply(DirCacheEntry ent) {
+					ent.setFileMode(mode);
+					ent.setObjectId(id);
+				}
+			};
+		}
+
+		/** Close the stream, if any, whether it was read or not */
+		void close() {
+			if (stream != null)
+				try {
+					stream.close();
+				} catch (IOException e) {
+					// ignore, the content is not used
+				}
+		}
+	}
+}
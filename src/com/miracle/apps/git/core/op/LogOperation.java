@@ -1,19 +1,57 @@
 package com.miracle.apps.git.core.op;
 
+import com.miracle.apps.git.core.ChangedPathIndex;
 import com.miracle.apps.git.core.errors.CoreException;
+import com.miracle.apps.git.core.storage.BlobIdResolver;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.LogCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.diff.DiffConfig;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.RevWalkException;
 import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.DateRevQueue;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevWalk;
 
 /**
  * Operation that gets the commit history
+ * <p>
+ * With a page size the history is read one page at a time: each execution
+ * returns at most that many commits in commit time order, closes its walk
+ * and provides a token from which the next execution continues. The token
+ * holds the commits still to be visited, so a page costs work proportional
+ * to its size rather than to its position in the history. A commit whose
+ * commit time is later than that of one of its descendants (clock skew)
+ * may be listed on more than one page.
+ * <p>
+ * In follow mode the history of a path continues under the file's previous
+ * path when a commit adds it as a rename. Renames are only searched for at
+ * such commits, among the files they delete; as with <code>git log
+ * --follow</code> there is a single current path, so renames on parallel
+ * branches may be missed.
  */
 public class LogOperation implements GitControlOperation {
 
@@ -26,6 +64,35 @@ public class LogOperation implements GitControlOperation {
 	private  Iterable<RevCommit> commits;
 	
 	private int maxCount;
+
+	private int pageSize;
+
+	private String resumeToken;
+
+	private String nextPageToken;
+
+	private List<RevCommit> page;
+
+	private Date since;
+
+	private Date until;
+
+	private String author;
+
+	private boolean retainBody = true;
+
+	/** Default time budget of a history in follow mode, in milliseconds */
+	public static final long DEFAULT_FOLLOW_TIMEOUT = 10000;
+
+	private boolean follow;
+
+	private int renameLimit = -1;
+
+	private long followTimeout = DEFAULT_FOLLOW_TIMEOUT;
+
+	private Map<ObjectId, String> followedPaths;
+
+	private boolean followTruncated;
 	
 	
 	public LogOperation(final Repository repository){
@@ -60,7 +127,23 @@ public class LogOperation implements GitControlOperation {
 
 	@Override
 	public void execute() throws CoreException {
+		if (pageSize > 0) {
+			executePage();
+			return;
+		}
 		try {
+			if (path != null) {
+				ChangedPathIndex changedPaths = ChangedPathIndex
+						.get(repository);
+				if (follow) {
+					commits = followPath(changedPaths);
+					return;
+				}
+				if (changedPaths != null) {
+					commits = walkPath(changedPaths);
+					return;
+				}
+			}
 			LogCommand lc=Git.wrap(repository).log();
 			if(path ==null && start==null){
 				lc.all();
@@ -77,7 +160,195 @@ public class LogOperation implements GitControlOperation {
 			throw new CoreException(e.getMessage());
 		}
 	}
-	
+
+	/**
+	 * Path-limited history without the tree diff of every commit which
+	 * <code>LogCommand.addPath</code> implies. The history is simplified as
+	 * JGit's <code>TreeRevFilter</code> does: a merge which has the same
+	 * content at the path as one of its parents is continued through that
+	 * parent only, so side branches which did not contribute are not listed.
+	 */
+	private Iterable<RevCommit> walkPath(final ChangedPathIndex changedPaths)
+			throws IOException {
+		final Collection<? extends ObjectId> starts = getStartPoints();
+		return new Iterable<RevCommit>() {
+			@Override
+			public Iterator<RevCommit> iterator() {
+				try {
+					return new PathWalk(starts, changedPaths);
+				} catch (IOException e) {
+					throw new RevWalkException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Commits touching {@link #path}, newest first. The walk enqueues the
+	 * parents itself since a <code>RevFilter</code> cannot rewrite them.
+	 */
+	private class PathWalk implements Iterator<RevCommit> {
+		private final RevWalk walk;
+
+		private final ChangedPathIndex changedPaths;
+
+		private final DateRevQueue queue = new DateRevQueue();
+
+		private final RevFlag seen;
+
+		/** history before the commit does not matter, as for a root */
+		private final RevFlag cut;
+
+		private int produced;
+
+		private RevCommit next;
+
+		PathWalk(Collection<? extends ObjectId> starts,
+				ChangedPathIndex changedPaths) throws IOException {
+			this.walk = new RevWalk(repository);
+			this.changedPaths = changedPaths;
+			this.seen = walk.newFlag("seen"); //$NON-NLS-1$
+			this.cut = walk.newFlag("cut"); //$NON-NLS-1$
+			for (ObjectId id : starts)
+				enqueue(walk.parseCommit(id));
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null && (maxCount == 0 || produced < maxCount))
+				try {
+					next = findNext();
+				} catch (IOException e) {
+					throw new RevWalkException(e);
+				}
+			return next != null;
+		}
+
+		@Override
+		public RevCommit next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			RevCommit commit = next;
+			next = null;
+			produced++;
+			return commit;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void enqueue(RevCommit commit) throws IOException {
+			if (commit.has(seen))
+				return;
+			walk.parseHeaders(commit);
+			commit.add(seen);
+			queue.add(commit);
+		}
+
+		private RevCommit findNext() throws IOException {
+			RevCommit commit;
+			while ((commit = queue.next()) != null) {
+				if (commit.getParentCount() == 0 || commit.has(cut)) {
+					if (BlobIdResolver.resolve(repository, commit, path) != null)
+						return commit;
+					continue;
+				}
+				RevCommit same = findSameParent(walk, commit, changedPaths,
+						cut);
+				if (same != null) {
+					enqueue(same);
+					continue;
+				}
+				for (RevCommit parent : commit.getParents())
+					enqueue(parent);
+				return commit;
+			}
+			walk.close();
+			return null;
+		}
+	}
+
+	/**
+	 * @return the first parent with the same content at {@link #path} as
+	 *         <code>commit</code>, or <code>null</code> if the commit changes
+	 *         the path; parents of a merge which lack the path are flagged
+	 *         with <code>cut</code>
+	 */
+	private RevCommit findSameParent(RevWalk walk, RevCommit commit,
+			ChangedPathIndex changedPaths, RevFlag cut) throws IOException {
+		if (changedPaths != null && !changedPaths.mightHaveChanged(commit, path))
+			return commit.getParent(0);
+		ObjectId id = BlobIdResolver.resolve(repository, commit, path);
+		for (RevCommit parent : commit.getParents()) {
+			walk.parseHeaders(parent);
+			ObjectId parentId = BlobIdResolver.resolve(repository, parent, path);
+			if (id == null ? parentId == null : id.equals(parentId))
+				return parent;
+			// the merge adds the path, the parent's history cannot have
+			// contributed to it
+			if (parentId == null && commit.getParentCount() > 1)
+				parent.add(cut);
+		}
+		return null;
+	}
+
+	/**
+	 * History of the followed file, newest first. Reaching the time budget
+	 * ends the history early.
+	 */
+	private Iterable<RevCommit> followPath(ChangedPathIndex changedPaths)
+			throws IOException {
+		long deadline = System.currentTimeMillis() + followTimeout;
+		int limit = renameLimit >= 0 ? renameLimit : repository.getConfig()
+				.get(DiffConfig.KEY).getRenameLimit();
+		List<RevCommit> result = new ArrayList<RevCommit>();
+		followedPaths = new HashMap<ObjectId, String>();
+		followTruncated = false;
+		String current = path;
+		try (RevWalk walk = new RevWalk(repository)) {
+			RenameFollower follower = new RenameFollower(walk
+					.getObjectReader(), limit, deadline);
+			for (ObjectId id : getStartPoints())
+				walk.markStart(walk.parseCommit(id));
+			RevCommit commit;
+			while ((maxCount == 0 || result.size() < maxCount)
+					&& (commit = walk.next()) != null) {
+				if (System.currentTimeMillis() > deadline) {
+					followTruncated = true;
+					break;
+				}
+				if (!touchesPath(commit, current, changedPaths))
+					continue;
+				result.add(commit);
+				followedPaths.put(commit, current);
+				ObjectId blobId = BlobIdResolver.resolve(repository, commit,
+						current);
+				if (blobId == null || commit.getParentCount() == 0
+						|| !isAddedBy(commit, current))
+					continue;
+				String source = follower.findSource(commit, commit
+						.getParent(0), current, blobId);
+				if (follower.isTimedOut()) {
+					followTruncated = true;
+					break;
+				}
+				if (source != null)
+					current = source;
+			}
+		}
+		return result;
+	}
+
+	private boolean isAddedBy(RevCommit commit, String path)
+			throws IOException {
+		for (RevCommit parent : commit.getParents())
+			if (BlobIdResolver.resolve(repository, parent, path) != null)
+				return false;
+		return true;
+	}
+
 	public Iterable<RevCommit> getCommitResults(){
 		return this.commits;
 	}
@@ -86,9 +357,343 @@ public class LogOperation implements GitControlOperation {
 		this.maxCount = maxCount;
 	}
 
+	/**
+	 * @param pageSize
+	 *            maximum number of commits returned by one execution; 0 to
+	 *            get the whole history as a lazy iterable
+	 */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * @param resumeToken
+	 *            the {@link #getNextPageToken()} of the previous page, or
+	 *            <code>null</code> for the first page
+	 */
+	public void setResumeToken(String resumeToken) {
+		this.resumeToken = resumeToken;
+	}
+
+	/**
+	 * @param since
+	 *            only list commits committed at or after this time; the walk
+	 *            stops at the first older commit
+	 */
+	public void setSince(Date since) {
+		this.since = since;
+	}
+
+	/**
+	 * @param until
+	 *            only list commits committed at or before this time
+	 */
+	public void setUntil(Date until) {
+		this.until = until;
+	}
+
+	/**
+	 * @param author
+	 *            only list commits whose author name or email contains this
+	 *            text, ignoring case
+	 */
+	public void setAuthor(String author) {
+		this.author = author != null ? author.toLowerCase(Locale.ROOT) : null;
+	}
+
+	/**
+	 * @param retainBody
+	 *            <code>false</code> to drop the message and identities of the
+	 *            returned commits, saving memory when only ids, parents and
+	 *            times are needed
+	 */
+	public void setRetainBody(boolean retainBody) {
+		this.retainBody = retainBody;
+	}
+
+	/**
+	 * @param follow
+	 *            <code>true</code> to continue the history of the path across
+	 *            renames; not supported together with paging
+	 */
+	public void setFollow(boolean follow) {
+		this.follow = follow;
+	}
+
+	/**
+	 * @param renameLimit
+	 *            maximum number of files deleted by a commit which are
+	 *            compared by content when looking for the previous path; 0
+	 *            for no limit, -1 to use diff.renameLimit
+	 */
+	public void setRenameLimit(int renameLimit) {
+		this.renameLimit = renameLimit;
+	}
+
+	/**
+	 * @param followTimeout
+	 *            time budget of the history in follow mode, in milliseconds
+	 */
+	public void setFollowTimeout(long followTimeout) {
+		this.followTimeout = followTimeout;
+	}
+
+	/**
+	 * @param commit
+	 *            a commit of the history read in follow mode
+	 * @return the path of the followed file in <code>commit</code>, or
+	 *         <code>null</code> if the commit was not listed
+	 */
+	public String getFollowedPath(AnyObjectId commit) {
+		return followedPaths != null ? followedPaths.get(commit) : null;
+	}
+
+	/**
+	 * @return <code>true</code> if the history in follow mode ended early
+	 *         because the time budget was used up
+	 */
+	public boolean isFollowTruncated() {
+		return followTruncated;
+	}
+
+	/**
+	 * @return the commits of the page read by the last execution
+	 */
+	public List<RevCommit> getPage() {
+		return page;
+	}
+
+	/**
+	 * @return the token to pass to {@link #setResumeToken(String)} to read
+	 *         the next page, or <code>null</code> if the history is exhausted
+	 */
+	public String getNextPageToken() {
+		return nextPageToken;
+	}
+
+	/**
+	 * Pages of the history. The walk enqueues the parents itself, so that a
+	 * path-limited history is simplified the same way as {@link PathWalk}.
+	 */
+	private void executePage() throws CoreException {
+		try (RevWalk walk = new RevWalk(repository)) {
+			walk.setRetainBody(retainBody || author != null);
+			ChangedPathIndex changedPaths = path != null ? ChangedPathIndex
+					.get(repository) : null;
+			RevFlag seen = walk.newFlag("seen"); //$NON-NLS-1$
+			RevFlag cut = walk.newFlag("cut"); //$NON-NLS-1$
+			DateRevQueue queue = new DateRevQueue();
+			// the queued commits
+			Set<RevCommit> pending = new HashSet<RevCommit>();
+			// commits walked by previous pages which the walk can reach again
+			Set<RevCommit> listed = new HashSet<RevCommit>();
+			// commits flagged with cut, which the next page must know
+			Set<RevCommit> cuts = new HashSet<RevCommit>();
+			Collection<? extends ObjectId> starts;
+			if (resumeToken != null) {
+				List<ObjectId> listedIds = new ArrayList<ObjectId>();
+				List<ObjectId> cutIds = new ArrayList<ObjectId>();
+				starts = decodeToken(resumeToken, listedIds, cutIds);
+				for (ObjectId id : listedIds)
+					listed.add(walk.parseCommit(id));
+				for (ObjectId id : cutIds) {
+					RevCommit commit = walk.parseCommit(id);
+					commit.add(cut);
+					cuts.add(commit);
+				}
+			} else
+				starts = getStartPoints();
+			for (ObjectId id : starts) {
+				try {
+					enqueue(walk, walk.parseCommit(id), seen, queue, pending);
+				} catch (IncorrectObjectTypeException e) {
+					// a ref to a tree or a blob
+				}
+			}
+
+			List<RevCommit> result = new ArrayList<RevCommit>(pageSize);
+			List<RevCommit> walked = new ArrayList<RevCommit>();
+			RevCommit commit;
+			while (result.size() < pageSize && (commit = queue.next()) != null) {
+				if (since != null
+						&& commit.getCommitTime() * 1000L < since.getTime()) {
+					pending.clear();
+					break;
+				}
+				pending.remove(commit);
+				boolean touches = true;
+				RevCommit[] parents = commit.getParents();
+				if (path != null) {
+					if (commit.getParentCount() == 0 || commit.has(cut)) {
+						touches = BlobIdResolver.resolve(repository, commit,
+								path) != null;
+						parents = new RevCommit[0];
+					} else {
+						RevCommit same = findSameParent(walk, commit,
+								changedPaths, cut);
+						for (RevCommit parent : commit.getParents())
+							if (parent.has(cut))
+								cuts.add(parent);
+						if (same != null) {
+							touches = false;
+							parents = new RevCommit[] { same };
+						}
+					}
+				}
+				for (RevCommit parent : parents)
+					enqueue(walk, parent, seen, queue, pending);
+				if (listed.contains(commit))
+					continue;
+				walked.add(commit);
+				if (touches && accept(commit)) {
+					if (!retainBody)
+						commit.disposeBody();
+					result.add(commit);
+				}
+			}
+			page = result;
+			nextPageToken = pending.isEmpty() ? null : encodeToken(pending,
+					listed, walked, cuts, seen);
+		} catch (IOException e) {
+			throw new CoreException(e.getMessage(), e);
+		}
+	}
+
+	private static void enqueue(RevWalk walk, RevCommit commit, RevFlag seen,
+			DateRevQueue queue, Set<RevCommit> pending) throws IOException {
+		if (commit.has(seen))
+			return;
+		walk.parseHeaders(commit);
+		commit.add(seen);
+		queue.add(commit);
+		pending.add(commit);
+	}
+
+	private Collection<? extends ObjectId> getStartPoints() throws IOException {
+		if (start != null)
+			return Collections.singleton(start.toObjectId());
+		if (path != null) {
+			ObjectId head = repository.resolve(Constants.HEAD);
+			return head != null ? Collections.singleton(head) : Collections
+					.<ObjectId> emptySet();
+		}
+		List<ObjectId> starts = new ArrayList<ObjectId>();
+		// tags are peeled by RevWalk.parseCommit
+		for (Ref ref : repository.getRefDatabase().getRefs(RefDatabase.ALL)
+				.values())
+			if (ref.getObjectId() != null)
+				starts.add(ref.getObjectId());
+		return starts;
+	}
+
+	private boolean accept(RevCommit commit) {
+		if (until != null && commit.getCommitTime() * 1000L > until.getTime())
+			return false;
+		if (author != null) {
+			PersonIdent ident = commit.getAuthorIdent();
+			if (!ident.getName().toLowerCase(Locale.ROOT).contains(author)
+					&& !ident.getEmailAddress().toLowerCase(Locale.ROOT)
+							.contains(author))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Like git log &lt;path&gt;, a merge is only listed if it differs from all
+	 * of its parents. The changed path index rules out most commits without
+	 * looking at their trees.
+	 */
+	private boolean touchesPath(RevCommit commit, String path,
+			ChangedPathIndex changedPaths) throws IOException {
+		if (changedPaths != null && !changedPaths.mightHaveChanged(commit, path))
+			return false;
+		ObjectId id = BlobIdResolver.resolve(repository, commit, path);
+		if (commit.getParentCount() == 0)
+			return id != null;
+		for (RevCommit parent : commit.getParents()) {
+			ObjectId parentId = BlobIdResolver.resolve(repository, parent, path);
+			if (id == null ? parentId == null : id.equals(parentId))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The token lists the pending commits, and the walked commits which are
+	 * not newer than the newest pending one. Without clock skew only those
+	 * can be reached again from the pending commits, namely when they have
+	 * the same commit time; they are skipped by the next page. The pending
+	 * or not yet reached commits flagged with cut, which are not newer than
+	 * the newest pending one either, follow in a third section.
+	 */
+	private static String encodeToken(Set<RevCommit> pending,
+			Set<RevCommit> listed, List<RevCommit> walked,
+			Set<RevCommit> cuts, RevFlag seen) {
+		int newest = Integer.MIN_VALUE;
+		StringBuilder token = new StringBuilder();
+		for (RevCommit commit : pending) {
+			newest = Math.max(newest, commit.getCommitTime());
+			if (token.length() > 0)
+				token.append(',');
+			token.append(commit.name());
+		}
+		token.append(';');
+		boolean first = true;
+		List<RevCommit> skipped = new ArrayList<RevCommit>(listed);
+		skipped.addAll(walked);
+		for (RevCommit commit : skipped)
+			if (commit.getCommitTime() <= newest) {
+				if (first)
+					first = false;
+				else
+					token.append(',');
+				token.append(commit.name());
+			}
+		first = true;
+		for (RevCommit commit : cuts)
+			if (commit.getCommitTime() <= newest
+					&& (pending.contains(commit) || !commit.has(seen))) {
+				token.append(first ? ';' : ',');
+				first = false;
+				token.append(commit.name());
+			}
+		return token.toString();
+	}
+
+	private static List<ObjectId> decodeToken(String token,
+			List<ObjectId> listed, List<ObjectId> cuts) throws CoreException {
+		String[] sections = token.split(";", -1); //$NON-NLS-1$
+		if (sections.length < 2 || sections.length > 3)
+			throw new CoreException("Invalid resume token: " + token); //$NON-NLS-1$
+		List<ObjectId> pending = new ArrayList<ObjectId>();
+		parseIds(token, sections[0], pending);
+		parseIds(token, sections[1], listed);
+		if (sections.length == 3)
+			parseIds(token, sections[2], cuts);
+		return pending;
+	}
+
+	private static void parseIds(String token, String ids,
+			Collection<ObjectId> result) throws CoreException {
+		if (ids.length() == 0)
+			return;
+		for (String id : ids.split(",")) { //$NON-NLS-1$
+			if (!ObjectId.isId(id))
+				throw new CoreException("Invalid resume token: " + token); //$NON-NLS-1$
+			result.add(ObjectId.fromString(id));
+		}
+	}
+
 	@Override
 	public String toString() {
 		StringBuffer sb=new StringBuffer();
+		if (page != null) {
+			sb.append("Show In History:");
+			for (RevCommit commit : page)
+				sb.append("\n" + commit.getId());
+			return sb.toString();
+		}
 		if(commits!=null){
 			sb.append("Show In History:");
 			Iterator<RevCommit> RevCommits=this.commits.iterator();
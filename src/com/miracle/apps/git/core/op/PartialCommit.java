@@ -0,0 +1,271 @@
+package com.miracle.apps.git.core.op;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuildIterator;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.CoreConfig.AutoCRLF;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.RefUpdate.Result;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.FileTreeIterator.FileEntry;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.WorkingTreeOptions;
+import org.eclipse.jgit.util.ChangeIdUtil;
+import org.eclipse.jgit.util.FS;
+
+import com.miracle.apps.git.core.ContentHasher;
+import com.miracle.apps.git.core.errors.CoreException;
+
+/**
+ * Commits the working tree state of selected paths on top of HEAD, like
+ * <code>git commit --only</code>.
+ * <p>
+ * The new tree and the updated index are built in a single walk over the
+ * index and HEAD; only the selected files are looked up in the working tree
+ * and only those whose index entry is not stat clean are hashed. The rest of
+ * the index is kept as it is.
+ */
+class PartialCommit {
+
+	private final Repository repo;
+
+	private final TreeSet<String> paths = new TreeSet<String>();
+
+	private final PersonIdent author;
+
+	private final PersonIdent committer;
+
+	private final String message;
+
+	private final boolean insertChangeId;
+
+	/**
+	 * @param repository
+	 * @param paths
+	 *            repository-relative paths of the files or directories to
+	 *            commit
+	 * @param author
+	 * @param committer
+	 * @param message
+	 * @param insertChangeId
+	 */
+	PartialCommit(Repository repository, Collection<String> paths,
+			PersonIdent author, PersonIdent committer, String message,
+			boolean insertChangeId) {
+		this.repo = repository;
+		for (String path : paths)
+			this.paths.add(path.endsWith("/") ? path.substring(0, //$NON-NLS-1$
+					path.length() - 1) : path);
+		this.author = author;
+		this.committer = committer;
+		this.message = message;
+		this.insertChangeId = insertChangeId;
+	}
+
+	/**
+	 * @return the new commit, or <code>null</code> if the selected files do
+	 *         not differ from HEAD
+	 * @throws IOException
+	 * @throws CoreException
+	 *             if a path is not tracked or HEAD cannot be updated
+	 */
+	RevCommit commit() throws IOException, CoreException {
+		ObjectId headId = repo.resolve(Constants.HEAD + "^{commit}"); //$NON-NLS-1$
+		WorkingTreeOptions options = repo.getConfig().get(
+				WorkingTreeOptions.KEY);
+		File workTree = repo.getWorkTree();
+		FS fs = repo.getFS();
+
+		DirCache index = repo.lockDirCache();
+		try (ObjectInserter inserter = repo.newObjectInserter();
+				RevWalk rw = new RevWalk(repo);
+				TreeWalk tw = new TreeWalk(repo)) {
+			DirCacheBuilder indexBuilder = index.builder();
+			DirCache tree = DirCache.newInCore();
+			DirCacheBuilder treeBuilder = tree.builder();
+
+			tw.addTree(new DirCacheBuildIterator(indexBuilder));
+			int headTree = headId != null ? tw.addTree(rw.parseTree(headId))
+					: -1;
+			tw.setRecursive(true);
+
+			TreeSet<String> processed = new TreeSet<String>();
+			List<DirCacheEntry> hashed = new ArrayList<DirCacheEntry>();
+			List<File> hashedFiles = new ArrayList<File>();
+			List<ObjectId> headIds = new ArrayList<ObjectId>();
+			boolean changed = false;
+			String lastPath = null;
+			while (tw.next()) {
+				String path = tw.getPathString();
+				// stages of a conflicting path share one tree entry
+				boolean repeated = path.equals(lastPath);
+				lastPath = path;
+				DirCacheIterator c = tw.getTree(0, DirCacheIterator.class);
+				CanonicalTreeParser h = headTree >= 0 ? tw.getTree(headTree,
+						CanonicalTreeParser.class) : null;
+				String selectedBy = lookup(path);
+				if (selectedBy == null) {
+					if (c != null)
+						indexBuilder.add(c.getDirCacheEntry());
+					if (h != null && !repeated) {
+						DirCacheEntry entry = new DirCacheEntry(path);
+						entry.setObjectId(h.getEntryObjectId());
+						entry.setFileMode(h.getEntryFileMode());
+						treeBuilder.add(entry);
+					}
+					continue;
+				}
+
+				processed.add(selectedBy);
+				if (repeated)
+					continue;
+				File file = new File(workTree, path);
+				FileEntry f = fs.exists(file) ? new FileEntry(file, fs) : null;
+				FileMode mode = f != null ? f.getMode() : FileMode.MISSING;
+				if (FileMode.MISSING == mode || FileMode.TREE == mode) {
+					// deleted, or replaced by a directory of untracked files
+					if (h != null)
+						changed = true;
+					continue;
+				}
+
+				DirCacheEntry existing = c != null ? c.getDirCacheEntry()
+						: null;
+				FileMode recorded = existing != null ? existing.getFileMode()
+						: h.getEntryFileMode();
+				if (!options.isFileMode() && isFile(mode) && isFile(recorded))
+					mode = recorded;
+				DirCacheEntry entry = new DirCacheEntry(path);
+				boolean pending = false;
+				entry.setFileMode(mode);
+				entry.setLength(f.getLength());
+				entry.setLastModified(f.getLastModified());
+				if (existing != null && existing.getStage() == 0
+						&& isStatClean(existing, f, mode))
+					entry.setObjectId(existing.getObjectId());
+				else if (FileMode.GITLINK == mode)
+					// the checked out submodule commit is not read here
+					entry.setObjectId(existing != null ? existing
+							.getObjectId() : h.getEntryObjectId());
+				else if (FileMode.SYMLINK == mode)
+					entry.setObjectId(inserter.insert(Constants.OBJ_BLOB,
+							Constants.encode(fs.readSymLink(file))));
+				else {
+					// the content is compared with HEAD once it is hashed
+					pending = true;
+					hashed.add(entry);
+					hashedFiles.add(file);
+					headIds.add(h != null ? h.getEntryObjectId() : null);
+				}
+				indexBuilder.add(entry);
+				treeBuilder.add(entry);
+				if (h == null || h.getEntryRawMode() != mode.getBits()
+						|| !pending
+						&& !h.getEntryObjectId().equals(entry.getObjectId()))
+					changed = true;
+			}
+
+			for (String path : paths)
+				if (!processed.contains(path))
+					throw new CoreException("Entry not found by path: " + path); //$NON-NLS-1$
+
+			ObjectId[] ids = new ContentHasher(repo, inserter,
+					options.getAutoCRLF() != AutoCRLF.FALSE).hash(hashedFiles);
+			for (int i = 0; i < ids.length; i++)
+				hashed.get(i).setObjectId(ids[i]);
+			for (int i = 0; i < ids.length && !changed; i++)
+				changed = !ids[i].equals(headIds.get(i));
+			if (!changed)
+				return null;
+
+			inserter.flush();
+			indexBuilder.commit();
+			treeBuilder.finish();
+			ObjectId treeId = tree.writeTree(inserter);
+
+			CommitBuilder commit = new CommitBuilder();
+			commit.setTreeId(treeId);
+			if (headId != null)
+				commit.setParentId(headId);
+			commit.setAuthor(author);
+			commit.setCommitter(committer);
+			commit.setMessage(insertChangeId ? insertChangeId(treeId, headId)
+					: message);
+			ObjectId commitId = inserter.insert(commit);
+			inserter.flush();
+
+			RevCommit revCommit = rw.parseCommit(commitId);
+			RefUpdate ru = repo.updateRef(Constants.HEAD);
+			ru.setNewObjectId(commitId);
+			ru.setRefLogMessage((headId == null ? "commit (initial): " //$NON-NLS-1$
+					: "commit: ") + revCommit.getShortMessage(), false); //$NON-NLS-1$
+			ru.setExpectedOldObjectId(headId != null ? headId : ObjectId
+					.zeroId());
+			Result rc = ru.forceUpdate();
+			if (rc != Result.NEW && rc != Result.FORCED
+					&& rc != Result.FAST_FORWARD)
+				throw new CoreException("Could not update HEAD (cause: " + rc //$NON-NLS-1$
+						+ ")"); //$NON-NLS-1$
+			return revCommit;
+		} finally {
+			index.unlock();
+		}
+	}
+
+	/**
+	 * @return the selected path equal to or containing <code>path</code>, or
+	 *         <code>null</code>
+	 */
+	private String lookup(String path) {
+		if (paths.contains(path))
+			return path;
+		for (int slash = path.lastIndexOf('/'); slash > 0; slash = path
+				.lastIndexOf('/', slash - 1)) {
+			String parent = path.substring(0, slash);
+			if (paths.contains(parent))
+				return parent;
+		}
+		return null;
+	}
+
+	private String insertChangeId(ObjectId treeId, ObjectId parentId)
+			throws IOException {
+		ObjectId changeId = ChangeIdUtil.computeChangeId(treeId, parentId,
+				author, committer, message);
+		String result = ChangeIdUtil.insertId(message, changeId);
+		if (changeId != null)
+			result = result.replaceAll("\nChange-Id: I" //$NON-NLS-1$
+					+ ObjectId.zeroId().getName() + "\n", "\nChange-Id: I" //$NON-NLS-1$ //$NON-NLS-2$
+					+ changeId.getName() + "\n"); //$NON-NLS-1$
+		return result;
+	}
+
+	private static boolean isStatClean(DirCacheEntry existing, FileEntry f,
+			FileMode mode) {
+		return !existing.isSmudged() && existing.getFileMode() == mode
+				&& existing.getLength() == f.getLength()
+				&& existing.getLastModified() == f.getLastModified();
+	}
+
+	private static boolean isFile(FileMode mode) {
+		return FileMode.REGULAR_FILE == mode || FileMode.EXECUTABLE_FILE == mode;
+	}
+}
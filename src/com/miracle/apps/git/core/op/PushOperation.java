@@ -1,10 +1,25 @@
 package com.miracle.apps.git.core.op;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
@@ -28,6 +43,14 @@ import com.miracle.apps.git.core.errors.CoreException;
  */
 public class PushOperation implements GitControlOperation{
 
+	/** Default number of URIs of a specification pushed to concurrently */
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	/** Aborts pushes which exceed their URI timeout */
+	private static final ScheduledExecutorService watchdog = Executors
+			.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+					"PushOperation-watchdog")); //$NON-NLS-1$
+
 	private final Repository localDb;
 
 	private final PushOperationSpecification specification;
@@ -46,6 +69,10 @@ public class PushOperation implements GitControlOperation{
 
 	private List<RefSpec> specs;
 
+	private int parallelism = DEFAULT_PARALLELISM;
+
+	private int uriTimeout;
+
 	/**
 	 * Create push operation for provided specification.
 	 *
@@ -153,6 +180,38 @@ public class PushOperation implements GitControlOperation{
 		this.out = out;
 	}
 
+	/**
+	 * Sets how many URIs of the specification are pushed to at the same time.
+	 *
+	 * @param parallelism
+	 *            maximum number of concurrent pushes, at least 1; defaults to
+	 *            {@link #DEFAULT_PARALLELISM}
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("parallelism must be at least 1"); //$NON-NLS-1$
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Sets the time a push to one URI of the specification may take in total.
+	 * Unlike the transport timeout, which limits each network read, this
+	 * limits the whole push; a push exceeding it is aborted and recorded as
+	 * failed.
+	 *
+	 * @param uriTimeout
+	 *            the timeout in seconds (0 for no timeout)
+	 */
+	public void setURITimeout(int uriTimeout) {
+		this.uriTimeout = uriTimeout;
+	}
+
+	/**
+	 * Pushes to the URIs of the specification concurrently. A failing URI does
+	 * not stop the pushes to the others: every URI gets its result or error
+	 * message in the {@link #getOperationResult() operation result}, and the
+	 * first failure is thrown once all pushes have finished.
+	 */
 	@Override
 	public void execute() throws GitAPIException {
 		if (operationResult != null)
@@ -168,33 +227,8 @@ public class PushOperation implements GitControlOperation{
 		operationResult = new PushOperationResult();
 		Git git = new Git(localDb);
 
-		if (specification != null){
-			for (final URIish uri : specification.getURIs()) {
-					Collection<RemoteRefUpdate> refUpdates = specification.getRefUpdates(uri);
-
-					try {
-						Transport transport = Transport.open(localDb, uri);
-						transport.setDryRun(dryRun);
-						transport.setTimeout(timeout);
-						if (credentialsProvider != null)
-							transport.setCredentialsProvider(credentialsProvider);
-						PushResult result = transport.push(NullProgressMonitor.INSTANCE, refUpdates, out);
-
-						operationResult.addOperationResult(result.getURI(), result);
-						specification.addURIRefUpdates(result.getURI(), result.getRemoteUpdates());
-					} catch (JGitInternalException e) {
-						String errorMessage = e.getCause() != null ? e
-								.getCause().getMessage() : e.getMessage();
-						String userMessage = "An internal Exception occurred during push: "+errorMessage;
-						operationResult.addOperationResult(uri, userMessage);
-						throw new CoreException(userMessage, e);
-					} catch (Exception e) {
-						operationResult.addOperationResult(uri, e.getMessage());
-						throw new CoreException(e.getMessage(), e);
-					}
-
-				} 
-		}
+		if (specification != null)
+			pushToURIs();
 		else {
 			try {
 				Iterable<PushResult> results = git.push().setRemote(
@@ -219,6 +253,199 @@ public class PushOperation implements GitControlOperation{
 		}
 	}
 
+	private void pushToURIs() throws CoreException {
+		Set<URIish> uris = specification.getURIs();
+		List<URIPush> pushes = new ArrayList<URIPush>(uris.size());
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(parallelism, uris.size())),
+				new DaemonThreadFactory("PushOperation-worker")); //$NON-NLS-1$
+		try {
+			for (URIish uri : uris) {
+				URIPush push = new URIPush(uri, uris.size() > 1 && out != null);
+				pushes.add(push);
+				executor.execute(push.future);
+			}
+
+			CoreException failure = null;
+			for (URIPush push : pushes) {
+				CoreException e = push.complete();
+				if (failure == null)
+					failure = e;
+			}
+			if (failure != null)
+				throw failure;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Push to one URI of the specification. Sideband messages are buffered
+	 * when several URIs are pushed to, and written in specification order.
+	 */
+	private class URIPush implements Callable<PushResult> {
+		final URIish uri;
+
+		final FutureTask<PushResult> future;
+
+		/** counted down once the worker is done with the task */
+		private final CountDownLatch finished = new CountDownLatch(1);
+
+		/** taken on the caller thread, which later records the results */
+		private final Collection<RemoteRefUpdate> refUpdates;
+
+		private final ByteArrayOutputStream buffer;
+
+		private volatile Transport transport;
+
+		/** the worker is still running, its buffer is left to it */
+		private boolean abandoned;
+
+		private volatile boolean timedOut;
+
+		URIPush(URIish uri, boolean buffered) {
+			this.uri = uri;
+			this.future = new FutureTask<PushResult>(this) {
+				@Override
+				public void run() {
+					try {
+						super.run();
+					} finally {
+						finished.countDown();
+					}
+				}
+			};
+			this.refUpdates = new ArrayList<RemoteRefUpdate>(
+					specification.getRefUpdates(uri));
+			this.buffer = buffered ? new ByteArrayOutputStream() : null;
+		}
+
+		@Override
+		public PushResult call() throws Exception {
+			ScheduledFuture<?> timer = null;
+			if (uriTimeout > 0)
+				timer = watchdog.schedule(new Runnable() {
+					@Override
+					public void run() {
+						abort();
+					}
+				}, uriTimeout, TimeUnit.SECONDS);
+			try {
+				transport = Transport.open(localDb, uri);
+				transport.setDryRun(dryRun);
+				// socket reads ignore the interrupt, the read timeout bounds
+				// how long an aborted push keeps running
+				if (uriTimeout > 0 && (timeout <= 0 || timeout > uriTimeout))
+					transport.setTimeout(uriTimeout);
+				else
+					transport.setTimeout(timeout);
+				if (credentialsProvider != null)
+					transport.setCredentialsProvider(credentialsProvider);
+				return transport.push(NullProgressMonitor.INSTANCE, refUpdates,
+						buffer != null ? buffer : out);
+			} finally {
+				if (timer != null)
+					timer.cancel(false);
+				if (transport != null)
+					transport.close();
+			}
+		}
+
+		/** Aborts the push once its URI timeout has expired */
+		void abort() {
+			timedOut = true;
+			future.cancel(true);
+			Transport t = transport;
+			if (t != null)
+				t.close();
+		}
+
+		/**
+		 * Waits for the push and records its outcome.
+		 *
+		 * @return the failure of this push, or <code>null</code>
+		 * @throws CoreException
+		 *             if interrupted while waiting
+		 */
+		CoreException complete() throws CoreException {
+			try {
+				PushResult result = future.get();
+				operationResult.addOperationResult(result.getURI(), result);
+				specification.addURIRefUpdates(result.getURI(),
+						result.getRemoteUpdates());
+				return null;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CoreException(e.getMessage(), e);
+			} catch (CancellationException e) {
+				// the worker may still be inside Transport.push
+				abandoned = !awaitWorker();
+				return failed("Push timed out after " + uriTimeout + " seconds", e); //$NON-NLS-1$ //$NON-NLS-2$
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (timedOut)
+					return failed("Push timed out after " + uriTimeout + " seconds", cause); //$NON-NLS-1$ //$NON-NLS-2$
+				if (cause instanceof JGitInternalException) {
+					String errorMessage = cause.getCause() != null ? cause
+							.getCause().getMessage() : cause.getMessage();
+					return failed("An internal Exception occurred during push: " + errorMessage, cause); //$NON-NLS-1$
+				}
+				return failed(cause.getMessage(), cause);
+			} finally {
+				writeBuffer();
+			}
+		}
+
+		/**
+		 * Waits for the worker of an aborted push. Socket reads ignore the
+		 * interrupt, so this is bounded by the read timeout of the transport.
+		 *
+		 * @return whether the worker has finished
+		 * @throws CoreException
+		 *             if interrupted while waiting
+		 */
+		private boolean awaitWorker() throws CoreException {
+			try {
+				return finished.await(uriTimeout, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CoreException(e.getMessage(), e);
+			}
+		}
+
+		private CoreException failed(String message, Throwable cause) {
+			operationResult.addOperationResult(uri, message);
+			return new CoreException(message, cause);
+		}
+
+		private void writeBuffer() {
+			if (abandoned || buffer == null || buffer.size() == 0)
+				return;
+			try {
+				buffer.writeTo(out);
+			} catch (IOException e) {
+				// sideband messages are informational only
+			}
+		}
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String name;
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, name + '-' + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
 	@Override
 	public String toString() {
 		StringBuffer sb=new StringBuffer();
@@ -0,0 +1,197 @@
+package com.miracle.apps.git.core.op;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.diff.SimilarityIndex;
+import org.eclipse.jgit.diff.SimilarityIndex.TableFullException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Finds the path a file had before the commit which added it under its
+ * current path, for {@link LogOperation} in follow mode.
+ * <p>
+ * Only the files deleted by that commit are candidates. An exact rename is
+ * found by blob id; otherwise the content similarity of each candidate is
+ * scored like JGit's rename detection does. Scores are cached by blob id
+ * pair across operations, so following the same file again does not read
+ * the contents again.
+ */
+class RenameFollower {
+
+	/** Minimum similarity, in percent, of a rename; JGit's default */
+	static final int RENAME_SCORE = 60;
+
+	private static final int SCORE_CACHE_SIZE = 4096;
+
+	private static final Map<BlobPair, Integer> scores = new LinkedHashMap<BlobPair, Integer>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<BlobPair, Integer> eldest) {
+			return size() > SCORE_CACHE_SIZE;
+		}
+	};
+
+	private final ObjectReader reader;
+
+	private final int renameLimit;
+
+	private final long deadline;
+
+	private boolean timedOut;
+
+	/**
+	 * @param reader
+	 * @param renameLimit
+	 *            maximum number of deleted files compared by content, 0 for
+	 *            no limit; exact renames are found regardless
+	 * @param deadline
+	 *            time in milliseconds after which no more contents are
+	 *            compared
+	 */
+	RenameFollower(ObjectReader reader, int renameLimit, long deadline) {
+		this.reader = reader;
+		this.renameLimit = renameLimit;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * @param commit
+	 *            commit adding <code>path</code>
+	 * @param parent
+	 * @param path
+	 * @param blobId
+	 *            the content of <code>path</code> in <code>commit</code>
+	 * @return the path the file had in <code>parent</code>, or
+	 *         <code>null</code> if it was not renamed
+	 * @throws IOException
+	 */
+	String findSource(RevCommit commit, RevCommit parent, String path,
+			ObjectId blobId) throws IOException {
+		List<String> paths = new ArrayList<String>();
+		List<ObjectId> ids = new ArrayList<ObjectId>();
+		try (TreeWalk tw = new TreeWalk(reader)) {
+			tw.addTree(parent.getTree());
+			tw.addTree(commit.getTree());
+			tw.setRecursive(true);
+			tw.setFilter(TreeFilter.ANY_DIFF);
+			while (tw.next()) {
+				if (tw.getRawMode(1) != 0
+						|| tw.getFileMode(0).getObjectType() != Constants.OBJ_BLOB
+						|| FileMode.GITLINK == tw.getFileMode(0))
+					continue;
+				paths.add(tw.getPathString());
+				ids.add(tw.getObjectId(0));
+			}
+		}
+
+		String best = null;
+		for (int i = 0; i < ids.size(); i++)
+			if (ids.get(i).equals(blobId))
+				best = betterMatch(path, best, paths.get(i));
+		if (best != null || ids.isEmpty()
+				|| (renameLimit > 0 && ids.size() > renameLimit))
+			return best;
+
+		long dstSize = reader.getObjectSize(blobId, Constants.OBJ_BLOB);
+		SimilarityIndex dst = null;
+		int bestScore = RENAME_SCORE - 1;
+		for (int i = 0; i < ids.size(); i++) {
+			ObjectId srcId = ids.get(i);
+			BlobPair pair = new BlobPair(srcId, blobId);
+			Integer score;
+			synchronized (scores) {
+				score = scores.get(pair);
+			}
+			if (score == null) {
+				long srcSize = reader.getObjectSize(srcId, Constants.OBJ_BLOB);
+				long max = Math.max(srcSize, dstSize);
+				if (max > 0 && Math.min(srcSize, dstSize) * 100 / max < RENAME_SCORE)
+					// too different in size to reach the score
+					continue;
+				if (System.currentTimeMillis() > deadline) {
+					timedOut = true;
+					break;
+				}
+				try {
+					if (dst == null)
+						dst = SimilarityIndex.create(reader.open(blobId,
+								Constants.OBJ_BLOB));
+					score = Integer.valueOf(SimilarityIndex.create(
+							reader.open(srcId, Constants.OBJ_BLOB)).score(dst,
+							100));
+				} catch (TableFullException e) {
+					score = Integer.valueOf(0);
+				}
+				synchronized (scores) {
+					scores.put(pair, score);
+				}
+			}
+			if (score.intValue() > bestScore) {
+				best = paths.get(i);
+				bestScore = score.intValue();
+			} else if (score.intValue() == bestScore && best != null)
+				best = betterMatch(path, best, paths.get(i));
+		}
+		return best;
+	}
+
+	/**
+	 * @return <code>true</code> if the deadline passed while comparing
+	 *         contents
+	 */
+	boolean isTimedOut() {
+		return timedOut;
+	}
+
+	/** Prefers a candidate with the same file name as <code>path</code> */
+	private static String betterMatch(String path, String current,
+			String candidate) {
+		if (current == null)
+			return candidate;
+		String name = fileName(path);
+		if (!name.equals(fileName(current)) && name.equals(fileName(candidate)))
+			return candidate;
+		return current;
+	}
+
+	private static String fileName(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	/** Key of a cached score */
+	private static class BlobPair {
+		private final ObjectId src;
+
+		private final ObjectId dst;
+
+		BlobPair(ObjectId src, ObjectId dst) {
+			this.src = src.copy();
+			this.dst = dst.copy();
+		}
+
+		@Override
+		public int hashCode() {
+			return src.hashCode() * 31 + dst.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof BlobPair))
+				return false;
+			BlobPair other = (BlobPair) obj;
+			return src.equals(other.src) && dst.equals(other.dst);
+		}
+	}
+}
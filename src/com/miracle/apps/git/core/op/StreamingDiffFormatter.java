@@ -0,0 +1,638 @@
+package com.miracle.apps.git.core.op;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.DiffAlgorithm.SupportedAlgorithm;
+import org.eclipse.jgit.diff.DiffEntry.ChangeType;
+import org.eclipse.jgit.diff.DiffEntry.Side;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.util.IO;
+import org.eclipse.jgit.util.QuotedString;
+
+import com.miracle.apps.git.core.op.DiffOperation.FileDiffListener;
+import com.miracle.apps.git.core.storage.DiffResultCache;
+
+/**
+ * Formats a patch one file at a time. The patch of a file is built in a
+ * buffer, then written to the target stream and passed to the listener, so
+ * memory is bounded by the largest file rather than by the whole patch.
+ * <p>
+ * Working tree files whose first bytes contain a NUL are reported as binary
+ * without reading them completely. Files larger than the maximum file size
+ * are reported as binary without reading any content: the size of a blob is
+ * taken from its object header, that of a working tree file from the file
+ * system.
+ * <p>
+ * In parallel mode the files of a list are formatted by several workers of
+ * a shared, bounded pool, each with its own formatter and object reader.
+ * The patches are written in the order of the list; workers stay at most a
+ * window of files ahead of the output. Working tree content cannot be read
+ * concurrently, so this mode is only for entries whose content is in the
+ * repository.
+ * <p>
+ * With a {@link DiffResultCache} the patch of a file whose both sides are in
+ * the repository is looked up by their blob ids and the formatting options
+ * before any content is read.
+ */
+class StreamingDiffFormatter extends DiffFormatter {
+
+	/** Number of leading bytes checked for binary content, as in git */
+	private static final int BINARY_PEEK = 8000;
+
+	/** Files formatted ahead of the output, per worker */
+	private static final int WINDOW_PER_WORKER = 16;
+
+	/** Number of files below which no worker is added */
+	private static final int MIN_FILES_PER_WORKER = 4;
+
+	private static final ForkJoinPool pool = new ForkJoinPool(Runtime
+			.getRuntime().availableProcessors());
+
+	private final FileBuffer buffer;
+
+	private final OutputStream target;
+
+	private final FileDiffListener listener;
+
+	private Repository repository;
+
+	private ObjectReader reader;
+
+	private int maxFileSize = PackConfig.DEFAULT_BIG_FILE_THRESHOLD;
+
+	private int maxHunks;
+
+	private long maxBytes;
+
+	private int hunks;
+
+	/** buffer size at the first dropped hunk, or -1 */
+	private int hunkLimitOffset;
+
+	private long written;
+
+	private boolean full;
+
+	private boolean truncated;
+
+	private boolean parallel;
+
+	private Integer context;
+
+	private DiffAlgorithm algorithm;
+
+	private RawTextComparator comparator;
+
+	private int abbreviationLength = 7;
+
+	/** name of the diff algorithm, for the cache key */
+	private String algorithmName;
+
+	private DiffResultCache cache;
+
+	/**
+	 * @param target
+	 *            stream receiving the whole patch, or <code>null</code>
+	 * @param listener
+	 *            receiver of the patch of each file, or <code>null</code>
+	 */
+	StreamingDiffFormatter(OutputStream target, FileDiffListener listener) {
+		this(new FileBuffer(), target, listener);
+	}
+
+	private StreamingDiffFormatter(FileBuffer buffer, OutputStream target,
+			FileDiffListener listener) {
+		super(buffer);
+		this.buffer = buffer;
+		this.target = target;
+		this.listener = listener;
+	}
+
+	@Override
+	public void setRepository(Repository repository) {
+		super.setRepository(repository);
+		if (reader != null)
+			reader.close();
+		this.repository = repository;
+		this.reader = repository.newObjectReader();
+		if (algorithm == null)
+			algorithmName = DiffAlgorithm.getAlgorithm(
+					repository.getConfig().getEnum(
+							ConfigConstants.CONFIG_DIFF_SECTION, null,
+							ConfigConstants.CONFIG_KEY_ALGORITHM,
+							SupportedAlgorithm.HISTOGRAM)).getClass().getName();
+	}
+
+	@Override
+	public void setBinaryFileThreshold(int threshold) {
+		super.setBinaryFileThreshold(threshold);
+		this.maxFileSize = threshold;
+	}
+
+	@Override
+	public void setContext(int lineCount) {
+		super.setContext(lineCount);
+		this.context = Integer.valueOf(lineCount);
+	}
+
+	@Override
+	public void setDiffAlgorithm(DiffAlgorithm alg) {
+		super.setDiffAlgorithm(alg);
+		this.algorithm = alg;
+		this.algorithmName = alg.getClass().getName();
+	}
+
+	@Override
+	public void setDiffComparator(RawTextComparator cmp) {
+		super.setDiffComparator(cmp);
+		this.comparator = cmp;
+	}
+
+	@Override
+	public void setAbbreviationLength(int count) {
+		super.setAbbreviationLength(count);
+		this.abbreviationLength = count;
+	}
+
+	/**
+	 * @param cache
+	 *            cache of the patches of files, or <code>null</code>
+	 */
+	void setResultCache(DiffResultCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @param parallel
+	 *            <code>true</code> to format the files of a list on several
+	 *            threads; all content must be in the repository
+	 */
+	void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	/**
+	 * @param maxHunks
+	 *            maximum number of hunks written per file, 0 for no limit
+	 */
+	void setMaxHunks(int maxHunks) {
+		this.maxHunks = maxHunks;
+	}
+
+	/**
+	 * @param maxBytes
+	 *            maximum size of the whole patch, 0 for no limit; the patch
+	 *            ends before the first file which does not fit
+	 */
+	void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return <code>true</code> if hunks or files were left out because of
+	 *         the limits
+	 */
+	boolean isTruncated() {
+		return truncated;
+	}
+
+	@Override
+	public void format(List<? extends DiffEntry> entries) throws IOException {
+		int workers = Math.min(pool.getParallelism(), entries.size()
+				/ MIN_FILES_PER_WORKER);
+		if (parallel && workers > 1)
+			new ParallelFormat(entries, workers).run();
+		else
+			super.format(entries);
+	}
+
+	@Override
+	public void format(DiffEntry ent) throws IOException {
+		if (full) {
+			truncated = true;
+			return;
+		}
+		if (formatFile(ent))
+			truncated = true;
+		emit(ent, buffer.toByteArray());
+	}
+
+	/**
+	 * Formats the patch of a file into the buffer, or copies it from the
+	 * cache.
+	 *
+	 * @return <code>true</code> if hunks were dropped
+	 */
+	private boolean formatFile(DiffEntry ent) throws IOException {
+		ObjectId key = cacheKey(ent);
+		if (key != null) {
+			// the first byte tells whether hunks were dropped
+			byte[] cached = cache.get(key);
+			if (cached != null) {
+				buffer.reset();
+				buffer.write(cached, 1, cached.length - 1);
+				return cached[0] != 0;
+			}
+		}
+		boolean dropped = render(ent);
+		if (key != null) {
+			byte[] value = new byte[buffer.size() + 1];
+			value[0] = (byte) (dropped ? 1 : 0);
+			System.arraycopy(buffer.toByteArray(), 0, value, 1, buffer.size());
+			cache.put(key, value);
+		}
+		return dropped;
+	}
+
+	/**
+	 * @return the cache key of the patch, or <code>null</code> if it is not
+	 *         cached
+	 */
+	private ObjectId cacheKey(DiffEntry ent) throws IOException {
+		if (cache == null || !inRepository(ent, Side.OLD)
+				|| !inRepository(ent, Side.NEW))
+			return null;
+		StringBuilder options = new StringBuilder();
+		options.append(algorithmName).append('\n');
+		options.append(context != null ? context.intValue() : 3).append('\n');
+		options.append(comparatorName()).append('\n');
+		options.append(getOldPrefix()).append('\n');
+		options.append(getNewPrefix()).append('\n');
+		options.append(abbreviationLength).append('\n');
+		options.append(maxHunks).append('\n');
+		options.append(maxFileSize).append('\n');
+		options.append(ent.getChangeType()).append('\n');
+		options.append(ent.getScore()).append('\n');
+		options.append(ent.getOldPath()).append('\n');
+		options.append(ent.getNewPath()).append('\n');
+		options.append(ent.getOldMode().getBits()).append('\n');
+		options.append(ent.getNewMode().getBits());
+		return DiffResultCache.key(ent.getOldId().toObjectId(), ent
+				.getNewId().toObjectId(), options.toString());
+	}
+
+	private boolean inRepository(DiffEntry ent, Side side) throws IOException {
+		AbbreviatedObjectId id = ent.getId(side);
+		if (FileMode.MISSING == ent.getMode(side))
+			return true;
+		return id != null && id.isComplete() && reader.has(id.toObjectId());
+	}
+
+	private String comparatorName() {
+		if (comparator == null || comparator == RawTextComparator.DEFAULT)
+			return "DEFAULT"; //$NON-NLS-1$
+		if (comparator == RawTextComparator.WS_IGNORE_ALL)
+			return "WS_IGNORE_ALL"; //$NON-NLS-1$
+		if (comparator == RawTextComparator.WS_IGNORE_CHANGE)
+			return "WS_IGNORE_CHANGE"; //$NON-NLS-1$
+		if (comparator == RawTextComparator.WS_IGNORE_LEADING)
+			return "WS_IGNORE_LEADING"; //$NON-NLS-1$
+		if (comparator == RawTextComparator.WS_IGNORE_TRAILING)
+			return "WS_IGNORE_TRAILING"; //$NON-NLS-1$
+		return comparator.getClass().getName();
+	}
+
+	/**
+	 * Formats the patch of a file into the buffer.
+	 *
+	 * @return <code>true</code> if hunks were dropped
+	 */
+	private boolean render(DiffEntry ent) throws IOException {
+		buffer.reset();
+		hunks = 0;
+		hunkLimitOffset = -1;
+		if (isTooLarge(ent, Side.OLD) || isTooLarge(ent, Side.NEW)) {
+			formatBinary(ent);
+			return false;
+		}
+		if (isBinary(ent, Side.OLD) || isBinary(ent, Side.NEW)) {
+			// the formatter reports content over its threshold as binary
+			// without loading it
+			super.setBinaryFileThreshold(0);
+			try {
+				super.format(ent);
+			} finally {
+				super.setBinaryFileThreshold(maxFileSize);
+			}
+		} else
+			super.format(ent);
+		if (hunkLimitOffset < 0)
+			return false;
+		buffer.truncate(hunkLimitOffset);
+		return true;
+	}
+
+	/**
+	 * Writes the patch of a file to the target and the listener.
+	 *
+	 * @return <code>false</code> if the patch did not fit
+	 */
+	private boolean emit(DiffEntry ent, byte[] patch) throws IOException {
+		if (maxBytes > 0 && written + patch.length > maxBytes) {
+			full = true;
+			truncated = true;
+			return false;
+		}
+		written += patch.length;
+		if (target != null)
+			target.write(patch);
+		if (listener != null)
+			listener.fileFormatted(ent, patch);
+		return true;
+	}
+
+	/** @return a formatter with the same settings for a worker */
+	private StreamingDiffFormatter newWorker() {
+		StreamingDiffFormatter worker = new StreamingDiffFormatter(null, null);
+		worker.setRepository(repository);
+		worker.setBinaryFileThreshold(maxFileSize);
+		worker.setMaxHunks(maxHunks);
+		worker.setAbbreviationLength(abbreviationLength);
+		worker.setResultCache(cache);
+		worker.setOldPrefix(getOldPrefix());
+		worker.setNewPrefix(getNewPrefix());
+		if (context != null)
+			worker.setContext(context.intValue());
+		if (algorithm != null)
+			worker.setDiffAlgorithm(algorithm);
+		if (comparator != null)
+			worker.setDiffComparator(comparator);
+		return worker;
+	}
+
+	@Override
+	protected void writeHunkHeader(int aStartLine, int aEndLine,
+			int bStartLine, int bEndLine) throws IOException {
+		if (maxHunks > 0 && ++hunks > maxHunks && hunkLimitOffset < 0)
+			hunkLimitOffset = buffer.size();
+		super.writeHunkHeader(aStartLine, aEndLine, bStartLine, bEndLine);
+	}
+
+	@Override
+	protected void writeLine(char prefix, RawText text, int cur)
+			throws IOException {
+		// lines of dropped hunks are cut off afterwards
+		if (hunkLimitOffset < 0)
+			super.writeLine(prefix, text, cur);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (target != null)
+			target.flush();
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		if (reader != null) {
+			reader.close();
+			reader = null;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the content of the side is larger than the
+	 *         maximum file size
+	 */
+	private boolean isTooLarge(DiffEntry ent, Side side) throws IOException {
+		FileMode mode = ent.getMode(side);
+		AbbreviatedObjectId id = ent.getId(side);
+		if (id == null || FileMode.MISSING == mode
+				|| mode.getObjectType() != Constants.OBJ_BLOB
+				|| ent.getOldId() == null || ent.getNewId() == null)
+			return false;
+		if (!id.isComplete()) {
+			Collection<ObjectId> ids = reader.resolve(id);
+			if (ids.size() != 1)
+				// the formatter reports the missing or ambiguous id
+				return false;
+			id = AbbreviatedObjectId.fromObjectId(ids.iterator().next());
+		}
+		ObjectId objectId = id.toObjectId();
+		if (reader.has(objectId))
+			return reader.getObjectSize(objectId, Constants.OBJ_BLOB) > maxFileSize;
+		if (repository.isBare())
+			return false;
+		File file = new File(repository.getWorkTree(), ent.getPath(side));
+		return file.length() > maxFileSize;
+	}
+
+	/**
+	 * Writes the header of the file and reports its content as binary, as
+	 * the formatter does, without reading the content.
+	 */
+	private void formatBinary(DiffEntry ent) throws IOException {
+		ChangeType type = ent.getChangeType();
+		String oldPath = ent.getOldPath();
+		String newPath = ent.getNewPath();
+		FileMode oldMode = ent.getOldMode();
+		FileMode newMode = ent.getNewMode();
+		formatGitDiffFirstHeaderLine(buffer, type, oldPath, newPath);
+		if ((type == ChangeType.MODIFY || type == ChangeType.COPY
+				|| type == ChangeType.RENAME) && !oldMode.equals(newMode)) {
+			writeHeaderLine("old mode " + oldMode); //$NON-NLS-1$
+			writeHeaderLine("new mode " + newMode); //$NON-NLS-1$
+		}
+		switch (type) {
+		case ADD:
+			writeHeaderLine("new file mode " + newMode); //$NON-NLS-1$
+			break;
+		case DELETE:
+			writeHeaderLine("deleted file mode " + oldMode); //$NON-NLS-1$
+			break;
+		case RENAME:
+			writeHeaderLine("similarity index " + ent.getScore() + "%"); //$NON-NLS-1$ //$NON-NLS-2$
+			writeHeaderLine("rename from " + quote(oldPath)); //$NON-NLS-1$
+			writeHeaderLine("rename to " + quote(newPath)); //$NON-NLS-1$
+			break;
+		case COPY:
+			writeHeaderLine("similarity index " + ent.getScore() + "%"); //$NON-NLS-1$ //$NON-NLS-2$
+			writeHeaderLine("copy from " + quote(oldPath)); //$NON-NLS-1$
+			writeHeaderLine("copy to " + quote(newPath)); //$NON-NLS-1$
+			break;
+		case MODIFY:
+			if (0 < ent.getScore())
+				writeHeaderLine("dissimilarity index " //$NON-NLS-1$
+						+ (100 - ent.getScore()) + "%"); //$NON-NLS-1$
+			break;
+		}
+		if (!ent.getOldId().equals(ent.getNewId())) {
+			formatIndexLine(buffer, ent);
+			String oldName = type == ChangeType.ADD ? DiffEntry.DEV_NULL
+					: quote(getOldPrefix() + oldPath);
+			String newName = type == ChangeType.DELETE ? DiffEntry.DEV_NULL
+					: quote(getNewPrefix() + newPath);
+			writeHeaderLine("--- " + oldName); //$NON-NLS-1$
+			writeHeaderLine("+++ " + newName); //$NON-NLS-1$
+		}
+		writeHeaderLine("Binary files differ"); //$NON-NLS-1$
+	}
+
+	private void writeHeaderLine(String line) throws IOException {
+		buffer.write(Constants.encode(line));
+		buffer.write('\n');
+	}
+
+	private static String quote(String path) {
+		return QuotedString.GIT_PATH.quote(path);
+	}
+
+	/**
+	 * Blobs are loaded by the formatter in one piece anyway, so only working
+	 * tree files are checked ahead; their content is not read any further if
+	 * it starts binary.
+	 */
+	private boolean isBinary(DiffEntry ent, Side side) throws IOException {
+		FileMode mode = ent.getMode(side);
+		AbbreviatedObjectId id = ent.getId(side);
+		if (FileMode.REGULAR_FILE != mode && FileMode.EXECUTABLE_FILE != mode
+				|| id == null || repository.isBare()
+				|| id.isComplete() && reader.has(id.toObjectId()))
+			return false;
+		File file = new File(repository.getWorkTree(), ent.getPath(side));
+		if (file.length() <= BINARY_PEEK)
+			return false;
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] head = new byte[BINARY_PEEK];
+			int n = IO.readFully(in, head, 0);
+			return RawText.isBinary(Arrays.copyOf(head, n));
+		}
+	}
+
+	/** One parallel formatting of a list of files */
+	private class ParallelFormat {
+		private final List<? extends DiffEntry> entries;
+
+		private final int workers;
+
+		private final int window;
+
+		/** formatted and not yet written patches, by position */
+		private final byte[][] patches;
+
+		private final boolean[] cut;
+
+		/** position of the next file to format */
+		private int next;
+
+		/** number of files written */
+		private int emitted;
+
+		private boolean stopped;
+
+		private IOException failure;
+
+		ParallelFormat(List<? extends DiffEntry> entries, int workers) {
+			this.entries = entries;
+			this.workers = workers;
+			this.window = workers * WINDOW_PER_WORKER;
+			this.patches = new byte[entries.size()][];
+			this.cut = new boolean[entries.size()];
+		}
+
+		void run() throws IOException {
+			for (int i = 0; i < workers; i++)
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						work();
+					}
+				});
+			try {
+				for (int i = 0; i < entries.size() && !full; i++) {
+					byte[] patch;
+					synchronized (this) {
+						while (patches[i] == null && failure == null)
+							wait();
+						if (failure != null)
+							throw failure;
+						patch = patches[i];
+						patches[i] = null;
+						if (cut[i])
+							truncated = true;
+						emitted = i + 1;
+						notifyAll();
+					}
+					emit(entries.get(i), patch);
+				}
+				if (full)
+					truncated = true;
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} finally {
+				synchronized (this) {
+					stopped = true;
+					notifyAll();
+				}
+			}
+		}
+
+		private void work() {
+			StreamingDiffFormatter formatter = newWorker();
+			try {
+				for (;;) {
+					int i;
+					synchronized (this) {
+						while (!stopped && next < entries.size()
+								&& next >= emitted + window)
+							wait();
+						if (stopped || next >= entries.size())
+							return;
+						i = next++;
+					}
+					boolean dropped = formatter.formatFile(entries.get(i));
+					byte[] patch = formatter.buffer.toByteArray();
+					synchronized (this) {
+						patches[i] = patch;
+						cut[i] = dropped;
+						notifyAll();
+					}
+				}
+			} catch (IOException e) {
+				fail(e);
+			} catch (RuntimeException e) {
+				fail(new IOException(e.getMessage(), e));
+			} catch (InterruptedException e) {
+				fail(new InterruptedIOException());
+			} finally {
+				formatter.close();
+			}
+		}
+
+		private synchronized void fail(IOException e) {
+			if (failure == null)
+				failure = e;
+			notifyAll();
+		}
+	}
+
+	/** The patch of the current file */
+	private static class FileBuffer extends ByteArrayOutputStream {
+		void truncate(int length) {
+			count = length;
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package com.miracle.apps.git.core.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.events.ConfigChangedEvent;
+import org.eclipse.jgit.events.ConfigChangedListener;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.WorkingTreeOptions;
+
+/**
+ * Per repository cache of inflated blob contents, bounded by the total size
+ * of the cached blobs.
+ * <p>
+ * Blobs up to {@link #getMaxBlobSize()} bytes are kept as byte arrays and the
+ * least recently used ones are dropped when the cache grows beyond
+ * {@link #getMaxBytes()}. Larger blobs are always streamed from the object
+ * database and never cached. The cache also holds the repository's
+ * {@link WorkingTreeOptions}, which are re-read when JGit reports a change of
+ * the repository configuration.
+ */
+public class BlobCache {
+
+	/** Default maximum total size of the cached blobs per repository */
+	public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+	/** Default size above which blobs are not cached */
+	public static final int DEFAULT_MAX_BLOB_SIZE = 1024 * 1024;
+
+	private static final ConcurrentMap<File, BlobCache> caches = new ConcurrentHashMap<File, BlobCache>();
+
+	static {
+		Repository.getGlobalListenerList().addConfigChangedListener(
+				new ConfigChangedListener() {
+					@Override
+					public void onConfigChanged(ConfigChangedEvent event) {
+						BlobCache cache = caches.get(event.getRepository()
+								.getDirectory().getAbsoluteFile());
+						if (cache != null)
+							cache.workingTreeOptions = null;
+					}
+				});
+	}
+
+	/**
+	 * @param repository
+	 * @return the shared cache of the given repository
+	 */
+	public static BlobCache get(Repository repository) {
+		File key = repository.getDirectory().getAbsoluteFile();
+		BlobCache cache = caches.get(key);
+		if (cache == null) {
+			BlobCache created = new BlobCache(repository, DEFAULT_MAX_BYTES,
+					DEFAULT_MAX_BLOB_SIZE);
+			cache = caches.putIfAbsent(key, created);
+			if (cache == null)
+				cache = created;
+		}
+		return cache;
+	}
+
+	/**
+	 * Drop the cache of the given repository.
+	 *
+	 * @param repository
+	 */
+	public static void remove(Repository repository) {
+		caches.remove(repository.getDirectory().getAbsoluteFile());
+	}
+
+	/**
+	 * Drop the caches of all repositories.
+	 */
+	public static void removeAll() {
+		caches.clear();
+	}
+
+	private final Repository repository;
+
+	private final long maxBytes;
+
+	private final int maxBlobSize;
+
+	/** access ordered, the least recently used blob comes first */
+	private final LinkedHashMap<ObjectId, byte[]> blobs = new LinkedHashMap<ObjectId, byte[]>(
+			16, 0.75f, true);
+
+	private long bytes;
+
+	private volatile WorkingTreeOptions workingTreeOptions;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong bypasses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param repository
+	 * @param maxBytes
+	 *            maximum total size of the cached blobs
+	 * @param maxBlobSize
+	 *            size above which blobs are not cached
+	 */
+	public BlobCache(Repository repository, long maxBytes, int maxBlobSize) {
+		this.repository = repository;
+		this.maxBytes = maxBytes;
+		this.maxBlobSize = maxBlobSize;
+	}
+
+	/**
+	 * @return maximum total size of the cached blobs
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return size above which blobs are not cached
+	 */
+	public int getMaxBlobSize() {
+		return maxBlobSize;
+	}
+
+	/**
+	 * Open a blob, from the cache if possible.
+	 *
+	 * @param blobId
+	 * @return the raw content of the blob
+	 * @throws IOException
+	 *             if the blob does not exist or cannot be read
+	 */
+	public InputStream open(ObjectId blobId) throws IOException {
+		byte[] content = lookup(blobId);
+		if (content != null)
+			return new ByteArrayInputStream(content);
+		ObjectLoader loader = repository.open(blobId, Constants.OBJ_BLOB);
+		content = store(blobId, loader);
+		return content != null ? new ByteArrayInputStream(content) : loader
+				.openStream();
+	}
+
+	/**
+	 * Get the content of a blob which is small enough to be cached, from the
+	 * cache if possible. The returned array must not be modified.
+	 *
+	 * @param blobId
+	 * @return the raw content of the blob, or <code>null</code> if the blob is
+	 *         larger than {@link #getMaxBlobSize()}
+	 * @throws IOException
+	 *             if the blob does not exist or cannot be read
+	 */
+	public byte[] getBytes(ObjectId blobId) throws IOException {
+		byte[] content = lookup(blobId);
+		if (content != null)
+			return content;
+		return store(blobId, repository.open(blobId, Constants.OBJ_BLOB));
+	}
+
+	/**
+	 * @return the working tree options of the repository
+	 */
+	public WorkingTreeOptions getWorkingTreeOptions() {
+		WorkingTreeOptions options = workingTreeOptions;
+		if (options == null) {
+			options = repository.getConfig().get(WorkingTreeOptions.KEY);
+			workingTreeOptions = options;
+		}
+		return options;
+	}
+
+	/**
+	 * Drop all cached blobs.
+	 */
+	public synchronized void clear() {
+		evictions.addAndGet(blobs.size());
+		blobs.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * @return a snapshot of the cache statistics
+	 */
+	public synchronized Stats getStats() {
+		return new Stats(hits.get(), misses.get(), bypasses.get(),
+				evictions.get(), blobs.size(), bytes);
+	}
+
+	private byte[] lookup(ObjectId blobId) {
+		byte[] cached;
+		synchronized (this) {
+			cached = blobs.get(blobId);
+		}
+		if (cached != null)
+			hits.incrementAndGet();
+		return cached;
+	}
+
+	/** @return the content if the blob is small enough to be cached */
+	private byte[] store(ObjectId blobId, ObjectLoader loader)
+			throws IOException {
+		if (loader.isLarge() || loader.getSize() > maxBlobSize) {
+			bypasses.incrementAndGet();
+			return null;
+		}
+		misses.incrementAndGet();
+		byte[] content = loader.getCachedBytes();
+		put(blobId, content);
+		return content;
+	}
+
+	private synchronized void put(ObjectId blobId, byte[] content) {
+		if (blobs.containsKey(blobId))
+			return;
+		blobs.put(blobId.copy(), content);
+		bytes += content.length;
+		for (Iterator<byte[]> it = blobs.values().iterator(); bytes > maxBytes
+				&& it.hasNext();) {
+			bytes -= it.next().length;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Statistics of a {@link BlobCache}.
+	 */
+	public static class Stats {
+		private final long hitCount;
+
+		private final long missCount;
+
+		private final long bypassCount;
+
+		private final long evictionCount;
+
+		private final int blobCount;
+
+		private final long bytes;
+
+		Stats(long hitCount, long missCount, long bypassCount,
+				long evictionCount, int blobCount, long bytes) {
+			this.hitCount = hitCount;
+			this.missCount = missCount;
+			this.bypassCount = bypassCount;
+			this.evictionCount = evictionCount;
+			this.blobCount = blobCount;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * @return number of blobs read from the cache
+		 */
+		public long getHitCount() {
+			return hitCount;
+		}
+
+		/**
+		 * @return number of blobs read from the object database and cached
+		 */
+		public long getMissCount() {
+			return missCount;
+		}
+
+		/**
+		 * @return number of blobs too large to be cached
+		 */
+		public long getBypassCount() {
+			return bypassCount;
+		}
+
+		/**
+		 * @return fraction of cacheable reads answered from the cache
+		 */
+		public double getHitRate() {
+			long total = hitCount + missCount;
+			return total == 0 ? 1.0 : (double) hitCount / total;
+		}
+
+		/**
+		 * @return number of blobs dropped from the cache
+		 */
+		public long getEvictionCount() {
+			return evictionCount;
+		}
+
+		/**
+		 * @return number of cached blobs
+		 */
+		public int getBlobCount() {
+			return blobCount;
+		}
+
+		/**
+		 * @return total size of the cached blobs in bytes
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public String toString() {
+			return "hits=" + hitCount + ", misses=" + missCount //$NON-NLS-1$ //$NON-NLS-2$
+					+ ", bypasses=" + bypassCount + ", evictions=" //$NON-NLS-1$ //$NON-NLS-2$
+					+ evictionCount + ", blobs=" + blobCount + ", bytes=" //$NON-NLS-1$ //$NON-NLS-2$
+					+ bytes;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package com.miracle.apps.git.core.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+
+/**
+ * Resolves the object ids of paths in a commit.
+ * <p>
+ * Many paths of one commit are resolved with a single {@link TreeWalk}
+ * restricted to those paths. Single paths are looked up directly in the raw
+ * tree objects, which are kept in a small cache shared by all repositories
+ * (a tree id identifies its content), so looking up sibling paths one after
+ * the other parses each tree only once.
+ */
+public class BlobIdResolver {
+
+	/** Maximum total size of the cached tree objects */
+	public static final int TREE_CACHE_BYTES = 4 * 1024 * 1024;
+
+	/** access ordered, the least recently used tree comes first */
+	private static final LinkedHashMap<ObjectId, byte[]> trees = new LinkedHashMap<ObjectId, byte[]>(
+			16, 0.75f, true);
+
+	private static long treeBytes;
+
+	private BlobIdResolver() {
+		// non instanciable utility class
+	}
+
+	/**
+	 * Resolve many paths of one commit in a single tree walk.
+	 *
+	 * @param repository
+	 * @param commit
+	 * @param paths
+	 *            repository-relative paths
+	 * @return the object id of each file found in the commit; paths which do
+	 *         not exist or denote directories are missing from the map
+	 * @throws IOException
+	 */
+	public static Map<String, ObjectId> resolve(Repository repository,
+			RevCommit commit, Collection<String> paths) throws IOException {
+		Map<String, ObjectId> result = new HashMap<String, ObjectId>();
+		if (paths.isEmpty())
+			return result;
+		Set<String> wanted = new HashSet<String>(paths);
+		try (TreeWalk walk = new TreeWalk(repository)) {
+			walk.addTree(commit.getTree());
+			walk.setRecursive(true);
+			walk.setFilter(PathFilterGroup.createFromStrings(wanted));
+			while (walk.next()) {
+				String path = walk.getPathString();
+				if (wanted.contains(path))
+					result.put(path, walk.getObjectId(0));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Resolve a single path of a commit, using the tree cache.
+	 *
+	 * @param repository
+	 * @param commit
+	 * @param path
+	 *            repository-relative path
+	 * @return the object id of the path, or <code>null</code> if the commit
+	 *         does not contain it
+	 * @throws IOException
+	 */
+	public static ObjectId resolve(Repository repository, RevCommit commit,
+			String path) throws IOException {
+		try (ObjectReader reader = repository.newObjectReader()) {
+			ObjectId id = commit.getTree();
+			int start = 0;
+			for (;;) {
+				int slash = path.indexOf('/', start);
+				boolean last = slash < 0;
+				byte[] name = Constants.encode(last ? path.substring(start)
+						: path.substring(start, slash));
+				id = findEntry(getTree(reader, id), name, !last);
+				if (id == null || last)
+					return id;
+				start = slash + 1;
+			}
+		}
+	}
+
+	/**
+	 * Create the revisions of many paths in one commit, with their blob ids
+	 * already resolved.
+	 *
+	 * @param repository
+	 * @param commit
+	 * @param paths
+	 *            repository-relative paths
+	 * @return one revision per path found in the commit, in the order of
+	 *         <code>paths</code>
+	 * @throws IOException
+	 */
+	public static List<CommitFileRevision> createRevisions(
+			Repository repository, RevCommit commit, Collection<String> paths)
+			throws IOException {
+		Map<String, ObjectId> ids = resolve(repository, commit, paths);
+		List<CommitFileRevision> revisions = new ArrayList<CommitFileRevision>(
+				ids.size());
+		for (String path : paths) {
+			ObjectId id = ids.get(path);
+			if (id != null)
+				revisions.add(new CommitFileRevision(repository, commit, path,
+						id));
+		}
+		return revisions;
+	}
+
+	/**
+	 * Resolve the blob ids of revisions which do not know them yet, with one
+	 * tree walk per commit.
+	 *
+	 * @param revisions
+	 * @throws IOException
+	 */
+	public static void fill(Collection<CommitFileRevision> revisions)
+			throws IOException {
+		Map<RevCommit, List<CommitFileRevision>> byCommit = new LinkedHashMap<RevCommit, List<CommitFileRevision>>();
+		for (CommitFileRevision revision : revisions) {
+			if (revision.blobId != null)
+				continue;
+			List<CommitFileRevision> list = byCommit.get(revision
+					.getRevCommit());
+			if (list == null) {
+				list = new ArrayList<CommitFileRevision>();
+				byCommit.put(revision.getRevCommit(), list);
+			}
+			list.add(revision);
+		}
+
+		for (Map.Entry<RevCommit, List<CommitFileRevision>> entry : byCommit
+				.entrySet()) {
+			List<CommitFileRevision> list = entry.getValue();
+			List<String> paths = new ArrayList<String>(list.size());
+			for (CommitFileRevision revision : list)
+				paths.add(revision.getGitPath());
+			Map<String, ObjectId> ids = resolve(list.get(0).getRepository(),
+					entry.getKey(), paths);
+			for (CommitFileRevision revision : list)
+				revision.blobId = ids.get(revision.getGitPath());
+		}
+	}
+
+	/**
+	 * @return the id of the entry, or <code>null</code> if there is no entry
+	 *         with this name, or it is not a tree although one is wanted
+	 */
+	private static ObjectId findEntry(byte[] tree, byte[] name,
+			boolean wantTree) {
+		int ptr = 0;
+		while (ptr < tree.length) {
+			int mode = 0;
+			while (tree[ptr] != ' ')
+				mode = (mode << 3) + (tree[ptr++] - '0');
+			int nameStart = ++ptr;
+			while (tree[ptr] != 0)
+				ptr++;
+			int nameEnd = ptr++;
+			if (nameEnd - nameStart == name.length
+					&& regionEquals(tree, nameStart, name)) {
+				if (wantTree && !FileMode.TREE.equals(mode))
+					return null;
+				return ObjectId.fromRaw(tree, ptr);
+			}
+			ptr += Constants.OBJECT_ID_LENGTH;
+		}
+		return null;
+	}
+
+	private static boolean regionEquals(byte[] buffer, int offset, byte[] name) {
+		for (int i = 0; i < name.length; i++)
+			if (buffer[offset + i] != name[i])
+				return false;
+		return true;
+	}
+
+	private static byte[] getTree(ObjectReader reader, ObjectId treeId)
+			throws IOException {
+		synchronized (trees) {
+			byte[] tree = trees.get(treeId);
+			if (tree != null)
+				return tree;
+		}
+		byte[] tree = reader.open(treeId, Constants.OBJ_TREE).getCachedBytes();
+		synchronized (trees) {
+			if (!trees.containsKey(treeId)) {
+				trees.put(treeId.copy(), tree);
+				treeBytes += tree.length;
+				for (Iterator<byte[]> it = trees.values().iterator(); treeBytes > TREE_CACHE_BYTES
+						&& it.hasNext();) {
+					treeBytes -= it.next().length;
+					it.remove();
+				}
+			}
+		}
+		return tree;
+	}
+}
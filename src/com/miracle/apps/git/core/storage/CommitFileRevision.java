@@ -16,7 +16,6 @@ import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.treewalk.TreeWalk;
 
 import com.miracle.apps.git.core.errors.CoreException;
 
@@ -33,7 +32,10 @@ public class CommitFileRevision extends GitFileRevision{
 
 	private final String path;
 
-	private ObjectId blobId;
+	/** may be filled in by {@link BlobIdResolver#fill(Collection)} */
+	ObjectId blobId;
+
+	private CommitBlobStorage storage;
 	
 	public CommitFileRevision(final Repository repo, final RevCommit rc,
 			final String path) {
@@ -60,9 +62,12 @@ public class CommitFileRevision extends GitFileRevision{
 
 	public CommitBlobStorage getStorage()
 			throws CanceledException, CoreException {
-		if (blobId == null)
-			blobId = locateBlobObjectId();
-		return new CommitBlobStorage(db, path, blobId, commit);
+		if (storage == null) {
+			if (blobId == null)
+				blobId = locateBlobObjectId();
+			storage = new CommitBlobStorage(db, path, blobId, commit);
+		}
+		return storage;
 	}
 
 	public long getTimestamp() {
@@ -97,10 +102,10 @@ public class CommitFileRevision extends GitFileRevision{
 
 	private ObjectId locateBlobObjectId() throws CoreException {
 		try {
-			final TreeWalk w = TreeWalk.forPath(db, path, commit.getTree());
-			if (w == null)
+			ObjectId id = BlobIdResolver.resolve(db, commit, path);
+			if (id == null)
 				throw new CoreException("Path "+path+" not in commit "+commit.getId().name()+".");
-			return w.getObjectId(0);
+			return id;
 		} catch (IOException e) {
 			throw new CoreException("IO error looking up path "+path+" in "+commit.getId().name()+".");
 		}
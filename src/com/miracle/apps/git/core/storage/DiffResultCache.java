@@ -0,0 +1,466 @@
+package com.miracle.apps.git.core.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.eclipse.jgit.internal.storage.file.LockFile;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.util.FS;
+import org.eclipse.jgit.util.IO;
+import org.eclipse.jgit.util.NB;
+
+/**
+ * Per repository cache of rendered file diffs, keyed by the blob ids of both
+ * sides and the options the diff was rendered with.
+ * <p>
+ * The least recently used entries are kept in memory up to
+ * {@link #getMaxBytes()}. Every entry is also written to
+ * <code>miracle-diff-cache</code> in the git directory, one file per entry,
+ * and the least recently used files are deleted when the directory grows
+ * beyond {@link #getMaxDiskBytes()}. A file ends with the CRC32 of its
+ * content; damaged files are deleted and count as misses. Failures of the
+ * cache are never reported to the caller, who then renders the diff again.
+ */
+public class DiffResultCache {
+
+	/** Default maximum total size of the entries kept in memory */
+	public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+	/** Default maximum total size of the entries on disk */
+	public static final long DEFAULT_MAX_DISK_BYTES = 256 * 1024 * 1024;
+
+	/** Default size above which entries are not cached */
+	public static final int DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
+
+	/** Name of the cache directory in the git directory */
+	public static final String DIRECTORY_NAME = "miracle-diff-cache"; //$NON-NLS-1$
+
+	private static final ConcurrentMap<File, DiffResultCache> caches = new ConcurrentHashMap<File, DiffResultCache>();
+
+	/**
+	 * @param repository
+	 * @return the shared cache of the given repository
+	 */
+	public static DiffResultCache get(Repository repository) {
+		File key = repository.getDirectory().getAbsoluteFile();
+		DiffResultCache cache = caches.get(key);
+		if (cache == null) {
+			DiffResultCache created = new DiffResultCache(repository,
+					DEFAULT_MAX_BYTES, DEFAULT_MAX_DISK_BYTES,
+					DEFAULT_MAX_ENTRY_SIZE);
+			cache = caches.putIfAbsent(key, created);
+			if (cache == null)
+				cache = created;
+		}
+		return cache;
+	}
+
+	/**
+	 * Drop the in-memory cache of the given repository; the entries on disk
+	 * are kept.
+	 *
+	 * @param repository
+	 */
+	public static void remove(Repository repository) {
+		caches.remove(repository.getDirectory().getAbsoluteFile());
+	}
+
+	/**
+	 * Drop the in-memory caches of all repositories.
+	 */
+	public static void removeAll() {
+		caches.clear();
+	}
+
+	/**
+	 * @param oldId
+	 *            blob id of the old side, zero if there is none
+	 * @param newId
+	 *            blob id of the new side, zero if there is none
+	 * @param options
+	 *            everything else the rendered diff depends on
+	 * @return the key of the diff
+	 */
+	public static ObjectId key(AnyObjectId oldId, AnyObjectId newId,
+			String options) {
+		MessageDigest md = Constants.newMessageDigest();
+		byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		oldId.copyRawTo(raw, 0);
+		md.update(raw);
+		newId.copyRawTo(raw, 0);
+		md.update(raw);
+		md.update(Constants.encode(options));
+		return ObjectId.fromRaw(md.digest());
+	}
+
+	private final File directory;
+
+	private final FS fs;
+
+	private final long maxBytes;
+
+	private final long maxDiskBytes;
+
+	private final int maxEntrySize;
+
+	/** access ordered, the least recently used entry comes first */
+	private final LinkedHashMap<ObjectId, byte[]> entries = new LinkedHashMap<ObjectId, byte[]>(
+			16, 0.75f, true);
+
+	private long bytes;
+
+	/** total size of the files, -1 until the directory is scanned */
+	private long diskBytes = -1;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong diskHits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param repository
+	 * @param maxBytes
+	 *            maximum total size of the entries kept in memory
+	 * @param maxDiskBytes
+	 *            maximum total size of the entries on disk
+	 * @param maxEntrySize
+	 *            size above which entries are not cached
+	 */
+	public DiffResultCache(Repository repository, long maxBytes,
+			long maxDiskBytes, int maxEntrySize) {
+		this.directory = new File(repository.getDirectory(), DIRECTORY_NAME);
+		this.fs = repository.getFS();
+		this.maxBytes = maxBytes;
+		this.maxDiskBytes = maxDiskBytes;
+		this.maxEntrySize = maxEntrySize;
+	}
+
+	/**
+	 * @return maximum total size of the entries kept in memory
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return maximum total size of the entries on disk
+	 */
+	public long getMaxDiskBytes() {
+		return maxDiskBytes;
+	}
+
+	/**
+	 * Look up a diff. The returned array must not be modified.
+	 *
+	 * @param key
+	 *            see {@link #key(AnyObjectId, AnyObjectId, String)}
+	 * @return the cached diff, or <code>null</code>
+	 */
+	public byte[] get(AnyObjectId key) {
+		byte[] value;
+		synchronized (this) {
+			value = entries.get(key);
+		}
+		if (value != null) {
+			hits.incrementAndGet();
+			return value;
+		}
+		value = read(fileFor(key));
+		if (value == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		diskHits.incrementAndGet();
+		putInMemory(key, value);
+		return value;
+	}
+
+	/**
+	 * Store a diff, unless it is larger than the maximum entry size.
+	 *
+	 * @param key
+	 *            see {@link #key(AnyObjectId, AnyObjectId, String)}
+	 * @param value
+	 *            the diff; the array must not be modified afterwards
+	 */
+	public void put(AnyObjectId key, byte[] value) {
+		if (value.length > maxEntrySize)
+			return;
+		putInMemory(key, value);
+		File file = fileFor(key);
+		if (file.exists())
+			return;
+		try {
+			write(file, value);
+		} catch (IOException e) {
+			// the entry stays in memory only
+			return;
+		}
+		synchronized (this) {
+			if (diskBytes >= 0)
+				diskBytes += file.length();
+		}
+		trimDisk();
+	}
+
+	/**
+	 * Drop all entries, in memory and on disk.
+	 */
+	public void clear() {
+		synchronized (this) {
+			evictions.addAndGet(entries.size());
+			entries.clear();
+			bytes = 0;
+		}
+		synchronized (directory) {
+			for (File file : listFiles())
+				file.delete();
+		}
+		synchronized (this) {
+			diskBytes = 0;
+		}
+	}
+
+	/**
+	 * @return a snapshot of the cache statistics
+	 */
+	public synchronized Stats getStats() {
+		return new Stats(hits.get(), diskHits.get(), misses.get(),
+				evictions.get(), entries.size(), bytes);
+	}
+
+	private synchronized void putInMemory(AnyObjectId key, byte[] value) {
+		if (entries.containsKey(key))
+			return;
+		entries.put(key.copy(), value);
+		bytes += value.length;
+		for (Iterator<byte[]> it = entries.values().iterator(); bytes > maxBytes
+				&& it.hasNext();) {
+			bytes -= it.next().length;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private File fileFor(AnyObjectId key) {
+		String name = key.name();
+		return new File(new File(directory, name.substring(0, 2)), name
+				.substring(2));
+	}
+
+	private byte[] read(File file) {
+		byte[] data;
+		try {
+			data = IO.readFully(file);
+		} catch (IOException e) {
+			// not cached
+			return null;
+		}
+		if (data.length < 4 || NB.decodeInt32(data, data.length - 4) != crc(
+				data, data.length - 4)) {
+			file.delete();
+			return null;
+		}
+		// keeps the file from being trimmed
+		file.setLastModified(System.currentTimeMillis());
+		byte[] value = new byte[data.length - 4];
+		System.arraycopy(data, 0, value, 0, value.length);
+		return value;
+	}
+
+	private void write(File file, byte[] value) throws IOException {
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+			throw new IOException("Cannot create " + parent); //$NON-NLS-1$
+		byte[] data = new byte[value.length + 4];
+		System.arraycopy(value, 0, data, 0, value.length);
+		NB.encodeInt32(data, value.length, crc(value, value.length));
+		LockFile lock = new LockFile(file, fs);
+		if (!lock.lock())
+			// written by someone else right now
+			return;
+		try {
+			lock.write(data);
+			if (!lock.commit())
+				throw new IOException("Cannot commit " + file); //$NON-NLS-1$
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Deletes the least recently used files down to three quarters of the
+	 * maximum, so that the directory is not listed on every write.
+	 */
+	private void trimDisk() {
+		synchronized (this) {
+			if (diskBytes >= 0 && diskBytes <= maxDiskBytes)
+				return;
+		}
+		synchronized (directory) {
+			List<CachedFile> files = new ArrayList<CachedFile>();
+			long total = 0;
+			for (File file : listFiles()) {
+				CachedFile cached = new CachedFile(file);
+				files.add(cached);
+				total += cached.length;
+			}
+			if (total > maxDiskBytes) {
+				Collections.sort(files, new Comparator<CachedFile>() {
+					@Override
+					public int compare(CachedFile a, CachedFile b) {
+						return Long.compare(a.lastModified, b.lastModified);
+					}
+				});
+				for (Iterator<CachedFile> it = files.iterator(); total > maxDiskBytes
+						/ 4 * 3 && it.hasNext();) {
+					CachedFile cached = it.next();
+					if (cached.file.delete())
+						total -= cached.length;
+				}
+			}
+			synchronized (this) {
+				diskBytes = total;
+			}
+		}
+	}
+
+	private List<File> listFiles() {
+		List<File> files = new ArrayList<File>();
+		File[] dirs = directory.listFiles();
+		if (dirs == null)
+			return files;
+		for (File dir : dirs) {
+			File[] entryFiles = dir.listFiles();
+			if (entryFiles == null)
+				continue;
+			for (File file : entryFiles)
+				if (!file.getName().endsWith(".lock")) //$NON-NLS-1$
+					files.add(file);
+		}
+		return files;
+	}
+
+	/** A file of the cache directory */
+	private static class CachedFile {
+		final File file;
+
+		final long length;
+
+		final long lastModified;
+
+		CachedFile(File file) {
+			this.file = file;
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+		}
+	}
+
+	private static int crc(byte[] data, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Statistics of a {@link DiffResultCache}.
+	 */
+	public static class Stats {
+		private final long hitCount;
+
+		private final long diskHitCount;
+
+		private final long missCount;
+
+		private final long evictionCount;
+
+		private final int entryCount;
+
+		private final long bytes;
+
+		Stats(long hitCount, long diskHitCount, long missCount,
+				long evictionCount, int entryCount, long bytes) {
+			this.hitCount = hitCount;
+			this.diskHitCount = diskHitCount;
+			this.missCount = missCount;
+			this.evictionCount = evictionCount;
+			this.entryCount = entryCount;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * @return number of diffs answered from memory
+		 */
+		public long getHitCount() {
+			return hitCount;
+		}
+
+		/**
+		 * @return number of diffs answered from disk
+		 */
+		public long getDiskHitCount() {
+			return diskHitCount;
+		}
+
+		/**
+		 * @return number of diffs not found
+		 */
+		public long getMissCount() {
+			return missCount;
+		}
+
+		/**
+		 * @return fraction of lookups answered from memory or disk
+		 */
+		public double getHitRate() {
+			long total = hitCount + diskHitCount + missCount;
+			return total == 0 ? 1.0 : (double) (hitCount + diskHitCount)
+					/ total;
+		}
+
+		/**
+		 * @return number of entries dropped from memory
+		 */
+		public long getEvictionCount() {
+			return evictionCount;
+		}
+
+		/**
+		 * @return number of entries in memory
+		 */
+		public int getEntryCount() {
+			return entryCount;
+		}
+
+		/**
+		 * @return total size of the entries in memory in bytes
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public String toString() {
+			return "hits=" + hitCount + ", diskHits=" + diskHitCount //$NON-NLS-1$ //$NON-NLS-2$
+					+ ", misses=" + missCount + ", evictions=" + evictionCount //$NON-NLS-1$ //$NON-NLS-2$
+					+ ", entries=" + entryCount + ", bytes=" + bytes; //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+}
@@ -1,23 +1,34 @@
 package com.miracle.apps.git.core.storage;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import com.miracle.apps.git.core.errors.CoreException;
+import org.eclipse.jgit.diff.RawText;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.treewalk.WorkingTreeOptions;
 import org.eclipse.jgit.util.io.AutoCRLFInputStream;
 
 /**
  * Provides access to a git blob.
  */
 public class GitBlobStorage{
+	/** Number of bytes looked at to detect binary content */
+	private static final int BINARY_PEEK_SIZE = 8000;
+
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
 	/** Repository containing the object this storage provides access to. */
 	protected final Repository db;
 
@@ -53,30 +64,140 @@ public class GitBlobStorage{
 		}
 	}
 
+	/**
+	 * Returns the size of the blob as stored in the repository, i.e. before
+	 * any line ending conversion. The content is not inflated.
+	 *
+	 * @return the size in bytes
+	 * @throws CoreException
+	 */
+	public long getSize() throws CoreException {
+		if (blobId == null)
+			return 0;
+		try (ObjectReader reader = db.newObjectReader()) {
+			return reader.getObjectSize(blobId, Constants.OBJ_BLOB);
+		} catch (MissingObjectException notFound) {
+			throw new CoreException("Git blob "+blobId+" with path "+path+" not found");
+		} catch (IOException e) {
+			throw new CoreException("IO error reading Git blob "+blobId+" with path "+path);
+		}
+	}
+
+	/**
+	 * Writes the contents to a channel, with the same line ending conversion
+	 * as {@link #getContents()}. Cached blobs are written in a single call,
+	 * larger ones are inflated through one fixed size buffer, so the heap use
+	 * does not depend on the size of the blob.
+	 *
+	 * @param target
+	 * @return number of bytes written
+	 * @throws CoreException
+	 */
+	public long copyTo(WritableByteChannel target) throws CoreException {
+		if (blobId == null)
+			return 0;
+		try {
+			BlobCache cache = BlobCache.get(db);
+			byte[] content = cache.getBytes(blobId);
+			if (content != null
+					&& !(convertLineEndings(cache) && !RawText.isBinary(
+							content, content.length))) {
+				ByteBuffer buffer = ByteBuffer.wrap(content);
+				while (buffer.hasRemaining())
+					target.write(buffer);
+				return content.length;
+			}
+			try (InputStream in = content != null ? new AutoCRLFInputStream(
+					new ByteArrayInputStream(content), false) : openLarge(cache)) {
+				return copy(in, target);
+			}
+		} catch (MissingObjectException notFound) {
+			throw new CoreException("Git blob "+blobId+" with path "+path+" not found");
+		} catch (IOException e) {
+			throw new CoreException("IO error reading Git blob "+blobId+" with path "+path);
+		}
+	}
+
+	/**
+	 * Writes the contents to a stream, see {@link #copyTo(WritableByteChannel)}.
+	 *
+	 * @param out
+	 * @return number of bytes written
+	 * @throws CoreException
+	 */
+	public long copyTo(OutputStream out) throws CoreException {
+		return copyTo(Channels.newChannel(out));
+	}
+
 	private InputStream open() throws IOException, CoreException,
 			IncorrectObjectTypeException {
 		if (blobId == null)
 			return new ByteArrayInputStream(new byte[0]);
 
 		try {
-			WorkingTreeOptions workingTreeOptions = db.getConfig().get(WorkingTreeOptions.KEY);
-			final InputStream objectInputStream = db.open(blobId,
-					Constants.OBJ_BLOB).openStream();
-			switch (workingTreeOptions.getAutoCRLF()) {
-			case INPUT:
-				// When autocrlf == input the working tree could be either CRLF or LF, i.e. the comparison
-				// itself should ignore line endings.
-			case FALSE:
-				return objectInputStream;
-			case TRUE:
-			default:
-				return new AutoCRLFInputStream(objectInputStream, true);
-			}
+			BlobCache cache = BlobCache.get(db);
+			byte[] content = cache.getBytes(blobId);
+			if (content == null)
+				return openLarge(cache);
+			InputStream in = new ByteArrayInputStream(content);
+			if (convertLineEndings(cache)
+					&& !RawText.isBinary(content, content.length))
+				return new AutoCRLFInputStream(in, false);
+			return in;
 		} catch (MissingObjectException notFound) {
 			throw new CoreException("Git blob "+blobId+" with path "+path+" not found");
 		}
 	}
 
+	/**
+	 * Opens a blob too large for the cache. Only the first bytes are looked at
+	 * to decide whether line endings need to be converted.
+	 */
+	private InputStream openLarge(BlobCache cache) throws IOException {
+		InputStream raw = db.open(blobId, Constants.OBJ_BLOB).openStream();
+		if (!convertLineEndings(cache))
+			return raw;
+		BufferedInputStream in = new BufferedInputStream(raw, BINARY_PEEK_SIZE);
+		in.mark(BINARY_PEEK_SIZE);
+		byte[] head = new byte[BINARY_PEEK_SIZE];
+		int length = 0;
+		int n;
+		while (length < head.length
+				&& (n = in.read(head, length, head.length - length)) > 0)
+			length += n;
+		in.reset();
+		if (RawText.isBinary(head, length))
+			return in;
+		return new AutoCRLFInputStream(in, false);
+	}
+
+	private boolean convertLineEndings(BlobCache cache) {
+		switch (cache.getWorkingTreeOptions().getAutoCRLF()) {
+		case INPUT:
+			// When autocrlf == input the working tree could be either CRLF or LF, i.e. the comparison
+			// itself should ignore line endings.
+		case FALSE:
+			return false;
+		case TRUE:
+		default:
+			return true;
+		}
+	}
+
+	private static long copy(InputStream in, WritableByteChannel target)
+			throws IOException {
+		byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+		long total = 0;
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			wrapped.clear().limit(n);
+			while (wrapped.hasRemaining())
+				target.write(wrapped);
+			total += n;
+		}
+		return total;
+	}
 
 	public String getName() {
 		final int last = path.lastIndexOf('/');
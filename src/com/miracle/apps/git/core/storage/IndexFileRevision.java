@@ -6,6 +6,7 @@ import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 
+import com.miracle.apps.git.core.IndexSnapshotCache;
 import com.miracle.apps.git.core.errors.CoreException;
 
 /** An {@link IFileRevision} for the version in the Git index. */
@@ -22,6 +23,8 @@ public class IndexFileRevision extends GitFileRevision {
 
 	private ObjectId blobId;
 
+	private IndexBlobStorage storage;
+
 	public IndexFileRevision(final Repository repo, final String path) {
 		this(repo, path, FIRST_AVAILABLE);
 	}
@@ -34,9 +37,13 @@ public class IndexFileRevision extends GitFileRevision {
 	}
 
 	public IndexBlobStorage getStorage() throws CoreException {
-		if (blobId == null)
-			blobId = locateBlobObjectId();
-		return new IndexBlobStorage(db, path, blobId);
+		// the path may be added to the index later if it was not found
+		if (storage == null || blobId == null) {
+			if (blobId == null)
+				blobId = locateBlobObjectId();
+			storage = new IndexBlobStorage(db, path, blobId);
+		}
+		return storage;
 	}
 
 	@Override
@@ -62,7 +69,7 @@ public class IndexFileRevision extends GitFileRevision {
 
 	private ObjectId locateBlobObjectId() throws CoreException {
 		try {
-			DirCache dc = db.readDirCache();
+			DirCache dc = IndexSnapshotCache.get(db);
 			int firstIndex = dc.findEntry(path);
 			if (firstIndex < 0)
 				return null;